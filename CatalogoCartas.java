@@ -0,0 +1,290 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+/**
+ * Catálogo de cartas num arquivo binário mapeado em memória (FileChannel.map).
+ *
+ * Os três servidores leem o mesmo arquivo (-Dcatalogo.arquivo, padrão
+ * cartas.bin); se ele não existe, é gerado com o catálogo padrão a partir
+ * de uma semente fixa, então nós diferentes chegam aos mesmos bytes.
+ * Mudar o catálogo é trocar o arquivo, sem recompilar.
+ *
+ * Formato (big-endian):
+ *   cabeçalho (16 bytes): magic "YGYC", versão u16, tamanho do registro u16,
+ *                         n u32, início da tabela de nomes u32
+ *   n registros de 16 bytes, em ordem de id:
+ *                         id u32, tier u8, 0 u8, atk u16, def u16,
+ *                         tamanho do nome u16, offset do nome u32
+ *   tabela de nomes:      UTF-8 concatenado
+ *
+ * A leitura é só aritmética sobre o mapeamento: nada é convertido na
+ * abertura e uma carta qualquer (inclusive por id, em busca binária) sai
+ * sem criar objetos; o nome vira String só quando pedido. Serve para
+ * catálogos de centenas de milhares de cartas.
+ *
+ * Os servidores não copiam o catálogo na partida: indicesPorTier() dá os
+ * índices de cada tier (só ints) para o sorteio, e cartas(...) cria o
+ * objeto de uma carta na primeira vez que ela é usada (pacote, mão).
+ *
+ *   java CatalogoCartas gerar [arquivo] [comuns]   -> grava o catálogo padrão
+ *   java CatalogoCartas mostrar [arquivo]          -> lista o conteúdo
+ */
+final class CatalogoCartas {
+    static final String ARQUIVO = System.getProperty("catalogo.arquivo", "cartas.bin");
+    static final long SEMENTE = 42; // stats das comuns do catálogo padrão
+
+    // tiers de raridade (raras são únicas: cada uma sai uma vez só)
+    static final int COMUM = 0;
+    static final int INCOMUM = 1;
+    static final int RARA = 2;
+
+    private static final int MAGIC = 0x59475943; // "YGYC"
+    private static final int VERSAO = 1;
+    private static final int CABECALHO = 16;
+    private static final int REGISTRO = 16;
+
+    private static volatile CatalogoCartas padrao;
+
+    private final ByteBuffer mapa;
+    private final int n;
+    private final int inicioNomes;
+
+    private CatalogoCartas(ByteBuffer mapa) throws IOException {
+        this.mapa = mapa;
+        if (mapa.capacity() < CABECALHO || mapa.getInt(0) != MAGIC) throw new IOException("não é um catálogo de cartas");
+        if (mapa.getShort(4) != VERSAO || mapa.getShort(6) != REGISTRO) throw new IOException("versão de catálogo não suportada: " + mapa.getShort(4));
+        this.n = mapa.getInt(8);
+        this.inicioNomes = mapa.getInt(12);
+        if (n < 0 || (long) CABECALHO + (long) n * REGISTRO > inicioNomes || inicioNomes > mapa.capacity()) {
+            throw new IOException("catálogo truncado ou corrompido");
+        }
+    }
+
+    /** Mapeia o arquivo (só leitura). */
+    static CatalogoCartas abrir(Path arquivo) throws IOException {
+        try (FileChannel ch = FileChannel.open(arquivo, StandardOpenOption.READ)) {
+            MappedByteBuffer mapa = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return new CatalogoCartas(mapa);
+        }
+    }
+
+    /** O catálogo de -Dcatalogo.arquivo, gerado com o padrão se ainda não existe. */
+    static CatalogoCartas padrao() {
+        CatalogoCartas c = padrao;
+        if (c != null) return c;
+        synchronized (CatalogoCartas.class) {
+            if (padrao != null) return padrao;
+            Path arquivo = Paths.get(ARQUIVO);
+            try {
+                if (!Files.exists(arquivo)) {
+                    gravar(arquivo, cartasPadrao(30));
+                    Log.info(Log.SERVIDOR, "[CARDS] catálogo padrão gravado em {}", arquivo.toAbsolutePath());
+                }
+                padrao = abrir(arquivo);
+            } catch (IOException e) {
+                throw new UncheckedIOException("catálogo " + arquivo, e);
+            }
+            return padrao;
+        }
+    }
+
+    int tamanho() { return n; }
+
+    // i = posição no arquivo (0..n-1), em ordem crescente de id
+    int id(int i) { return mapa.getInt(registro(i)); }
+    int tier(int i) { return mapa.get(registro(i) + 4) & 0xFF; }
+    int ataque(int i) { return mapa.getShort(registro(i) + 6) & 0xFFFF; }
+    int defesa(int i) { return mapa.getShort(registro(i) + 8) & 0xFFFF; }
+
+    String nome(int i) {
+        return new String(nomeUtf8(i), StandardCharsets.UTF_8);
+    }
+
+    /** Os bytes do nome como estão no arquivo (para respostas binárias, sem decodificar). */
+    byte[] nomeUtf8(int i) {
+        int r = registro(i);
+        byte[] utf8 = new byte[mapa.getShort(r + 10) & 0xFFFF];
+        mapa.get(inicioNomes + mapa.getInt(r + 12), utf8);
+        return utf8;
+    }
+
+    /** Maior id do catálogo (-1 se vazio). */
+    int maiorId() { return n == 0 ? -1 : id(n - 1); }
+
+    /** Índices (em ordem de id) das cartas de cada tier, numa passada. */
+    Map<Integer, int[]> indicesPorTier() {
+        int[] quantos = new int[256];
+        for (int i = 0; i < n; i++) quantos[tier(i)]++;
+        Map<Integer, int[]> r = new HashMap<>();
+        int[] pos = new int[256];
+        for (int i = 0; i < n; i++) {
+            int t = tier(i);
+            r.computeIfAbsent(t, x -> new int[quantos[x]])[pos[t]++] = i;
+        }
+        return r;
+    }
+
+    /** Objetos por carta, criados por "criar" (índice -> objeto) só no primeiro uso. */
+    <T> Cartas<T> cartas(IntFunction<T> criar) {
+        return new Cartas<>(this, criar);
+    }
+
+    /**
+     * Cache preguiçoso de objetos por índice. Guarda só uma referência por
+     * registro; o objeto (e o que ele ler do mapeamento) sai na primeira
+     * consulta. Duas threads podem criar a mesma carta ao mesmo tempo: fica
+     * a primeira, então todo mundo vê a mesma instância.
+     */
+    static final class Cartas<T> {
+        private final CatalogoCartas catalogo;
+        private final IntFunction<T> criar;
+        private final AtomicReferenceArray<T> criadas;
+
+        private Cartas(CatalogoCartas catalogo, IntFunction<T> criar) {
+            this.catalogo = catalogo;
+            this.criar = criar;
+            this.criadas = new AtomicReferenceArray<>(catalogo.tamanho());
+        }
+
+        CatalogoCartas catalogo() { return catalogo; }
+
+        T em(int i) {
+            T c = criadas.get(i);
+            if (c != null) return c;
+            criadas.compareAndSet(i, null, criar.apply(i));
+            return criadas.get(i);
+        }
+
+        /** Carta com esse id, ou null se não está no catálogo. */
+        T porId(int id) {
+            int i = catalogo.indice(id);
+            return i < 0 ? null : em(i);
+        }
+    }
+
+    /** Posição da carta com esse id, ou -1. */
+    int indice(int id) {
+        int lo = 0, hi = n - 1;
+        while (lo <= hi) {
+            int meio = (lo + hi) >>> 1;
+            int v = id(meio);
+            if (v < id) lo = meio + 1;
+            else if (v > id) hi = meio - 1;
+            else return meio;
+        }
+        return -1;
+    }
+
+    private int registro(int i) {
+        Objects.checkIndex(i, n);
+        return CABECALHO + i * REGISTRO;
+    }
+
+    // ---------- gravação ----------
+    static final class Registro {
+        final int id, tier, ataque, defesa;
+        final String nome;
+
+        Registro(int id, int tier, String nome, int ataque, int defesa) {
+            this.id = id;
+            this.tier = tier;
+            this.nome = nome;
+            this.ataque = ataque;
+            this.defesa = defesa;
+        }
+    }
+
+    /** Grava (num temporário + rename, para quem lê nunca ver metade). */
+    static void gravar(Path arquivo, List<Registro> cartas) throws IOException {
+        List<Registro> ordenadas = new ArrayList<>(cartas);
+        ordenadas.sort(Comparator.comparingInt(r -> r.id));
+        byte[][] nomes = new byte[ordenadas.size()][];
+        int tamNomes = 0;
+        for (int i = 0; i < nomes.length; i++) {
+            nomes[i] = ordenadas.get(i).nome.getBytes(StandardCharsets.UTF_8);
+            if (nomes[i].length > 0xFFFF) throw new IllegalArgumentException("nome grande demais: id " + ordenadas.get(i).id);
+            tamNomes += nomes[i].length;
+        }
+        int inicioNomes = CABECALHO + nomes.length * REGISTRO;
+        ByteBuffer b = ByteBuffer.allocate(inicioNomes + tamNomes);
+        b.putInt(MAGIC).putShort((short) VERSAO).putShort((short) REGISTRO).putInt(nomes.length).putInt(inicioNomes);
+        int off = 0;
+        int anterior = Integer.MIN_VALUE;
+        for (int i = 0; i < nomes.length; i++) {
+            Registro r = ordenadas.get(i);
+            if (r.id == anterior) throw new IllegalArgumentException("id repetido: " + r.id);
+            anterior = r.id;
+            b.putInt(r.id).put((byte) r.tier).put((byte) 0).putShort((short) r.ataque).putShort((short) r.defesa)
+                    .putShort((short) nomes[i].length).putInt(off);
+            off += nomes[i].length;
+        }
+        for (byte[] nome : nomes) b.put(nome);
+
+        Path tmp = arquivo.toAbsolutePath().resolveSibling(arquivo.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            Files.write(tmp, b.array());
+            Files.move(tmp, arquivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Catálogo padrão: as 15 raras do jogo e "comuns" comuns com stats da SEMENTE. */
+    static List<Registro> cartasPadrao(int comuns) {
+        List<Registro> r = new ArrayList<>();
+        r.add(new Registro(101, RARA, "Dragão Lendário", 14, 12));
+        r.add(new Registro(102, RARA, "Fênix de Fogo", 13, 9));
+        r.add(new Registro(103, RARA, "Mago Supremo", 12, 11));
+        r.add(new Registro(104, RARA, "Titã de Pedra", 10, 15));
+        r.add(new Registro(105, RARA, "Serpente Marinha", 11, 10));
+        r.add(new Registro(106, RARA, "Cavaleiro Negro", 13, 11));
+        r.add(new Registro(107, RARA, "Anjo da Guarda", 9, 14));
+        r.add(new Registro(108, RARA, "Demônio Ancestral", 15, 9));
+        r.add(new Registro(109, RARA, "Dragão de Gelo", 12, 13));
+        r.add(new Registro(110, RARA, "Fada Suprema", 10, 12));
+        r.add(new Registro(111, RARA, "Besta Colossal", 14, 10));
+        r.add(new Registro(112, RARA, "Samurai Fantasma", 13, 10));
+        r.add(new Registro(113, RARA, "Guardião Celestial", 11, 14));
+        r.add(new Registro(114, RARA, "Minotauro Real", 12, 12));
+        r.add(new Registro(115, RARA, "Fera Mística", 13, 13));
+        // comuns de 1 a 100 e, passando disso, a partir de 1000 (ids 101.. são das raras)
+        Random sementes = new Random(SEMENTE);
+        for (int i = 1; i <= comuns; i++) {
+            int id = i <= 100 ? i : 1000 + i;
+            r.add(new Registro(id, COMUM, "Comum " + i, 3 + sementes.nextInt(8), 2 + sementes.nextInt(6)));
+        }
+        return r;
+    }
+
+    // ---------- linha de comando ----------
+    public static void main(String[] args) throws IOException {
+        String acao = args.length > 0 ? args[0] : "mostrar";
+        Path arquivo = Paths.get(args.length > 1 ? args[1] : ARQUIVO);
+        if (acao.equals("gerar")) {
+            int comuns = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+            long t0 = System.nanoTime();
+            gravar(arquivo, cartasPadrao(comuns));
+            System.out.printf("[CATALOGO] %d cartas em %s (%d bytes, %.1f ms)%n", comuns + 15, arquivo,
+                    Files.size(arquivo), (System.nanoTime() - t0) / 1e6);
+        } else if (acao.equals("mostrar")) {
+            long t0 = System.nanoTime();
+            CatalogoCartas c = abrir(arquivo);
+            System.out.printf("[CATALOGO] %s: %d cartas (aberto em %.2f ms)%n", arquivo, c.tamanho(), (System.nanoTime() - t0) / 1e6);
+            for (int i = 0; i < Math.min(c.tamanho(), 200); i++) {
+                System.out.printf("  [%d] %s tier=%d (ATK %d / DEF %d)%n", c.id(i), c.nome(i), c.tier(i), c.ataque(i), c.defesa(i));
+            }
+            if (c.tamanho() > 200) System.out.println("  ... (" + (c.tamanho() - 200) + " a mais)");
+        } else {
+            System.err.println("Uso: java CatalogoCartas gerar [arquivo] [comuns] | mostrar [arquivo]");
+            System.exit(2);
+        }
+    }
+}
@@ -12,25 +12,43 @@ public class Cliente {
     private BufferedWriter out;
     private List<Map<String, Object>> minhasCartas = new ArrayList<>();
 
+    // --binario: usa o ProtocoloBinario em vez de linhas + END
+    private final boolean binario;
+    private OutputStream rawOut;
+    private int proximaRequisicao = 1;
+
+    // token dos pings UDP (resposta do comando "sessao"); com ele o servidor mede o RTT
+    private static volatile String sessao;
+
+    public Cliente(boolean binario) {
+        this.binario = binario;
+    }
+
     public static void main(String[] args) {
-        new Cliente().iniciar();
+        new Cliente(Arrays.asList(args).contains("--binario")).iniciar();
     }
 
     public void iniciar() {
         try {
             socket = new Socket(HOST, PORT_TCP);
             System.out.println("✅ Conectado ao servidor TCP.");
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            if (binario) {
+                iniciarBinario();
+            } else {
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+
+                // Thread que escuta mensagens do servidor
+                new Thread(new ThreadLeitura(in)).start();
+            }
 
-            // Thread que escuta mensagens do servidor
-            new Thread(new ThreadLeitura(in)).start();
+            enviarComando("sessao");
 
             Scanner scanner = new Scanner(System.in);
             System.out.println(
                 "Comandos disponíveis:\n" +
                 " - listar -> ver cartas disponíveis\n" +
-                " - pegar -> receber pacote com 3 cartas\n" +
+                " - pegar [N] -> receber N pacotes com 3 cartas (padrão 1)\n" +
                 " - mao -> ver suas cartas\n" +
                 " - duelo -> entrar em uma partida\n" +
                 " - ping -> medir latência UDP\n" +
@@ -61,6 +79,10 @@ public class Cliente {
     }
 
     private void enviarComando(String comando) {
+        if (binario) {
+            enviarPedidoBinario(comando);
+            return;
+        }
         try {
             out.write(comando + "\n");
             out.flush();
@@ -91,6 +113,7 @@ public class Cliente {
             try {
                 String linha;
                 while ((linha = in.readLine()) != null) {
+                    guardarSessao(linha);
                     System.out.println("\n📩 Servidor: " + linha);
                 }
             } catch (IOException e) {
@@ -99,12 +122,108 @@ public class Cliente {
         }
     }
 
+    // ---- Protocolo binário ----
+    private void iniciarBinario() throws IOException {
+        InputStream rawIn = new BufferedInputStream(socket.getInputStream());
+        rawOut = new BufferedOutputStream(socket.getOutputStream());
+
+        // a saudação sempre vem em texto; mostra e descarta até o END
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = rawIn.read()) >= 0) {
+            if (b != '\n') { bytes.write(b); continue; }
+            String l = bytes.toString("UTF-8");
+            bytes.reset();
+            if (l.equals("END")) break;
+            System.out.println("📩 Servidor: " + l);
+        }
+
+        rawOut.write(ProtocoloBinario.MAGIC);
+        rawOut.flush();
+        new Thread(new ThreadLeituraBinaria(rawIn)).start();
+    }
+
+    private synchronized void enviarPedidoBinario(String comando) {
+        byte[] q = ProtocoloBinario.pedido(comando, proximaRequisicao++);
+        if (q == null) {
+            System.out.println("⚠ Comando desconhecido: " + comando);
+            return;
+        }
+        try {
+            rawOut.write(q);
+            rawOut.flush();
+        } catch (IOException e) {
+            System.err.println("⚠ Erro ao enviar comando: " + e.getMessage());
+        }
+    }
+
+    static class ThreadLeituraBinaria implements Runnable {
+        private final InputStream in;
+        // id -> nome, preenchido pela resposta de "listar" (CATALOGO)
+        private final Map<Integer, String> nomes = new HashMap<>();
+
+        ThreadLeituraBinaria(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ProtocoloBinario.Quadro q;
+                while ((q = ProtocoloBinario.ler(in, Integer.MAX_VALUE)) != null) {
+                    String prefixo = "\n📩 Servidor [#" + q.requisicao + "]: ";
+                    ProtocoloBinario.Leitor r = new ProtocoloBinario.Leitor(q.payload);
+                    switch (q.opcode) {
+                        case ProtocoloBinario.OP_HELLO:
+                            System.out.println(prefixo + "protocolo binário v" + r.varint());
+                            break;
+                        case ProtocoloBinario.OP_TEXTO: {
+                            String texto = new String(q.payload, "UTF-8");
+                            guardarSessao(texto);
+                            System.out.println(prefixo + texto);
+                            break;
+                        }
+                        case ProtocoloBinario.OP_CATALOGO: {
+                            int n = r.varint();
+                            System.out.println(prefixo + n + " cartas no catálogo");
+                            for (int i = 0; i < n; i++) {
+                                int id = r.varint(), atk = r.varint(), def = r.varint();
+                                String nome = r.texto(r.varint());
+                                nomes.put(id, nome);
+                                System.out.printf("  [%d] %s (ATK %d / DEF %d)%n", id, nome, atk, def);
+                            }
+                            break;
+                        }
+                        case ProtocoloBinario.OP_CARTAS: {
+                            int n = r.varint();
+                            System.out.println(prefixo + n + " cartas");
+                            for (int i = 0; i < n; i++) {
+                                int id = r.varint(), atk = r.varint(), def = r.varint();
+                                System.out.printf("  [%d] %s (ATK %d / DEF %d)%n", id, nomes.getOrDefault(id, "?"), atk, def);
+                            }
+                            break;
+                        }
+                        default:
+                            System.out.println(prefixo + "opcode desconhecido 0x" + Integer.toHexString(q.opcode));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("⚠ Conexão encerrada pelo servidor.");
+            }
+        }
+    }
+
+    static void guardarSessao(String linha) {
+        if (linha.startsWith("SESSAO ")) sessao = linha.substring(7).trim();
+    }
+
     // ---- Medição de ping UDP ----
     private void medirPing() {
         try (DatagramSocket udpSocket = new DatagramSocket()) {
             udpSocket.setSoTimeout(2000); // 2 segundos
 
-            byte[] buffer = "ping".getBytes();
+            String s = sessao;
+            byte[] buffer = (s == null ? "ping" : "ping " + s).getBytes();
             DatagramPacket packet = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(HOST), PORT_UDP);
 
             long inicio = System.nanoTime();
@@ -119,6 +238,13 @@ public class Cliente {
             String respostaStr = new String(resposta.getData(), 0, resposta.getLength());
             double pingMs = (fim - inicio) / 1_000_000.0;
 
+            // "ping <sessao> <carimbo>": devolve o carimbo na hora para o servidor medir o RTT
+            String[] partes = respostaStr.split(" ");
+            if (s != null && partes.length == 3 && partes[1].equals(s)) {
+                byte[] pong = ("pong " + s + " " + partes[2]).getBytes();
+                udpSocket.send(new DatagramPacket(pong, pong.length, InetAddress.getByName(HOST), PORT_UDP));
+            }
+
             System.out.printf("🏓 Resposta UDP: %s | Ping: %.2f ms\n", respostaStr, pingMs);
 
         } catch (SocketTimeoutException e) {
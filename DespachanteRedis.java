@@ -0,0 +1,148 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * Junta comandos Redis de todas as sessões em pipelines (group commit).
+ *
+ * Em vez de cada ClientHandler fazer seu round-trip no JedisPooled, o comando
+ * entra numa fila única e devolve um CompletableFuture. CONEXOES threads
+ * despachantes tiram da fila o que estiver acumulado (até LOTE_MAX), esperam
+ * no máximo JANELA_US por mais comandos, mandam tudo num pipeline e completam
+ * cada futuro com a sua resposta. Com muitas sessões simultâneas, um
+ * round-trip atende dezenas de "pegar".
+ *
+ * Latência x vazão (-Dredis.janela.us): 0 não espera nada (só agrupa o que
+ * já chegou enquanto o lote anterior estava em voo); valores maiores
+ * aumentam os lotes à custa de até esse tempo extra por comando.
+ *
+ * Uso: despachante.executar(p -> p.hget("k", "f")) bloqueia até a resposta;
+ * enviar(...) devolve o futuro para juntar vários comandos no mesmo lote.
+ */
+final class DespachanteRedis {
+    static final long JANELA_US = Long.getLong("redis.janela.us", 200);
+    static final int LOTE_MAX = Integer.getInteger("redis.lote", 256);
+    static final int CONEXOES = Integer.getInteger("redis.conexoes", 2);
+
+    private static final class Comando<T> {
+        final Function<Pipeline, Response<T>> op;
+        final CompletableFuture<T> futuro = new CompletableFuture<>();
+        Response<T> resposta;
+
+        Comando(Function<Pipeline, Response<T>> op) { this.op = op; }
+
+        boolean enfileirar(Pipeline p) {
+            try {
+                resposta = op.apply(p);
+                return true;
+            } catch (RuntimeException e) {
+                futuro.completeExceptionally(e);
+                return false;
+            }
+        }
+
+        void completar() {
+            try {
+                futuro.complete(resposta.get());
+            } catch (RuntimeException e) {
+                futuro.completeExceptionally(e); // erro só deste comando (ex.: WRONGTYPE)
+            }
+        }
+    }
+
+    static final Metricas.Histograma LATENCIA_LOTE =
+            Metricas.histograma("redis_lote_segundos", "round-trip de um pipeline do despachante");
+    static final Metricas.Contador ERROS_LOTE =
+            Metricas.contador("redis_lote_erros_total", "pipelines que falharam inteiros (conexão)");
+
+    private final JedisPooled redis;
+    private final LinkedBlockingQueue<Comando<?>> fila = new LinkedBlockingQueue<>();
+    private final LongAdder lotes = new LongAdder();
+    private final LongAdder comandos = new LongAdder();
+
+    DespachanteRedis(JedisPooled redis) {
+        this.redis = redis;
+    }
+
+    /** Inicia as threads despachantes (uma conexão do pool em uso por thread). */
+    void iniciar() {
+        for (int i = 0; i < CONEXOES; i++) ThreadsVirtuais.iniciar("redis-despacho-" + i, this::rodar);
+        // comandos / round-trips = comandos por ida ao Redis
+        Metricas.medidor("redis_roundtrips_total", "pipelines enviados (round-trips)", this::lotes);
+        Metricas.medidor("redis_comandos_total", "comandos enviados nos pipelines", this::comandos);
+        Metricas.medidor("redis_fila", "comandos esperando o próximo pipeline", fila::size);
+        Log.info(Log.SERVIDOR, "[REDIS] despachante: {} conexões, lote até {}, janela {}us", CONEXOES, LOTE_MAX, JANELA_US);
+    }
+
+    /** Enfileira o comando; o futuro completa quando o lote volta. */
+    <T> CompletableFuture<T> enviar(Function<Pipeline, Response<T>> op) {
+        Comando<T> c = new Comando<>(op);
+        fila.add(c);
+        return c.futuro;
+    }
+
+    /** Enfileira e espera a resposta (exceções do Redis saem sem embrulho). */
+    <T> T executar(Function<Pipeline, Response<T>> op) {
+        return esperar(enviar(op));
+    }
+
+    static <T> T esperar(CompletableFuture<T> f) {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    long lotes() { return lotes.sum(); }
+
+    long comandos() { return comandos.sum(); }
+
+    private void rodar() {
+        List<Comando<?>> lote = new ArrayList<>(LOTE_MAX);
+        while (true) {
+            try {
+                lote.add(fila.take());
+                fila.drainTo(lote, LOTE_MAX - lote.size());
+                if (JANELA_US > 0) {
+                    long limite = System.nanoTime() + JANELA_US * 1000;
+                    while (lote.size() < LOTE_MAX) {
+                        long resta = limite - System.nanoTime();
+                        Comando<?> c = resta > 0 ? fila.poll(resta, TimeUnit.NANOSECONDS) : null;
+                        if (c == null) break;
+                        lote.add(c);
+                        fila.drainTo(lote, LOTE_MAX - lote.size());
+                    }
+                }
+                enviarLote(lote);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lote.clear();
+            }
+        }
+    }
+
+    private void enviarLote(List<Comando<?>> lote) {
+        List<Comando<?>> enviados = new ArrayList<>(lote.size());
+        long t0 = System.nanoTime();
+        try (Pipeline p = redis.pipelined()) {
+            for (Comando<?> c : lote) if (c.enfileirar(p)) enviados.add(c);
+            p.sync();
+        } catch (RuntimeException e) {
+            // conexão caiu: todo o lote falha, cada chamador decide o que fazer
+            for (Comando<?> c : enviados) c.futuro.completeExceptionally(e);
+            ERROS_LOTE.inc();
+            return;
+        }
+        LATENCIA_LOTE.desde(t0);
+        lotes.increment();
+        comandos.add(enviados.size());
+        for (Comando<?> c : enviados) c.completar();
+    }
+}
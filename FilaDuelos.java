@@ -0,0 +1,163 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.params.XAutoClaimParams;
+import redis.clients.jedis.params.XReadParams;
+
+/**
+ * Fila de duelos distribuída em Redis Streams (usada por ServidorComRedis e
+ * ServidorRaftRedis).
+ *
+ * Cada "duelo" vira uma entrada no stream duels:stream (campo "entry" com o
+ * JSON do DuelEntry). Os workers de todos os nós estão no mesmo consumer
+ * group e formam pares com um script Lua atômico: quem está sozinho fica
+ * pendente com o consumidor fictício "espera"; o script pega até duas
+ * entradas de "espera", completa com novas (XREADGROUP) e só quando há duas
+ * passa o par para o worker que chamou (XCLAIM). Dois workers nunca dividem
+ * um par nem pegam a mesma entrada, e ninguém fica preso na mão de um worker.
+ *
+ * O worker resolve o duelo e só então faz XACK + XDEL das duas entradas. Se
+ * ele cair antes, as entradas continuam pendentes; depois de RECUPERAR_MS
+ * sem confirmação qualquer worker as devolve para "espera" (XAUTOCLAIM) e
+ * elas são pareadas de novo (entrega pelo menos uma vez: um duelo resolvido
+ * sem XACK pode ser repetido).
+ */
+final class FilaDuelos {
+    static final String STREAM = "duels:stream";
+    static final String GRUPO = "duel-workers";
+    static final String ESPERA = "espera";
+    static final long RECUPERAR_MS = Long.getLong("duelo.recuperar.ms", 30000);
+    static final int BLOQUEIO_MS = 250; // espera por novas entradas entre tentativas
+
+    // KEYS = {stream}; ARGV = {grupo, worker, consumidor de espera}
+    // devolve {id1, json1, id2, json2} ou vazio se ainda não há par
+    static final String LUA_PAREAR =
+            "local ids = {} " +
+            "for _, p in ipairs(redis.call('XPENDING', KEYS[1], ARGV[1], '-', '+', 2, ARGV[3])) do ids[#ids + 1] = p[1] end " +
+            "if #ids < 2 then " +
+            "  local novos = redis.call('XREADGROUP', 'GROUP', ARGV[1], ARGV[3], 'COUNT', 2 - #ids, 'STREAMS', KEYS[1], '>') " +
+            "  if novos then for _, e in ipairs(novos[1][2]) do ids[#ids + 1] = e[1] end end " +
+            "end " +
+            "if #ids < 2 then return {} end " +
+            "redis.call('XCLAIM', KEYS[1], ARGV[1], ARGV[2], 0, ids[1], ids[2]) " +
+            "local r = {} " +
+            "for _, id in ipairs(ids) do " +
+            "  local e = redis.call('XRANGE', KEYS[1], id, id) " +
+            "  r[#r + 1] = id " +
+            "  r[#r + 1] = (#e > 0) and e[1][2][2] or '' " +
+            "end " +
+            "return r";
+
+    static final Metricas.Histograma LATENCIA_DUELO =
+            Metricas.histograma("fila_duelo_resolucao_segundos", "resolver um par do stream (sem a confirmação)");
+    static final Metricas.Contador DUELOS_OK = Metricas.contador("duelo_resolvidos_total", "pares resolvidos", "resultado", "ok");
+    static final Metricas.Contador DUELOS_ERRO = Metricas.contador("duelo_resolvidos_total", "pares resolvidos", "resultado", "erro");
+
+    private final JedisPooled redis;
+    private final DespachanteRedis despachante;
+    private final String host;
+    private final int porta;
+    private final String worker;
+
+    /** worker: nome do consumidor deste nó no grupo (único por processo). */
+    FilaDuelos(JedisPooled redis, DespachanteRedis despachante, String host, int porta, String worker) {
+        this.redis = redis;
+        this.despachante = despachante;
+        this.host = host;
+        this.porta = porta;
+        this.worker = worker;
+    }
+
+    /** Cria stream e grupo se ainda não existem (idempotente). */
+    void criarGrupo() {
+        try {
+            redis.xgroupCreate(STREAM, GRUPO, new StreamEntryID(0, 0), true);
+        } catch (JedisDataException e) {
+            if (!String.valueOf(e.getMessage()).startsWith("BUSYGROUP")) throw e;
+        }
+    }
+
+    /** Coloca um DuelEntry (JSON) na fila (XADD no lote do despachante). */
+    void entrar(String json) {
+        DespachanteRedis.esperar(entrarAsync(json));
+    }
+
+    /** Igual a entrar, sem bloquear: o futuro completa com o id da entrada. */
+    CompletableFuture<StreamEntryID> entrarAsync(String json) {
+        return despachante.enviar(p -> p.xadd(STREAM, StreamEntryID.NEW_ENTRY, Map.of("entry", json)));
+    }
+
+    /** Entradas no stream: esperando par ou em resolução (XLEN). */
+    long tamanho() {
+        return redis.xlen(STREAM);
+    }
+
+    /**
+     * Laço do worker: pareia, entrega o par (JSON, JSON) ao resolver no
+     * executor e confirma as entradas quando ele termina sem erro.
+     */
+    void rodarWorker(Executor executor, BiConsumer<String, String> resolver) {
+        criarGrupo();
+        Log.info(Log.DUELO, "[WORKER] consumidor {} no grupo {} ({})", worker, GRUPO, STREAM);
+        long proximaRecuperacao = 0;
+        try (Jedis bloqueio = new Jedis(host, porta)) {
+            while (true) {
+                try {
+                    String[] par = parear();
+                    if (par != null) {
+                        executor.execute(() -> resolverEConfirmar(par, resolver));
+                        continue;
+                    }
+                    if (System.currentTimeMillis() >= proximaRecuperacao) {
+                        recuperar();
+                        proximaRecuperacao = System.currentTimeMillis() + RECUPERAR_MS / 2;
+                    }
+                    // acorda quando chegar entrada nova (ou no timeout)
+                    bloqueio.xread(XReadParams.xReadParams().block(BLOQUEIO_MS).count(1),
+                            Map.of(STREAM, StreamEntryID.LAST_ENTRY));
+                } catch (Exception e) {
+                    Log.erro(Log.DUELO, "[WORKER] erro: {}", e.getMessage());
+                    try { Thread.sleep(200); } catch (InterruptedException ie) { return; }
+                }
+            }
+        }
+    }
+
+    // {id1, json1, id2, json2} ou null
+    String[] parear() {
+        List<?> r = (List<?>) redis.eval(LUA_PAREAR, List.of(STREAM), List.of(GRUPO, worker, ESPERA));
+        if (r == null || r.size() < 4) return null;
+        String[] par = new String[4];
+        for (int i = 0; i < 4; i++) par[i] = String.valueOf(r.get(i));
+        return par;
+    }
+
+    private void resolverEConfirmar(String[] par, BiConsumer<String, String> resolver) {
+        long t0 = System.nanoTime();
+        try {
+            // entrada apagada por fora (json vazio): só confirma
+            if (!par[1].isEmpty() && !par[3].isEmpty()) resolver.accept(par[1], par[3]);
+            LATENCIA_DUELO.desde(t0);
+            DUELOS_OK.inc();
+        } catch (Exception e) {
+            DUELOS_ERRO.inc();
+            Log.erro(Log.DUELO, "[WORKER] erro ao resolver duelo (volta para a fila em {}ms): {}", RECUPERAR_MS, e.getMessage());
+            return;
+        }
+        StreamEntryID id1 = new StreamEntryID(par[0]);
+        StreamEntryID id2 = new StreamEntryID(par[2]);
+        CompletableFuture.allOf(
+                despachante.enviar(p -> p.xack(STREAM, GRUPO, id1, id2)),
+                despachante.enviar(p -> p.xdel(STREAM, id1, id2))).join();
+    }
+
+    // entradas de workers que sumiram voltam para "espera"
+    void recuperar() {
+        redis.xautoclaim(STREAM, GRUPO, ESPERA, RECUPERAR_MS, new StreamEntryID(0, 0),
+                XAutoClaimParams.xAutoClaimParams().count(100));
+    }
+}
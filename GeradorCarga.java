@@ -0,0 +1,613 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gerador de carga em malha aberta (open loop) para qualquer um dos três
+ * servidores (Servidor, ServidorComRedis, ServidorRaftRedis).
+ *
+ * Conecta milhares de jogadores simulados na porta TCP usando o protocolo
+ * binário (pedidos com requestId, então vários podem estar em voo na mesma
+ * conexão) e dispara pedidos numa taxa fixa, sem esperar as respostas. Cada
+ * pedido tem um horário previsto na agenda; a latência é medida a partir
+ * desse horário e não do envio real, então atrasos do próprio gerador ou do
+ * servidor não "somem" (correção de coordinated omission). A latência sem
+ * correção (desde o envio) sai ao lado, para comparação.
+ *
+ * Em paralelo manda pings UDP (echo na porta 6000) também em taxa fixa.
+ * Latências vão para histogramas log-lineares por comando (~1,6% de erro
+ * relativo, no estilo do HdrHistogram); percentis no fim e, com
+ * -Dcarga.hgrm=prefixo, a distribuição completa em arquivos .hgrm.
+ *
+ * Configuração (-D):
+ *   carga.host=127.0.0.1  carga.porta=5000  carga.udp=6000
+ *   carga.jogadores=1000  carga.taxa=2000 (pedidos/s)  carga.duracao.s=30
+ *   carga.aquecimento.s=5 (não entra nos histogramas)  carga.dreno.s=10
+ *   carga.mix=pegar=60,mao=30,duelo=10  carga.loops=<núcleos, até 8>
+ *   carga.ping.hz=100 (0 desliga)  carga.conexoes.s=5000 (ritmo de conexão)
+ *   carga.conectar.s=60 (prazo para todos conectarem; quem não chegou fica de fora)
+ *   carga.login=prefixo (cada jogador entra na conta prefixo-N ao conectar;
+ *     no Servidor com -Djornal.dir, cada "pegar" passa a ir para o jornal)
+ *   carga.origens=127.0.0.1,127.0.0.2 (IPs locais de origem: cada um tem a
+ *     sua faixa de portas efêmeras, para passar de ~28 mil conexões)
+ *
+ *   javac -encoding UTF-8 GeradorCarga.java ProtocoloBinario.java
+ *   java -Dcarga.jogadores=20000 -Dcarga.taxa=20000 GeradorCarga
+ *
+ * Com muitos jogadores, aumente o limite de arquivos abertos (ulimit -n)
+ * aqui e no servidor.
+ */
+public class GeradorCarga {
+    static final String HOST = System.getProperty("carga.host", "127.0.0.1");
+    static final int PORTA = Integer.getInteger("carga.porta", 5000);
+    static final int PORTA_UDP = Integer.getInteger("carga.udp", 6000);
+    static final int JOGADORES = Integer.getInteger("carga.jogadores", 1000);
+    static final double TAXA = Double.parseDouble(System.getProperty("carga.taxa", "2000"));
+    static final long DURACAO_S = Long.getLong("carga.duracao.s", 30);
+    static final long AQUECIMENTO_S = Long.getLong("carga.aquecimento.s", 5);
+    static final long DRENO_S = Long.getLong("carga.dreno.s", 10);
+    static final String MIX = System.getProperty("carga.mix", "pegar=60,mao=30,duelo=10");
+    static final int LOOPS = Integer.getInteger("carga.loops", Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors())));
+    static final double PING_HZ = Double.parseDouble(System.getProperty("carga.ping.hz", "100"));
+    static final int CONEXOES_S = Integer.getInteger("carga.conexoes.s", 5000);
+    static final long CONECTAR_S = Long.getLong("carga.conectar.s", 60);
+    static final String ORIGENS = System.getProperty("carga.origens", "");
+    static final String HGRM = System.getProperty("carga.hgrm", "");
+    static final String LOGIN = System.getProperty("carga.login", "");
+    static final AtomicInteger contas = new AtomicInteger();
+    static final long RELATORIO_MS = 5000;
+    // respostas de "mao" crescem com a mão; limite só contra lixo no stream
+    static final int MAX_PAYLOAD = 64 << 20;
+
+    // comandos do mix (índice = posição nos arrays abaixo)
+    static String[] comandos;
+    static int[] pesosAcumulados;
+    static HistogramaLatencia[] corrigido;   // desde o horário previsto
+    static HistogramaLatencia[] semCorrecao; // desde o envio real
+    static final HistogramaLatencia ping = new HistogramaLatencia();
+
+    static final LongAdder enviados = new LongAdder();
+    static final LongAdder respondidos = new LongAdder();
+    static final LongAdder semResposta = new LongAdder();
+    static final LongAdder assincronas = new LongAdder(); // requestId 0 (ex.: resultado de duelo)
+    static final LongAdder semJogador = new LongAdder();  // horário sem jogador pronto no loop
+    static final LongAdder conexoesPerdidas = new LongAdder();
+    static final AtomicInteger jogadoresProntos = new AtomicInteger();
+    static final AtomicLong pingsEnviados = new AtomicLong();
+    static final AtomicLong pingsRecebidos = new AtomicLong();
+
+    // agenda global (nanoTime); 0 = ainda conectando
+    static volatile long inicioNs;
+    static volatile long medirDesdeNs;
+    static volatile long fimNs;
+    static volatile boolean encerrar;
+
+    public static void main(String[] args) throws Exception {
+        lerMix(MIX);
+        InetSocketAddress destino = new InetSocketAddress(HOST, PORTA);
+        List<InetAddress> origens = new ArrayList<>();
+        for (String o : ORIGENS.split(",")) if (!o.isBlank()) origens.add(InetAddress.getByName(o.trim()));
+
+        System.out.println("[CARGA] " + JOGADORES + " jogadores -> " + destino + ", " + TAXA + " pedidos/s por "
+                + DURACAO_S + "s (+" + AQUECIMENTO_S + "s de aquecimento), mix " + MIX + ", " + LOOPS + " loops");
+
+        CountDownLatch conectados = new CountDownLatch(JOGADORES);
+        List<LoopCarga> loops = new ArrayList<>();
+        for (int i = 0; i < LOOPS; i++) {
+            int n = JOGADORES / LOOPS + (i < JOGADORES % LOOPS ? 1 : 0);
+            LoopCarga l = new LoopCarga(i, n, destino, origens, conectados);
+            loops.add(l);
+            Thread t = new Thread(l, "carga-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        long t0 = System.currentTimeMillis();
+        long prazo = t0 + TimeUnit.SECONDS.toMillis(CONECTAR_S);
+        while (!conectados.await(RELATORIO_MS, TimeUnit.MILLISECONDS) && System.currentTimeMillis() < prazo) {
+            System.out.println("[CARGA] conectando: " + (JOGADORES - conectados.getCount()) + "/" + JOGADORES);
+        }
+        int prontos = jogadoresProntos.get();
+        System.out.println("[CARGA] " + prontos + " jogadores prontos em " + (System.currentTimeMillis() - t0) + "ms"
+                + (prontos < JOGADORES ? " (" + (JOGADORES - prontos) + " falharam)" : ""));
+        if (prontos == 0) System.exit(1);
+
+        long inicio = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        medirDesdeNs = inicio + TimeUnit.SECONDS.toNanos(AQUECIMENTO_S);
+        fimNs = medirDesdeNs + TimeUnit.SECONDS.toNanos(DURACAO_S);
+        inicioNs = inicio;
+        for (LoopCarga l : loops) l.selector.wakeup();
+        if (PING_HZ > 0) iniciarPings();
+
+        long anteriorEnviados = 0, anteriorRespondidos = 0;
+        while (System.nanoTime() < fimNs) {
+            Thread.sleep(RELATORIO_MS);
+            long e = enviados.sum(), r = respondidos.sum();
+            System.out.printf("[CARGA] %s enviados/s=%d respostas/s=%d em voo=%d sem jogador=%d conexões perdidas=%d%n",
+                    System.nanoTime() < medirDesdeNs ? "aquecendo" : "medindo",
+                    (e - anteriorEnviados) * 1000 / RELATORIO_MS, (r - anteriorRespondidos) * 1000 / RELATORIO_MS,
+                    e - r - semResposta.sum(), semJogador.sum(), conexoesPerdidas.sum());
+            anteriorEnviados = e;
+            anteriorRespondidos = r;
+        }
+
+        // espera as respostas em voo; o que não voltar entra como latência até aqui
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRENO_S);
+        while (enviados.sum() - respondidos.sum() - semResposta.sum() > 0 && System.nanoTime() < limite) Thread.sleep(50);
+        encerrar = true;
+        for (LoopCarga l : loops) {
+            l.selector.wakeup();
+            l.terminou.await(5, TimeUnit.SECONDS);
+        }
+        relatorio();
+        System.exit(0);
+    }
+
+    // "pegar=60,mao=30,duelo=10"
+    static void lerMix(String mix) {
+        List<String> nomes = new ArrayList<>();
+        List<Integer> acumulados = new ArrayList<>();
+        int total = 0;
+        for (String parte : mix.split(",")) {
+            String[] kv = parte.trim().split("=");
+            if (kv[0].isEmpty()) continue;
+            if (ProtocoloBinario.opcodeDoComando(kv[0]) < 0) throw new IllegalArgumentException("comando desconhecido no mix: " + kv[0]);
+            int peso = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+            if (peso <= 0) continue;
+            total += peso;
+            nomes.add(kv[0].trim());
+            acumulados.add(total);
+        }
+        if (nomes.isEmpty()) throw new IllegalArgumentException("mix vazio: " + mix);
+        comandos = nomes.toArray(new String[0]);
+        pesosAcumulados = acumulados.stream().mapToInt(Integer::intValue).toArray();
+        corrigido = new HistogramaLatencia[comandos.length];
+        semCorrecao = new HistogramaLatencia[comandos.length];
+        for (int i = 0; i < comandos.length; i++) {
+            corrigido[i] = new HistogramaLatencia();
+            semCorrecao[i] = new HistogramaLatencia();
+        }
+    }
+
+    static int sortearComando(ThreadLocalRandom r) {
+        int x = r.nextInt(pesosAcumulados[pesosAcumulados.length - 1]);
+        for (int i = 0; i < pesosAcumulados.length; i++) if (x < pesosAcumulados[i]) return i;
+        return pesosAcumulados.length - 1;
+    }
+
+    // ---------- event loop: conexões, agenda e respostas de um grupo de jogadores ----------
+    static final class Pendente {
+        final int comando;
+        final long previstoNs;
+        final long enviadoNs;
+
+        Pendente(int comando, long previstoNs, long enviadoNs) {
+            this.comando = comando;
+            this.previstoNs = previstoNs;
+            this.enviadoNs = enviadoNs;
+        }
+    }
+
+    static final class Jogador {
+        final SocketChannel canal;
+        final ProtocoloBinario.Decodificador entrada = new ProtocoloBinario.Decodificador(MAX_PAYLOAD);
+        final ArrayDeque<ByteBuffer> saida = new ArrayDeque<>();
+        final HashMap<Integer, Pendente> pendentes = new HashMap<>();
+        // fim da saudação em texto ("...\nEND\n") antes dos quadros
+        int casados;
+        boolean saudacaoLida;
+        boolean pronto;
+        int proximaReq = 1;
+        int indice = -1; // posição em prontos
+
+        Jogador(SocketChannel canal) { this.canal = canal; }
+    }
+
+    static final class LoopCarga implements Runnable {
+        static final byte[] FIM_SAUDACAO = "\nEND\n".getBytes();
+
+        final Selector selector;
+        final int id;
+        final int total;
+        final InetSocketAddress destino;
+        final List<InetAddress> origens;
+        final CountDownLatch conectados;
+        final CountDownLatch terminou = new CountDownLatch(1);
+        final ArrayList<Jogador> prontos = new ArrayList<>();
+        final ByteBuffer leitura = ByteBuffer.allocateDirect(1 << 16);
+        int iniciadas;
+
+        LoopCarga(int id, int total, InetSocketAddress destino, List<InetAddress> origens, CountDownLatch conectados) throws IOException {
+            this.selector = Selector.open();
+            this.id = id;
+            this.total = total;
+            this.destino = destino;
+            this.origens = origens;
+            this.conectados = conectados;
+        }
+
+        @Override
+        public void run() {
+            try {
+                conectar();
+                agendar();
+            } catch (IOException e) {
+                System.err.println("[CARGA] loop " + id + ": " + e.getMessage());
+            } finally {
+                fecharTodos();
+                terminou.countDown();
+            }
+        }
+
+        // abre as conexões no ritmo CONEXOES_S (dividido entre os loops) até todas responderem
+        private void conectar() throws IOException {
+            long intervalo = (long) (1e9 * LOOPS / Math.max(1, CONEXOES_S));
+            long proxima = System.nanoTime();
+            while (inicioNs == 0 && !encerrar) {
+                long agora = System.nanoTime();
+                while (iniciadas < total && proxima <= agora) {
+                    abrir();
+                    proxima += intervalo;
+                }
+                selector.select(iniciadas < total ? Math.max(1, (proxima - System.nanoTime()) / 1_000_000) : 100);
+                processarEventos(System.nanoTime());
+            }
+        }
+
+        private void abrir() {
+            iniciadas++;
+            SocketChannel canal = null;
+            try {
+                canal = SocketChannel.open();
+                canal.configureBlocking(false);
+                canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (!origens.isEmpty()) canal.bind(new InetSocketAddress(origens.get((id + iniciadas * LOOPS) % origens.size()), 0));
+                Jogador j = new Jogador(canal);
+                if (canal.connect(destino)) conectou(j, canal.register(selector, 0, j));
+                else canal.register(selector, SelectionKey.OP_CONNECT, j);
+            } catch (IOException e) {
+                if (canal != null) try { canal.close(); } catch (IOException ignored) {}
+                falhou(null, "conexão: " + e.getMessage());
+            }
+        }
+
+        private void conectou(Jogador j, SelectionKey k) throws IOException {
+            k.interestOps(SelectionKey.OP_READ);
+            // MAGIC já vai na frente: o servidor só lê depois de mandar a saudação
+            escrever(j, k, new byte[] { (byte) ProtocoloBinario.MAGIC });
+        }
+
+        // agenda em malha aberta: pedido k deste loop no horário inicio + fase + k * intervalo
+        private void agendar() throws IOException {
+            long intervalo = (long) (1e9 * LOOPS / TAXA);
+            long proximo = inicioNs + intervalo * id / LOOPS;
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            while (!encerrar) {
+                long agora = System.nanoTime();
+                // atrasado? manda tudo o que venceu, cada um com o seu horário previsto
+                while (proximo <= agora && proximo < fimNs) {
+                    enviar(r, proximo);
+                    proximo += intervalo;
+                }
+                long espera = proximo < fimNs ? proximo - System.nanoTime() : 100_000_000;
+                int n = espera >= 1_000_000 ? selector.select(espera / 1_000_000) : selector.selectNow();
+                if (n > 0) processarEventos(System.nanoTime());
+                else if (espera > 0 && espera < 1_000_000) LockSupport.parkNanos(espera);
+            }
+            // o que não voltou conta como "sem resposta", com a latência até agora
+            long agora = System.nanoTime();
+            for (Jogador j : prontos) {
+                for (Pendente p : j.pendentes.values()) registrarSemResposta(p, agora);
+                j.pendentes.clear();
+            }
+        }
+
+        private void enviar(ThreadLocalRandom r, long previsto) throws IOException {
+            if (prontos.isEmpty()) {
+                semJogador.increment();
+                return;
+            }
+            Jogador j = prontos.get(r.nextInt(prontos.size()));
+            int cmd = sortearComando(r);
+            int req = j.proximaReq++;
+            if (j.proximaReq <= 0) j.proximaReq = 1; // 0 é reservado para mensagens assíncronas
+            j.pendentes.put(req, new Pendente(cmd, previsto, System.nanoTime()));
+            enviados.increment();
+            escrever(j, j.canal.keyFor(selector), ProtocoloBinario.pedido(comandos[cmd], req));
+        }
+
+        private void escrever(Jogador j, SelectionKey k, byte[] dados) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(dados);
+            if (j.saida.isEmpty()) {
+                try {
+                    j.canal.write(b);
+                } catch (IOException e) {
+                    falhou(j, "escrita: " + e.getMessage());
+                    return;
+                }
+                if (!b.hasRemaining()) return;
+            }
+            j.saida.add(b);
+            k.interestOps(k.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        private void processarEventos(long agora) {
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey k = it.next();
+                it.remove();
+                Jogador j = (Jogador) k.attachment();
+                try {
+                    if (!k.isValid()) continue;
+                    if (k.isConnectable()) {
+                        j.canal.finishConnect();
+                        conectou(j, k);
+                        continue;
+                    }
+                    if (k.isWritable()) esvaziar(j, k);
+                    if (k.isValid() && k.isReadable()) ler(j, agora);
+                } catch (IOException | RuntimeException e) {
+                    falhou(j, e.getMessage());
+                }
+            }
+        }
+
+        private void esvaziar(Jogador j, SelectionKey k) throws IOException {
+            while (!j.saida.isEmpty()) {
+                ByteBuffer b = j.saida.peek();
+                j.canal.write(b);
+                if (b.hasRemaining()) return;
+                j.saida.poll();
+            }
+            k.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void ler(Jogador j, long agora) throws IOException {
+            leitura.clear();
+            int n = j.canal.read(leitura);
+            if (n < 0) throw new EOFException("servidor fechou a conexão");
+            leitura.flip();
+            if (!j.saudacaoLida) {
+                while (leitura.hasRemaining() && !j.saudacaoLida) {
+                    byte b = leitura.get();
+                    j.casados = b == FIM_SAUDACAO[j.casados] ? j.casados + 1 : (b == '\n' ? 1 : 0);
+                    if (j.casados == FIM_SAUDACAO.length) j.saudacaoLida = true;
+                }
+                if (!leitura.hasRemaining()) return;
+            }
+            j.entrada.adicionar(leitura);
+            ProtocoloBinario.Quadro q;
+            while ((q = j.entrada.proximo()) != null) {
+                if (q.opcode == ProtocoloBinario.OP_HELLO) {
+                    if (!j.pronto) {
+                        j.pronto = true;
+                        j.indice = prontos.size();
+                        prontos.add(j);
+                        jogadoresProntos.incrementAndGet();
+                        conectados.countDown();
+                        if (!LOGIN.isEmpty()) {
+                            // resposta sem pendente: ignorada como resposta extra
+                            escrever(j, j.canal.keyFor(selector),
+                                    ProtocoloBinario.pedido("login " + LOGIN + "-" + contas.incrementAndGet(), j.proximaReq++));
+                        }
+                    }
+                    continue;
+                }
+                if (q.requisicao == 0) {
+                    assincronas.increment();
+                    continue;
+                }
+                Pendente p = j.pendentes.remove(q.requisicao);
+                if (p == null) continue; // resposta extra (ex.: servidor manda vários quadros)
+                respondidos.increment();
+                if (p.previstoNs >= medirDesdeNs) {
+                    corrigido[p.comando].registrar((agora - p.previstoNs) / 1000);
+                    semCorrecao[p.comando].registrar((agora - p.enviadoNs) / 1000);
+                }
+            }
+        }
+
+        private void falhou(Jogador j, String motivo) {
+            if (j == null || !j.pronto) {
+                conectados.countDown();
+                if (j != null) fechar(j);
+                System.err.println("[CARGA] falha ao conectar: " + motivo);
+                return;
+            }
+            conexoesPerdidas.increment();
+            long agora = System.nanoTime();
+            for (Pendente p : j.pendentes.values()) registrarSemResposta(p, agora);
+            j.pendentes.clear();
+            // tira de prontos em O(1): o último ocupa a posição dele
+            Jogador ultimo = prontos.remove(prontos.size() - 1);
+            if (ultimo != j) {
+                prontos.set(j.indice, ultimo);
+                ultimo.indice = j.indice;
+            }
+            j.pronto = false;
+            jogadoresProntos.decrementAndGet();
+            fechar(j);
+            System.err.println("[CARGA] conexão perdida: " + motivo);
+        }
+
+        private void fechar(Jogador j) {
+            try { j.canal.close(); } catch (IOException ignored) {}
+        }
+
+        private void fecharTodos() {
+            for (SelectionKey k : selector.keys()) {
+                try { k.channel().close(); } catch (IOException ignored) {}
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    static void registrarSemResposta(Pendente p, long agora) {
+        semResposta.increment();
+        if (p.previstoNs >= medirDesdeNs) corrigido[p.comando].registrar((agora - p.previstoNs) / 1000);
+    }
+
+    // ---------- pings UDP: echo, também em malha aberta ----------
+    static void iniciarPings() throws IOException {
+        DatagramChannel canal = DatagramChannel.open();
+        canal.connect(new InetSocketAddress(HOST, PORTA_UDP));
+
+        Thread receptor = new Thread(() -> {
+            ByteBuffer b = ByteBuffer.allocate(64);
+            while (!encerrar) {
+                try {
+                    b.clear();
+                    canal.receive(b);
+                    long agora = System.nanoTime();
+                    b.flip();
+                    if (b.remaining() < 16) continue;
+                    b.getLong(); // sequência
+                    long previsto = b.getLong();
+                    pingsRecebidos.incrementAndGet();
+                    if (previsto >= medirDesdeNs) ping.registrar((agora - previsto) / 1000);
+                } catch (IOException e) {
+                    if (!encerrar) System.err.println("[CARGA] ping: " + e.getMessage());
+                    return;
+                }
+            }
+        }, "carga-ping-rx");
+        receptor.setDaemon(true);
+        receptor.start();
+
+        Thread emissor = new Thread(() -> {
+            long intervalo = (long) (1e9 / PING_HZ);
+            long proximo = inicioNs;
+            ByteBuffer b = ByteBuffer.allocate(16);
+            while (!encerrar && proximo < fimNs) {
+                long espera = proximo - System.nanoTime();
+                if (espera > 0) LockSupport.parkNanos(espera);
+                b.clear();
+                b.putLong(pingsEnviados.incrementAndGet()).putLong(proximo).flip();
+                try {
+                    canal.write(b);
+                } catch (IOException e) {
+                    System.err.println("[CARGA] ping: " + e.getMessage());
+                }
+                proximo += intervalo;
+            }
+        }, "carga-ping-tx");
+        emissor.setDaemon(true);
+        emissor.start();
+    }
+
+    // ---------- relatório ----------
+    static void relatorio() throws IOException {
+        long e = enviados.sum(), r = respondidos.sum();
+        System.out.println();
+        System.out.println("[CARGA] enviados=" + e + " respondidos=" + r + " sem resposta=" + semResposta.sum()
+                + " sem jogador=" + semJogador.sum() + " assíncronas=" + assincronas.sum()
+                + " conexões perdidas=" + conexoesPerdidas.sum());
+        System.out.println("[CARGA] latência em ms, corrigida (desde o horário previsto); \"envio p99\" ignora a fila do gerador");
+        System.out.printf("%-8s %9s %9s %9s %9s %9s %9s %9s %11s%n", "comando", "n", "média", "p50", "p90", "p99", "p99.9", "max", "envio p99");
+        for (int i = 0; i < comandos.length; i++) linha(comandos[i], corrigido[i], semCorrecao[i]);
+        if (PING_HZ > 0) {
+            long env = pingsEnviados.get(), rec = pingsRecebidos.get();
+            linha("ping udp", ping, null);
+            System.out.printf("[CARGA] pings: enviados=%d recebidos=%d perda=%.2f%%%n", env, rec, env == 0 ? 0.0 : 100.0 * (env - rec) / env);
+        }
+        if (!HGRM.isEmpty()) {
+            for (int i = 0; i < comandos.length; i++) gravarHgrm(HGRM + "-" + comandos[i] + ".hgrm", corrigido[i]);
+            if (PING_HZ > 0) gravarHgrm(HGRM + "-ping.hgrm", ping);
+        }
+    }
+
+    static void linha(String nome, HistogramaLatencia h, HistogramaLatencia envio) {
+        System.out.printf("%-8s %9d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f %11s%n", nome, h.total(), h.media() / 1000.0,
+                h.percentil(50) / 1000.0, h.percentil(90) / 1000.0, h.percentil(99) / 1000.0, h.percentil(99.9) / 1000.0,
+                h.maximo() / 1000.0, envio == null ? "-" : String.format("%.3f", envio.percentil(99) / 1000.0));
+    }
+
+    static void gravarHgrm(String arquivo, HistogramaLatencia h) throws IOException {
+        try (PrintStream out = new PrintStream(new FileOutputStream(arquivo), false, "UTF-8")) {
+            h.escreverHgrm(out);
+        }
+        System.out.println("[CARGA] distribuição gravada em " + arquivo);
+    }
+
+    /**
+     * Histograma log-linear em microssegundos: valores < 2*SUB exatos; acima,
+     * SUB faixas por potência de 2 (erro relativo <= 1/SUB). Contadores
+     * atômicos: vários loops registram no mesmo histograma.
+     */
+    static final class HistogramaLatencia {
+        static final int BITS_SUB = 6;
+        static final int SUB = 1 << BITS_SUB;
+        private final AtomicLongArray faixas = new AtomicLongArray(SUB * (64 - BITS_SUB));
+        private final LongAdder soma = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void registrar(long us) {
+            if (us < 0) us = 0;
+            faixas.incrementAndGet(indice(us));
+            soma.add(us);
+            long m;
+            while (us > (m = max.get()) && !max.compareAndSet(m, us)) { }
+        }
+
+        static int indice(long v) {
+            if (v < 2 * SUB) return (int) v;
+            int desloc = 63 - Long.numberOfLeadingZeros(v) - BITS_SUB;
+            return SUB * (desloc + 1) + (int) (v >>> desloc) - SUB;
+        }
+
+        // maior valor que cai na faixa
+        static long valor(int indice) {
+            if (indice < 2 * SUB) return indice;
+            int desloc = indice / SUB - 1;
+            long topo = indice % SUB + SUB;
+            return ((topo + 1) << desloc) - 1;
+        }
+
+        long total() {
+            long t = 0;
+            for (int i = 0; i < faixas.length(); i++) t += faixas.get(i);
+            return t;
+        }
+
+        double media() {
+            long t = total();
+            return t == 0 ? 0 : (double) soma.sum() / t;
+        }
+
+        long maximo() { return max.get(); }
+
+        long percentil(double p) {
+            long total = total();
+            if (total == 0) return 0;
+            long alvo = Math.max(1, (long) Math.ceil(total * p / 100.0));
+            long acumulado = 0;
+            for (int i = 0; i < faixas.length(); i++) {
+                acumulado += faixas.get(i);
+                if (acumulado >= alvo) return Math.min(valor(i), max.get());
+            }
+            return max.get();
+        }
+
+        // formato de texto do HdrHistogram (valores em ms), aceito pelos plotters dele
+        void escreverHgrm(PrintStream out) {
+            long total = total();
+            out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+            long acumulado = 0;
+            for (int i = 0; i < faixas.length() && total > 0; i++) {
+                long n = faixas.get(i);
+                if (n == 0) continue;
+                acumulado += n;
+                double q = (double) acumulado / total;
+                out.printf(Locale.ROOT, "%12.3f %14.12f %10d %14.2f%n", Math.min(valor(i), max.get()) / 1000.0, q, acumulado,
+                        q < 1 ? 1 / (1 - q) : Double.POSITIVE_INFINITY);
+            }
+            out.printf(Locale.ROOT, "#[Mean    = %12.3f, Max            = %12.3f]%n", media() / 1000.0, max.get() / 1000.0);
+            out.printf(Locale.ROOT, "#[Total count    = %12d]%n", total);
+        }
+    }
+}
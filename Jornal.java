@@ -0,0 +1,472 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Jornal (write-ahead log) do estado em memória do Servidor, em -Djornal.dir.
+ *
+ * Quem muda o estado monta o registro, chama anexar() com a trava
+ * compartilhada e, depois de soltá-la, aguardar(): uma thread de gravação
+ * junta tudo o que chegou enquanto o fsync anterior rodava, escreve num
+ * FileChannel e faz UM force() para o lote inteiro (group commit). Com
+ * muitos "pegar" simultâneos, o custo do fsync é dividido entre eles; nenhum
+ * pedido faz fsync sozinho, e nenhum é confirmado antes de estar no disco.
+ * Quem não pode bloquear (event loop NIO) usa quandoDuravel() no lugar de
+ * aguardar().
+ *
+ * O jornal é dividido em segmentos (jornal-<geração>.log). De tempos em
+ * tempos (-Djornal.snapshot.s, ou quando o segmento passa de
+ * -Djornal.segmento.mb) o estado inteiro é copiado com a trava exclusiva,
+ * o segmento é trocado no mesmo instante e a cópia vira snapshot-<geração>.bin;
+ * os segmentos anteriores são apagados. A recuperação lê o último snapshot e
+ * só os segmentos a partir dele, então o tempo de reinício fica limitado.
+ *
+ * Registro: tamanho u32, CRC32C u32, conteúdo (definido por quem usa, ver
+ * Estado). Um registro incompleto ou com CRC errado no fim do último
+ * segmento é o que estava sendo gravado na queda: é cortado na recuperação.
+ *
+ *   java Jornal estresse [dir] [threads] [segundos]  -> vazão do group commit + recuperação
+ */
+final class Jornal {
+    static final long SNAPSHOT_S = Long.getLong("jornal.snapshot.s", 60);
+    static final long SEGMENTO_MAX = Long.getLong("jornal.segmento.mb", 64) << 20;
+
+    private static final int MAGIC_SNAPSHOT = 0x59475953; // "YGYS"
+    private static final int VERSAO = 1;
+    private static final byte[] TROCA = new byte[0]; // marcador na fila: fecha o segmento e abre o próximo
+
+    static final Metricas.Histograma FSYNC = Metricas.histograma("jornal_fsync_segundos", "write + fsync de um lote do jornal");
+    static final Metricas.Contador REGISTROS = Metricas.contador("jornal_registros_total", "registros gravados no jornal");
+    static final Metricas.Contador LOTES = Metricas.contador("jornal_lotes_total", "lotes do jornal (um fsync cada)");
+    static final Metricas.Histograma SNAPSHOT = Metricas.histograma("jornal_snapshot_segundos", "gravar um snapshot do estado");
+
+    /** O estado protegido pelo jornal. */
+    interface Estado {
+        /** Reaplica um registro (só na recuperação). */
+        void aplicar(ByteBuffer registro);
+
+        /** Cópia serializada do estado; chamada com a trava exclusiva (nada muda no meio). */
+        byte[] capturar();
+
+        /** Carrega o que capturar() gravou (só na recuperação, antes dos registros). */
+        void restaurar(ByteBuffer snapshot);
+    }
+
+    private final Path dir;
+    private final Estado estado;
+
+    // compartilhada: mudar o estado + anexar; exclusiva: capturar + trocar de segmento
+    private final ReentrantReadWriteLock estadoLock = new ReentrantReadWriteLock();
+
+    // fila do group commit (ReentrantLock: não prende a carrier de threads virtuais)
+    private final ReentrantLock trava = new ReentrantLock();
+    private final Condition pendente = trava.newCondition();
+    private final Condition gravado = trava.newCondition();
+    private ArrayList<byte[]> fila = new ArrayList<>();
+    private long anexados, duraveis; // números de sequência (sob trava)
+    private final ArrayList<Object[]> avisos = new ArrayList<>(); // {seq, Runnable} de quandoDuravel (sob trava)
+
+    // só a thread de gravação (geracao também é lida pelo snapshot depois do
+    // fsync da TROCA, visível pela trava)
+    private FileChannel segmento;
+    private long geracao;
+    private final AtomicLong bytesSegmento = new AtomicLong();
+
+    private Jornal(Path dir, Estado estado) {
+        this.dir = dir;
+        this.estado = estado;
+    }
+
+    /**
+     * Recupera o estado de dir (último snapshot + segmentos seguintes), abre um
+     * segmento novo e inicia as threads de gravação e de snapshot.
+     */
+    static Jornal abrir(Path dir, Estado estado) throws IOException {
+        Files.createDirectories(dir);
+        Jornal j = new Jornal(dir, estado);
+        long t0 = System.nanoTime();
+        long registros = j.recuperar();
+        j.segmento = j.abrirSegmento(j.geracao);
+        Log.info(Log.SERVIDOR, "[JORNAL] recuperado de {} em {} ms ({} registros após o snapshot)",
+                dir.toAbsolutePath(), (System.nanoTime() - t0) / 1_000_000, registros);
+
+        Thread gravacao = new Thread(j::gravar, "jornal-gravacao");
+        gravacao.setDaemon(true);
+        gravacao.start();
+        Thread snapshots = new Thread(j::agendarSnapshots, "jornal-snapshot");
+        snapshots.setDaemon(true);
+        snapshots.start();
+        Metricas.medidor("jornal_segmento_bytes", "bytes no segmento atual do jornal", j.bytesSegmento::get);
+        return j;
+    }
+
+    /** Trava a segurar enquanto muda o estado e chama anexar() (não segurar em aguardar()). */
+    Lock compartilhado() { return estadoLock.readLock(); }
+
+    /** Põe o registro na fila do próximo lote; devolve o número de sequência para aguardar(). */
+    long anexar(byte[] conteudo) {
+        CRC32C crc = new CRC32C();
+        crc.update(conteudo);
+        byte[] registro = new byte[8 + conteudo.length];
+        ByteBuffer.wrap(registro).putInt(conteudo.length).putInt((int) crc.getValue()).put(conteudo);
+        trava.lock();
+        try {
+            fila.add(registro);
+            pendente.signal();
+            return ++anexados;
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    /** Espera o fsync do lote que contém o registro seq. */
+    void aguardar(long seq) {
+        trava.lock();
+        try {
+            while (duraveis < seq) gravado.awaitUninterruptibly();
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    /**
+     * Roda acao depois do fsync do registro seq, sem bloquear quem chama (na
+     * thread de gravação, ou já aqui se ele está no disco). A ação deve ser curta.
+     */
+    void quandoDuravel(long seq, Runnable acao) {
+        trava.lock();
+        try {
+            if (duraveis < seq) {
+                avisos.add(new Object[] { seq, acao });
+                return;
+            }
+        } finally {
+            trava.unlock();
+        }
+        acao.run();
+    }
+
+    // ---------- thread de gravação (group commit) ----------
+    private void gravar() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        ArrayList<byte[]> lote = new ArrayList<>();
+        while (true) {
+            long ate;
+            trava.lock();
+            try {
+                while (fila.isEmpty()) pendente.awaitUninterruptibly();
+                ArrayList<byte[]> t = fila;
+                fila = lote;
+                lote = t;
+                ate = anexados;
+            } finally {
+                trava.unlock();
+            }
+            try {
+                long t0 = System.nanoTime();
+                int n = 0;
+                for (byte[] r : lote) {
+                    if (r == TROCA) {
+                        escrever(buf);
+                        segmento.force(false);
+                        segmento.close();
+                        segmento = abrirSegmento(++geracao);
+                        bytesSegmento.set(0);
+                        continue;
+                    }
+                    if (r.length > buf.remaining()) escrever(buf);
+                    if (r.length > buf.capacity()) {
+                        ByteBuffer grande = ByteBuffer.wrap(r);
+                        while (grande.hasRemaining()) segmento.write(grande);
+                    } else {
+                        buf.put(r);
+                    }
+                    bytesSegmento.addAndGet(r.length);
+                    n++;
+                }
+                escrever(buf);
+                segmento.force(false);
+                FSYNC.desde(t0);
+                REGISTROS.add(n);
+                LOTES.inc();
+            } catch (IOException e) {
+                // sem fsync não dá para confirmar mais nada: para o servidor
+                Log.erro(Log.SERVIDOR, "[JORNAL] falha gravando {}: {}", dir, e.getMessage());
+                System.exit(1);
+            }
+            lote.clear();
+            List<Runnable> prontos = new ArrayList<>();
+            trava.lock();
+            try {
+                duraveis = ate;
+                gravado.signalAll();
+                avisos.removeIf(a -> {
+                    if ((Long) a[0] > ate) return false;
+                    prontos.add((Runnable) a[1]);
+                    return true;
+                });
+            } finally {
+                trava.unlock();
+            }
+            for (Runnable r : prontos) r.run();
+        }
+    }
+
+    private void escrever(ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) segmento.write(buf);
+        buf.clear();
+    }
+
+    private FileChannel abrirSegmento(long g) throws IOException {
+        FileChannel ch = FileChannel.open(arquivo("jornal-", g, ".log"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        sincronizarDiretorio();
+        return ch;
+    }
+
+    // ---------- snapshots ----------
+    private void agendarSnapshots() {
+        long ultimo = System.nanoTime();
+        while (true) {
+            try {
+                Thread.sleep(1000);
+                long bytes = bytesSegmento.get();
+                boolean venceu = System.nanoTime() - ultimo >= SNAPSHOT_S * 1_000_000_000L;
+                if (bytes >= SEGMENTO_MAX || (venceu && bytes > 0)) {
+                    snapshot();
+                    ultimo = System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // o jornal continua valendo; só a compactação ficou para a próxima
+                Log.erro(Log.SERVIDOR, "[JORNAL] snapshot falhou: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Copia o estado, troca de segmento e grava o snapshot; apaga o que ele cobre.
+     * Um snapshot por vez: só ele põe TROCA na fila, então a geração aberta
+     * pela sua TROCA é a atual quando ela fica durável.
+     */
+    synchronized void snapshot() throws IOException {
+        long t0 = System.nanoTime();
+        byte[] copia;
+        long marca;
+        estadoLock.writeLock().lock();
+        try {
+            trava.lock();
+            try {
+                fila.add(TROCA);
+                pendente.signal();
+                marca = ++anexados;
+            } finally {
+                trava.unlock();
+            }
+            copia = estado.capturar();
+        } finally {
+            estadoLock.writeLock().unlock();
+        }
+        // tudo o que a cópia inclui está em segmentos < g, já com fsync
+        aguardar(marca);
+        long g = geracao;
+
+        CRC32C crc = new CRC32C();
+        crc.update(copia);
+        ByteBuffer cabecalho = ByteBuffer.allocate(24);
+        cabecalho.putInt(MAGIC_SNAPSHOT).putShort((short) VERSAO).putShort((short) 0).putLong(g)
+                .putInt(copia.length).putInt((int) crc.getValue()).flip();
+        Path destino = arquivo("snapshot-", g, ".bin");
+        Path tmp = destino.resolveSibling(destino.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] partes = { cabecalho, ByteBuffer.wrap(copia) };
+            while (partes[1].hasRemaining()) ch.write(partes);
+            ch.force(true);
+        }
+        Files.move(tmp, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        sincronizarDiretorio();
+
+        for (long antigo : geracoes(dir, "jornal-", ".log")) {
+            if (antigo < g) Files.deleteIfExists(arquivo("jornal-", antigo, ".log"));
+        }
+        for (long antigo : geracoes(dir, "snapshot-", ".bin")) {
+            if (antigo < g) Files.deleteIfExists(arquivo("snapshot-", antigo, ".bin"));
+        }
+        SNAPSHOT.desde(t0);
+        Log.info(Log.SERVIDOR, "[JORNAL] snapshot {} ({} bytes, {} ms)", g, copia.length, (System.nanoTime() - t0) / 1_000_000);
+    }
+
+    // ---------- recuperação ----------
+    // snapshot + segmentos seguintes; geracao = a do próximo segmento; devolve quantos registros reaplicou
+    private long recuperar() throws IOException {
+        long base = restaurarSnapshot();
+        long[] segmentos = geracoes(dir, "jornal-", ".log");
+        long ultima = base, registros = 0;
+        for (int i = 0; i < segmentos.length; i++) {
+            if (segmentos[i] < base) continue; // já coberto pelo snapshot (sobrou de uma queda)
+            registros += reaplicar(segmentos[i], i == segmentos.length - 1);
+            ultima = Math.max(ultima, segmentos[i]);
+        }
+        geracao = ultima + 1;
+        return registros;
+    }
+
+    // último snapshot (um corrompido impede a partida: os segmentos que ele cobria já foram apagados)
+    private long restaurarSnapshot() throws IOException {
+        long[] gs = geracoes(dir, "snapshot-", ".bin");
+        if (gs.length == 0) return 0;
+        long g = gs[gs.length - 1];
+        Path p = arquivo("snapshot-", g, ".bin");
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(p));
+        if (b.remaining() < 24 || b.getInt() != MAGIC_SNAPSHOT || b.getShort() != VERSAO) {
+            throw new IOException("snapshot inválido: " + p);
+        }
+        b.getShort();
+        if (b.getLong() != g) throw new IOException("snapshot com geração trocada: " + p);
+        int tamanho = b.getInt();
+        int esperado = b.getInt();
+        if (tamanho != b.remaining()) throw new IOException("snapshot truncado: " + p);
+        CRC32C crc = new CRC32C();
+        crc.update(b.duplicate());
+        if ((int) crc.getValue() != esperado) throw new IOException("snapshot corrompido (CRC): " + p);
+        estado.restaurar(b.slice());
+        return g;
+    }
+
+    // reaplica um segmento; no último, corta o registro pela metade da queda
+    private long reaplicar(long g, boolean ultimo) throws IOException {
+        Path p = arquivo("jornal-", g, ".log");
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long tamanho = ch.size();
+            if (tamanho > Integer.MAX_VALUE) throw new IOException("segmento grande demais: " + p);
+            ByteBuffer b = ByteBuffer.allocate((int) tamanho);
+            while (b.hasRemaining() && ch.read(b) >= 0) { }
+            b.flip();
+            CRC32C crc = new CRC32C();
+            long n = 0;
+            while (b.hasRemaining()) {
+                int inicio = b.position();
+                boolean valido = b.remaining() >= 8;
+                int len = valido ? b.getInt() : 0;
+                int esperado = valido ? b.getInt() : 0;
+                valido = valido && len >= 0 && len <= b.remaining();
+                if (valido) {
+                    ByteBuffer conteudo = b.slice(b.position(), len);
+                    crc.reset();
+                    crc.update(conteudo.duplicate());
+                    valido = (int) crc.getValue() == esperado;
+                    if (valido) {
+                        estado.aplicar(conteudo);
+                        b.position(b.position() + len);
+                        n++;
+                    }
+                }
+                if (!valido) {
+                    if (!ultimo) throw new IOException("registro corrompido no meio do jornal: " + p + " @" + inicio);
+                    Log.aviso(Log.SERVIDOR, "[JORNAL] cortando {} bytes incompletos no fim de {}", tamanho - inicio, p);
+                    ch.truncate(inicio);
+                    ch.force(true);
+                    break;
+                }
+            }
+            return n;
+        }
+    }
+
+    // ---------- arquivos ----------
+    private Path arquivo(String prefixo, long g, String sufixo) {
+        return dir.resolve(String.format("%s%016d%s", prefixo, g, sufixo));
+    }
+
+    // gerações existentes de prefixo<g>sufixo, em ordem crescente
+    private static long[] geracoes(Path dir, String prefixo, String sufixo) throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.map(p -> p.getFileName().toString())
+                    .filter(n -> n.startsWith(prefixo) && n.endsWith(sufixo))
+                    .map(n -> n.substring(prefixo.length(), n.length() - sufixo.length()))
+                    .filter(n -> !n.isEmpty() && n.chars().allMatch(Character::isDigit))
+                    .mapToLong(Long::parseLong).sorted().toArray();
+        }
+    }
+
+    // arquivo criado/renomeado só é durável com o fsync do diretório (Linux)
+    private void sincronizarDiretorio() {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException ignored) {
+            // sistemas que não abrem diretório (Windows): o rename já é o melhor possível
+        }
+    }
+
+    // ============================
+    // Estresse: threads anexando e esperando; depois reabre e confere a contagem
+    // ============================
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || !args[0].equals("estresse")) {
+            System.err.println("Uso: java Jornal estresse [dir] [threads] [segundos]");
+            System.exit(2);
+        }
+        Path dir = Paths.get(args.length > 1 ? args[1] : "jornal-estresse");
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int segundos = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        final class Contagem implements Estado {
+            final AtomicLong soma = new AtomicLong();
+            @Override public void aplicar(ByteBuffer r) { soma.addAndGet(r.getLong(0)); }
+            @Override public byte[] capturar() { return ByteBuffer.allocate(8).putLong(soma.get()).array(); }
+            @Override public void restaurar(ByteBuffer s) { soma.set(s.getLong(0)); }
+        }
+        Contagem c = new Contagem();
+        Jornal j = abrir(dir, c);
+        long antes = c.soma.get();
+        long fim = System.nanoTime() + segundos * 1_000_000_000L;
+        long lotes0 = LOTES.valor();
+        List<Thread> ts = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread th = new Thread(() -> {
+                byte[] um = ByteBuffer.allocate(8).putLong(1).array();
+                while (System.nanoTime() < fim) {
+                    long seq;
+                    j.compartilhado().lock();
+                    try {
+                        c.soma.incrementAndGet();
+                        seq = j.anexar(um);
+                    } finally {
+                        j.compartilhado().unlock();
+                    }
+                    j.aguardar(seq);
+                }
+            });
+            th.start();
+            ts.add(th);
+        }
+        int snapshots = 0;
+        while (System.nanoTime() < fim) {
+            Thread.sleep(Math.min(1000, segundos * 400L));
+            j.snapshot();
+            snapshots++;
+        }
+        for (Thread th : ts) th.join();
+        long feitos = c.soma.get() - antes;
+        long lotes = LOTES.valor() - lotes0;
+        System.out.printf("[ESTRESSE] %d registros confirmados em %ds (%.0f/s), %d fsyncs (%.1f registros por fsync), %d snapshots%n",
+                feitos, segundos, (double) feitos / segundos, lotes, (double) feitos / Math.max(1, lotes), snapshots);
+
+        // reabre o mesmo diretório do zero: snapshot + segmentos têm que dar a mesma soma
+        Contagem recuperada = new Contagem();
+        long t0 = System.nanoTime();
+        new Jornal(dir, recuperada).recuperar();
+        System.out.printf("[ESTRESSE] recuperação: soma=%d (esperado %d) em %.1f ms -> %s%n", recuperada.soma.get(), c.soma.get(),
+                (System.nanoTime() - t0) / 1e6, recuperada.soma.get() == c.soma.get() ? "OK" : "FALHA");
+        System.exit(recuperada.soma.get() == c.soma.get() ? 0 : 1);
+    }
+}
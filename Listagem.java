@@ -0,0 +1,98 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Resposta do "listar" já codificada, imutável e com versão.
+ *
+ * O catálogo só muda quando uma rara sai (claim local ou evento
+ * cards:events), então os servidores trocam a referência inteira a cada
+ * mudança (copy-on-write, com versão + 1). O "listar" só lê a referência
+ * volatile e escreve os bytes: sem lock nas listas, sem String.format e sem
+ * codificar UTF-8 de novo.
+ *
+ * As versões saem de um Montador: as repetíveis (a maior parte de um
+ * catálogo grande) são codificadas uma vez e o mesmo array serve a todas
+ * as versões; cada rara tem a sua linha e a sua entrada CATALOGO guardadas
+ * na primeira vez. Uma rara que sai custa juntar as entradas das raras
+ * ainda livres, não recodificar o catálogo.
+ */
+final class Listagem {
+    final long versao;
+    /** Resposta texto completa, já com "\nEND\n", compartilhada por todos os envios (não alterar). */
+    final byte[] texto;
+    private final byte[] inicio;     // payload CATALOGO: n + entradas das raras livres nesta versão
+    private final byte[] repetiveis; // resto do payload: repetíveis (mesmo array em todas as versões)
+
+    private Listagem(long versao, byte[] texto, byte[] inicio, byte[] repetiveis) {
+        this.versao = versao;
+        this.texto = texto;
+        this.inicio = inicio;
+        this.repetiveis = repetiveis;
+    }
+
+    /**
+     * Quadro CATALOGO com o requestId do pedido, em partes para escrever em
+     * sequência: só o cabeçalho é do pedido; as outras são os arrays desta
+     * versão, sem cópia (não alterar).
+     */
+    byte[][] quadroCatalogo(int requisicao) {
+        byte[] cab = ProtocoloBinario.cabecalho(ProtocoloBinario.OP_CATALOGO, requisicao, inicio.length + repetiveis.length);
+        return new byte[][] { cab, inicio, repetiveis };
+    }
+
+    /** Monta as versões de um servidor; linha = texto de uma carta pelo índice no catálogo. */
+    static final class Montador {
+        static final int EXEMPLOS = 10; // repetíveis que aparecem no texto
+
+        private final CatalogoCartas catalogo;
+        private final IntFunction<String> linha;
+        private final byte[] cabecalho;
+        private final byte[] rodape;     // exemplos de repetíveis + END
+        private final int nRepetiveis;
+        private final byte[] repetiveis;
+        private final Map<Integer, byte[][]> porRara = new HashMap<>(); // índice -> {linha, entrada}
+        private long versao;
+
+        Montador(CatalogoCartas catalogo, int[] repetiveis, String tituloRaras, String tituloRepetiveis,
+                 IntFunction<String> linha) {
+            this.catalogo = catalogo;
+            this.linha = linha;
+            this.cabecalho = (tituloRaras + "\n").getBytes(StandardCharsets.UTF_8);
+            StringBuilder sb = new StringBuilder(tituloRepetiveis).append('\n');
+            for (int k = 0; k < Math.min(EXEMPLOS, repetiveis.length); k++) sb.append(linha.apply(repetiveis[k])).append('\n');
+            this.rodape = (sb + "\nEND\n").getBytes(StandardCharsets.UTF_8);
+            this.nRepetiveis = repetiveis.length;
+            ByteArrayOutputStream b = new ByteArrayOutputStream(repetiveis.length * 16);
+            for (int i : repetiveis) b.writeBytes(entrada(i));
+            this.repetiveis = b.toByteArray();
+        }
+
+        /** Versão seguinte com estas raras livres (índices no catálogo). */
+        synchronized Listagem montar(int[] rarasLivres) {
+            ByteArrayOutputStream txt = new ByteArrayOutputStream(cabecalho.length + rodape.length + rarasLivres.length * 48);
+            ByteArrayOutputStream bin = new ByteArrayOutputStream(5 + rarasLivres.length * 24);
+            byte[] n = new byte[5];
+            bin.write(n, 0, ProtocoloBinario.escreverVarint(n, 0, rarasLivres.length + nRepetiveis));
+            txt.writeBytes(cabecalho);
+            for (int i : rarasLivres) {
+                byte[][] r = porRara.computeIfAbsent(i, x -> new byte[][] {
+                        (linha.apply(x) + "\n").getBytes(StandardCharsets.UTF_8), entrada(x) });
+                txt.writeBytes(r[0]);
+                bin.writeBytes(r[1]);
+            }
+            txt.writeBytes(rodape);
+            return new Listagem(++versao, txt.toByteArray(), bin.toByteArray(), repetiveis);
+        }
+
+        // id, atk, def, nome (UTF-8 direto do arquivo)
+        private byte[] entrada(int i) {
+            ProtocoloBinario.Resposta r = new ProtocoloBinario.Resposta(ProtocoloBinario.OP_CATALOGO, 32);
+            r.carta(catalogo.id(i), catalogo.ataque(i), catalogo.defesa(i));
+            byte[] nome = catalogo.nomeUtf8(i);
+            return r.varint(nome.length).bytes(nome).payload();
+        }
+    }
+}
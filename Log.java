@@ -0,0 +1,273 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.*;
+
+/**
+ * Log assíncrono dos servidores: quem loga só copia referências para um
+ * slot de um buffer circular sem lock (MPSC, um CAS por linha) e volta; uma
+ * thread de fundo formata e escreve em lotes no stdout (ERRO/AVISO no
+ * stderr). Buffer cheio descarta a linha e conta (log_descartadas_total),
+ * então logar nunca bloqueia uma thread de pedido.
+ *
+ * Cada categoria tem nível e amostragem (1 em N linhas de INFO/DEBUG; ERRO e
+ * AVISO sempre passam). O texto usa {} para os argumentos e só é montado na
+ * thread de escrita; categoria/nível desligados custam uma leitura volatile.
+ *
+ * Configuração: -Dlog.<categoria>=NIVEL[/N] na partida (ex.: -Dlog.comando=INFO/100)
+ * e em tempo de execução pelo MBean yugiyeah:type=Log (um atributo por
+ * categoria com o mesmo formato, editável no jconsole). O log por comando
+ * (categoria "comando") vem desligado.
+ */
+final class Log {
+    enum Nivel { DESLIGADO, ERRO, AVISO, INFO, DEBUG }
+
+    static final int CAPACIDADE = Integer.highestOneBit(Math.max(1024, Integer.getInteger("log.buffer", 1 << 16)));
+    private static final DateTimeFormatter HORA = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    static final class Categoria {
+        final String nome;
+        volatile Nivel nivel;
+        volatile int amostra; // 1 = todas as linhas de INFO/DEBUG
+
+        Categoria(String nome, Nivel nivel) {
+            this.nome = nome;
+            this.nivel = nivel;
+            this.amostra = 1;
+        }
+
+        // ligado e sorteado na amostra
+        boolean passa(Nivel n) {
+            if (n.compareTo(nivel) > 0) return false;
+            int a = amostra;
+            return n.compareTo(Nivel.AVISO) <= 0 || a <= 1 || ThreadLocalRandom.current().nextInt(a) == 0;
+        }
+
+        @Override public String toString() { return nivel + (amostra > 1 ? "/" + amostra : ""); }
+    }
+
+    private static final Map<String, Categoria> categorias = new LinkedHashMap<>();
+
+    // categorias usadas pelos servidores
+    static final Categoria SERVIDOR = categoria("servidor", Nivel.INFO);
+    static final Categoria COMANDO = categoria("comando", Nivel.AVISO); // INFO = cada linha recebida
+    static final Categoria CONEXAO = categoria("conexao", Nivel.INFO);
+    static final Categoria RARAS = categoria("raras", Nivel.INFO);
+    static final Categoria PUBSUB = categoria("pubsub", Nivel.INFO);
+    static final Categoria DUELO = categoria("duelo", Nivel.INFO);
+    static final Categoria REDE = categoria("rede", Nivel.AVISO); // envio/UDP
+
+    private static synchronized Categoria categoria(String nome, Nivel padrao) {
+        Categoria c = new Categoria(nome, padrao);
+        String conf = System.getProperty("log." + nome);
+        if (conf != null) configurar(c, conf);
+        categorias.put(nome, c);
+        return c;
+    }
+
+    // "INFO" ou "INFO/100"
+    static void configurar(Categoria c, String conf) {
+        String[] partes = conf.trim().split("/");
+        c.nivel = Nivel.valueOf(partes[0].trim().toUpperCase());
+        c.amostra = partes.length > 1 ? Math.max(1, Integer.parseInt(partes[1].trim())) : 1;
+    }
+
+    // ---------- buffer circular (MPSC limitado, sequência por slot) ----------
+    private static final class Slot {
+        volatile long seq;
+        Nivel nivel;
+        Categoria categoria;
+        long quando;
+        String msg;
+        Object a1, a2, a3;
+    }
+
+    private static final Slot[] slots = new Slot[CAPACIDADE];
+    private static final AtomicLong cauda = new AtomicLong();
+    private static final LongAdder descartadas = new LongAdder();
+    private static long cabeca; // só a thread de escrita
+
+    static {
+        for (int i = 0; i < CAPACIDADE; i++) {
+            slots[i] = new Slot();
+            slots[i].seq = i;
+        }
+        Thread escritor = new Thread(Log::escrever, "log-escritor");
+        escritor.setDaemon(true);
+        escritor.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::esvaziar, "log-final"));
+        Metricas.medidor("log_descartadas_total", "linhas de log descartadas com o buffer cheio", descartadas::sum);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBeanLog(), new ObjectName("yugiyeah:type=Log"));
+        } catch (JMException e) {
+            System.err.println("[LOG] JMX: " + e.getMessage());
+        }
+    }
+
+    private Log() {}
+
+    static boolean ativo(Categoria c, Nivel n) { return n.compareTo(c.nivel) <= 0; }
+
+    static long descartadas() { return descartadas.sum(); }
+
+    static void erro(Categoria c, String msg) { log(Nivel.ERRO, c, msg, null, null, null); }
+    static void erro(Categoria c, String msg, Object a1) { log(Nivel.ERRO, c, msg, a1, null, null); }
+    static void erro(Categoria c, String msg, Object a1, Object a2) { log(Nivel.ERRO, c, msg, a1, a2, null); }
+    static void erro(Categoria c, String msg, Object a1, Object a2, Object a3) { log(Nivel.ERRO, c, msg, a1, a2, a3); }
+    static void aviso(Categoria c, String msg) { log(Nivel.AVISO, c, msg, null, null, null); }
+    static void aviso(Categoria c, String msg, Object a1) { log(Nivel.AVISO, c, msg, a1, null, null); }
+    static void aviso(Categoria c, String msg, Object a1, Object a2) { log(Nivel.AVISO, c, msg, a1, a2, null); }
+    static void aviso(Categoria c, String msg, Object a1, Object a2, Object a3) { log(Nivel.AVISO, c, msg, a1, a2, a3); }
+    static void info(Categoria c, String msg) { log(Nivel.INFO, c, msg, null, null, null); }
+    static void info(Categoria c, String msg, Object a1) { log(Nivel.INFO, c, msg, a1, null, null); }
+    static void info(Categoria c, String msg, Object a1, Object a2) { log(Nivel.INFO, c, msg, a1, a2, null); }
+    static void info(Categoria c, String msg, Object a1, Object a2, Object a3) { log(Nivel.INFO, c, msg, a1, a2, a3); }
+    static void debug(Categoria c, String msg) { log(Nivel.DEBUG, c, msg, null, null, null); }
+    static void debug(Categoria c, String msg, Object a1) { log(Nivel.DEBUG, c, msg, a1, null, null); }
+    static void debug(Categoria c, String msg, Object a1, Object a2) { log(Nivel.DEBUG, c, msg, a1, a2, null); }
+    static void debug(Categoria c, String msg, Object a1, Object a2, Object a3) { log(Nivel.DEBUG, c, msg, a1, a2, a3); }
+
+    private static void log(Nivel n, Categoria c, String msg, Object a1, Object a2, Object a3) {
+        if (!c.passa(n)) return;
+        long pos = cauda.get();
+        Slot s;
+        while (true) {
+            s = slots[(int) pos & (CAPACIDADE - 1)];
+            long dif = s.seq - pos;
+            if (dif == 0) {
+                if (cauda.compareAndSet(pos, pos + 1)) break;
+                pos = cauda.get();
+            } else if (dif < 0) {
+                descartadas.increment(); // cheio: a escrita está atrasada
+                return;
+            } else {
+                pos = cauda.get();
+            }
+        }
+        s.nivel = n;
+        s.categoria = c;
+        s.quando = System.currentTimeMillis();
+        s.msg = msg;
+        s.a1 = a1;
+        s.a2 = a2;
+        s.a3 = a3;
+        s.seq = pos + 1; // publica para a thread de escrita
+    }
+
+    // ---------- thread de escrita ----------
+    private static void escrever() {
+        StringBuilder out = new StringBuilder(8192), err = new StringBuilder(1024);
+        while (true) {
+            if (drenar(out, err) == 0) LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    // copia o que estiver pronto (até um lote) e escreve; devolve quantas linhas
+    private static synchronized int drenar(StringBuilder out, StringBuilder err) {
+        int n = 0;
+        while (n < 4096) {
+            Slot s = slots[(int) cabeca & (CAPACIDADE - 1)];
+            if (s.seq != cabeca + 1) break;
+            formatar(s, s.nivel.compareTo(Nivel.AVISO) <= 0 ? err : out);
+            s.msg = null;
+            s.a1 = s.a2 = s.a3 = null;
+            s.seq = cabeca + CAPACIDADE; // libera o slot para a próxima volta
+            cabeca++;
+            n++;
+        }
+        if (out.length() > 0) { emitir(System.out, out); }
+        if (err.length() > 0) { emitir(System.err, err); }
+        return n;
+    }
+
+    private static void emitir(PrintStream ps, StringBuilder sb) {
+        ps.print(sb);
+        ps.flush();
+        sb.setLength(0);
+    }
+
+    private static void esvaziar() {
+        StringBuilder out = new StringBuilder(), err = new StringBuilder();
+        while (drenar(out, err) > 0) { }
+    }
+
+    private static void formatar(Slot s, StringBuilder sb) {
+        sb.append(LocalTime.ofInstant(Instant.ofEpochMilli(s.quando), ZoneId.systemDefault()).format(HORA)).append(' ');
+        Object[] args = { s.a1, s.a2, s.a3 };
+        int arg = 0, de = 0;
+        String msg = s.msg;
+        while (true) {
+            int i = msg.indexOf("{}", de);
+            if (i < 0 || arg >= args.length) break;
+            sb.append(msg, de, i).append(args[arg++]);
+            de = i + 2;
+        }
+        sb.append(msg, de, msg.length()).append('\n');
+    }
+
+    // Atributos = categorias ("NIVEL" ou "NIVEL/N"), editáveis; "descartadas" só leitura
+    static final class MBeanLog implements DynamicMBean {
+        @Override
+        public Object getAttribute(String nome) throws AttributeNotFoundException {
+            if (nome.equals("descartadas")) return descartadas();
+            Categoria c = categorias.get(nome);
+            if (c == null) throw new AttributeNotFoundException(nome);
+            return c.toString();
+        }
+
+        @Override
+        public void setAttribute(Attribute a) throws AttributeNotFoundException, InvalidAttributeValueException {
+            Categoria c = categorias.get(a.getName());
+            if (c == null) throw new AttributeNotFoundException(a.getName());
+            try {
+                configurar(c, String.valueOf(a.getValue()));
+            } catch (RuntimeException e) {
+                throw new InvalidAttributeValueException("use NIVEL ou NIVEL/N (" + Arrays.toString(Nivel.values()) + "): " + a.getValue());
+            }
+            System.out.println("[LOG] " + c.nome + " = " + c);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] nomes) {
+            AttributeList r = new AttributeList();
+            for (String n : nomes) {
+                try {
+                    r.add(new Attribute(n, getAttribute(n)));
+                } catch (AttributeNotFoundException ignored) {}
+            }
+            return r;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList lista) {
+            AttributeList r = new AttributeList();
+            for (Attribute a : lista.asList()) {
+                try {
+                    setAttribute(a);
+                    r.add(a);
+                } catch (JMException ignored) {}
+            }
+            return r;
+        }
+
+        @Override
+        public Object invoke(String acao, Object[] params, String[] assinatura) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(acao));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for (Categoria c : categorias.values()) {
+                attrs.add(new MBeanAttributeInfo(c.nome, String.class.getName(), "nível/amostragem da categoria " + c.nome, true, true, false));
+            }
+            attrs.add(new MBeanAttributeInfo("descartadas", Long.class.getName(), "linhas descartadas com o buffer cheio", true, false, false));
+            return new MBeanInfo(getClass().getName(), "Log assíncrono", attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
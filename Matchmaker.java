@@ -0,0 +1,265 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Fila de duelo por faixa de força, sem lock.
+ *
+ * A força do jogador (ATK + DEF da mão) escolhe um bucket de LARGURA pontos.
+ * Opcionalmente uma segunda chave (ex.: faixa de RTT) separa os jogadores
+ * em FAIXAS blocos de BUCKETS buckets, um atrás do outro: dentro do bloco
+ * conta só a força, e cruzar para o bloco vizinho custa pelo menos a
+ * distância até a borda, então par de faixas diferentes só sai quando a
+ * janela de espera já cresceu.
+ * Cada bucket guarda no máximo um jogador esperando num AtomicReferenceArray:
+ * quem chega num bucket ocupado tira o ocupante com CAS e os dois duelam na
+ * hora; num bucket vazio, ocupa o slot e espera. Entrar, sair e parear são
+ * O(1) e não dependem de quantos jogadores estão esperando.
+ *
+ * Uma thread de fundo varre os buckets a cada TICK e junta vizinhos cuja
+ * distância cabe na janela de quem espera há mais tempo; a janela dobra a
+ * cada PASSO de espera (0, 1, 3, 7, ... buckets), então em poucos segundos
+ * qualquer adversário serve. O custo da varredura é fixo (número de buckets).
+ *
+ * Tempos de espera vão para um histograma (potências de 2 em ms) e os
+ * percentis p50/p90/p99 saem no log periodicamente.
+ *
+ * Teste de carga (muitas threads entrando ao mesmo tempo):
+ *   javac Matchmaker.java ThreadsVirtuais.java && java Matchmaker [threads] [jogadores]
+ */
+final class Matchmaker<T> {
+    // Configuração (-Dmatch.largura, -Dmatch.buckets, -Dmatch.passo.ms)
+    static final int LARGURA = Integer.getInteger("match.largura", 20);
+    static final int BUCKETS = Integer.getInteger("match.buckets", 1024);
+    static final long PASSO_MS = Long.getLong("match.passo.ms", 500);
+    static final int FAIXAS = Integer.getInteger("match.faixas", 4);
+    static final long TICK_MS = 50;
+    static final long LOG_MS = 10000;
+
+    private static final class Espera<T> {
+        final T jogador;
+        final int bucket;
+        final long inicio = System.nanoTime();
+        volatile boolean cancelada;
+
+        Espera(T jogador, int bucket) {
+            this.jogador = jogador;
+            this.bucket = bucket;
+        }
+    }
+
+    private final AtomicReferenceArray<Espera<T>> slots;
+    private final ConcurrentHashMap<T, Espera<T>> esperando = new ConcurrentHashMap<>();
+    private final ToIntFunction<T> forca;
+    private final ToIntFunction<T> faixa; // null = uma faixa só
+    private final BiConsumer<T, T> aoParear;
+    private final HistogramaEspera esperas = new HistogramaEspera();
+    private final LongAdder pares = new LongAdder();
+
+    /** forca: pontuação do jogador; aoParear: chamado uma vez por par formado. */
+    Matchmaker(ToIntFunction<T> forca, BiConsumer<T, T> aoParear) {
+        this(forca, null, aoParear);
+    }
+
+    /** faixa: bloco do jogador em [0, FAIXAS); valores fora são limitados. */
+    Matchmaker(ToIntFunction<T> forca, ToIntFunction<T> faixa, BiConsumer<T, T> aoParear) {
+        this.forca = forca;
+        this.faixa = faixa;
+        this.aoParear = aoParear;
+        this.slots = new AtomicReferenceArray<>(faixa == null ? BUCKETS : FAIXAS * BUCKETS);
+    }
+
+    /** Inicia a thread que alarga as janelas e loga os percentis. */
+    void iniciar() {
+        ThreadsVirtuais.iniciar("matchmaker", this::rodar);
+    }
+
+    /** Coloca o jogador na fila; false se ele já estava esperando. */
+    boolean entrar(T jogador) {
+        int bucket = Math.min(BUCKETS - 1, Math.max(0, forca.applyAsInt(jogador) / LARGURA));
+        if (faixa != null) bucket += Math.min(FAIXAS - 1, Math.max(0, faixa.applyAsInt(jogador))) * BUCKETS;
+        Espera<T> e = new Espera<>(jogador, bucket);
+        if (esperando.putIfAbsent(jogador, e) != null) return false;
+        colocar(e);
+        return true;
+    }
+
+    /** Tira o jogador da fila (ex.: desconectou). */
+    void cancelar(T jogador) {
+        Espera<T> e = esperando.remove(jogador);
+        if (e == null) return;
+        e.cancelada = true;
+        slots.compareAndSet(e.bucket, e, null);
+    }
+
+    boolean estaEsperando(T jogador) { return esperando.containsKey(jogador); }
+
+    int esperando() { return esperando.size(); }
+
+    long pares() { return pares.sum(); }
+
+    /** Percentil (0-100) do tempo de espera em ms, pelo limite superior da faixa. */
+    long percentilMs(double p) { return esperas.percentil(p); }
+
+    // ocupa o slot do bucket ou pareia com quem está nele
+    private void colocar(Espera<T> e) {
+        int b = e.bucket;
+        while (!e.cancelada) {
+            Espera<T> atual = slots.get(b);
+            if (atual == null) {
+                if (slots.compareAndSet(b, null, e)) return;
+            } else if (slots.compareAndSet(b, atual, null) && !atual.cancelada) {
+                parear(atual, e);
+                return;
+            }
+            // CAS perdido ou ocupante cancelado (já retirado): tenta de novo
+        }
+    }
+
+    private void parear(Espera<T> a, Espera<T> b) {
+        long agora = System.nanoTime();
+        esperando.remove(a.jogador, a);
+        esperando.remove(b.jogador, b);
+        esperas.registrar(TimeUnit.NANOSECONDS.toMillis(agora - a.inicio));
+        esperas.registrar(TimeUnit.NANOSECONDS.toMillis(agora - b.inicio));
+        pares.increment();
+        aoParear.accept(a.jogador, b.jogador);
+    }
+
+    // quantos buckets de distância essa espera já aceita: 2^passos - 1
+    private static long janela(Espera<?> e, long agora) {
+        long passos = TimeUnit.NANOSECONDS.toMillis(agora - e.inicio) / PASSO_MS;
+        return passos >= 31 ? Integer.MAX_VALUE : (1L << passos) - 1;
+    }
+
+    // uma varredura: junta vizinhos não vazios que cabem na janela
+    void alargar() {
+        long agora = System.nanoTime();
+        Espera<T> anterior = null;
+        for (int i = 0; i < slots.length(); i++) {
+            Espera<T> e = slots.get(i);
+            if (e == null) continue;
+            if (e.cancelada) {
+                slots.compareAndSet(i, e, null);
+                continue;
+            }
+            if (anterior != null
+                    && i - anterior.bucket <= Math.max(janela(anterior, agora), janela(e, agora))
+                    && slots.compareAndSet(anterior.bucket, anterior, null)) {
+                if (slots.compareAndSet(i, e, null)) {
+                    parear(anterior, e);
+                    anterior = null;
+                    continue;
+                }
+                colocar(anterior); // e pareou com outro nesse meio tempo: devolve
+                anterior = null;
+                continue;
+            }
+            anterior = e;
+        }
+    }
+
+    private void rodar() {
+        long proximoLog = System.currentTimeMillis() + LOG_MS;
+        long paresNoLog = 0;
+        while (true) {
+            try {
+                Thread.sleep(TICK_MS);
+                alargar();
+                if (System.currentTimeMillis() >= proximoLog) {
+                    proximoLog = System.currentTimeMillis() + LOG_MS;
+                    long total = pares();
+                    if (total != paresNoLog) {
+                        paresNoLog = total;
+                        Log.info(Log.DUELO, "[MATCH] pares={} esperando={} espera p50/p90/p99={}ms", total, esperando(),
+                                percentilMs(50) + "/" + percentilMs(90) + "/" + percentilMs(99));
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.erro(Log.DUELO, "[MATCH] erro: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Contadores por faixa: [0,1) [1,2) [2,4) [4,8) ... ms
+    static final class HistogramaEspera {
+        private final AtomicLongArray faixas = new AtomicLongArray(40);
+
+        void registrar(long ms) {
+            int f = ms <= 0 ? 0 : Math.min(faixas.length() - 1, 64 - Long.numberOfLeadingZeros(ms));
+            faixas.incrementAndGet(f);
+        }
+
+        long percentil(double p) {
+            long total = 0;
+            for (int i = 0; i < faixas.length(); i++) total += faixas.get(i);
+            if (total == 0) return 0;
+            long alvo = (long) Math.ceil(total * p / 100.0);
+            long acumulado = 0;
+            for (int i = 0; i < faixas.length(); i++) {
+                acumulado += faixas.get(i);
+                if (acumulado >= alvo) return i == 0 ? 0 : (1L << i) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // ============================
+    // Teste de carga: todos pareados exatamente uma vez
+    // ============================
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+        int jogadores = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        AtomicIntegerArray pareado = new AtomicIntegerArray(jogadores);
+        AtomicInteger sobras = new AtomicInteger();
+        Matchmaker<Integer> mm = new Matchmaker<>(j -> ThreadLocalRandom.current().nextInt(BUCKETS * LARGURA), (a, b) -> {
+            pareado.incrementAndGet(a);
+            pareado.incrementAndGet(b);
+        });
+        mm.iniciar();
+
+        CyclicBarrier largada = new CyclicBarrier(threads);
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        List<Future<?>> fs = new ArrayList<>();
+        long t0 = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int primeiro = t;
+            fs.add(exec.submit(() -> {
+                largada.await();
+                for (int j = primeiro; j < jogadores; j += threads) {
+                    if (!mm.entrar(j)) sobras.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : fs) f.get();
+        long entradaNs = System.nanoTime() - t0;
+        exec.shutdown();
+        System.out.println("[CARGA] " + jogadores + " entradas em " + TimeUnit.NANOSECONDS.toMillis(entradaNs)
+                + "ms (" + (entradaNs / jogadores) + "ns cada), esperando=" + mm.esperando());
+
+        // com a janela crescendo, no máximo um jogador (número ímpar) fica sem par
+        long limite = System.currentTimeMillis() + PASSO_MS * 32;
+        while (mm.esperando() > jogadores % 2 && System.currentTimeMillis() < limite) Thread.sleep(TICK_MS);
+
+        int sem = 0;
+        for (int j = 0; j < jogadores; j++) {
+            int n = pareado.get(j);
+            if (n > 1 || sobras.get() > 0) {
+                System.err.println("[CARGA] FALHA: jogador " + j + " pareado " + n + " vezes");
+                System.exit(1);
+            }
+            if (n == 0) sem++;
+        }
+        if (sem != mm.esperando() || sem > jogadores % 2) {
+            System.err.println("[CARGA] FALHA: " + sem + " sem par, " + mm.esperando() + " esperando");
+            System.exit(1);
+        }
+        System.out.println("[CARGA] OK: " + mm.pares() + " pares, espera p50=" + mm.percentilMs(50)
+                + "ms p90=" + mm.percentilMs(90) + "ms p99=" + mm.percentilMs(99) + "ms");
+    }
+}
@@ -0,0 +1,346 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongSupplier;
+import javax.management.*;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Métricas dos servidores: contadores, medidores e histogramas de latência
+ * num registro único, expostos de dois jeitos:
+ *  - HTTP em texto do Prometheus: http://127.0.0.1:9400/metrics
+ *    (-Dmetricas.porta=N, 0 desliga; -Dmetricas.host para ouvir fora do localhost)
+ *  - JMX: MBean yugiyeah:type=Metricas (jconsole, VisualVM), um atributo por série
+ *
+ * Registrar é barato para ficar ligado em produção: contadores são LongAdder
+ * e histogramas são faixas log-lineares fixas (16 por potência de 2, ~6% de
+ * erro) em listras por thread, sem lock e sem alocação. Medidores só rodam
+ * na hora da leitura. Percentis são desde o início do processo.
+ *
+ * Uso: guarde a métrica num static final e registre no caminho quente:
+ *   static final Metricas.Histograma SORTEIO = Metricas.histograma("servidor_sorteio_segundos", "sortear pacotes");
+ *   long t0 = System.nanoTime(); ...; SORTEIO.desde(t0);
+ */
+final class Metricas {
+    static final int PORTA = Integer.getInteger("metricas.porta", 9400);
+    static final String HOST = System.getProperty("metricas.host", "127.0.0.1");
+    static final double[] QUANTIS = { 0.5, 0.9, 0.99, 0.999 };
+    static final String[] NOMES_QUANTIS = { "p50", "p90", "p99", "p999" };
+
+    // série (nome + labels) -> métrica, em ordem para a saída
+    private static final ConcurrentSkipListMap<String, Metrica> registro = new ConcurrentSkipListMap<>();
+    private static final ConcurrentMap<String, String> ajudas = new ConcurrentHashMap<>();
+    private static final AtomicBoolean iniciado = new AtomicBoolean();
+
+    private Metricas() {}
+
+    abstract static class Metrica {
+        final String nome;
+        final String labels; // já formatado: {k="v",...} ou ""
+
+        Metrica(String nome, String labels) {
+            this.nome = nome;
+            this.labels = labels;
+        }
+
+        abstract void escrever(StringBuilder sb);
+
+        // atributos JMX: sufixo -> valor
+        abstract void atributos(Map<String, Object> saida);
+    }
+
+    // ---------- tipos ----------
+    static final class Contador extends Metrica {
+        private final LongAdder valor = new LongAdder();
+
+        Contador(String nome, String labels) { super(nome, labels); }
+
+        void inc() { valor.increment(); }
+
+        void add(long n) { valor.add(n); }
+
+        long valor() { return valor.sum(); }
+
+        @Override void escrever(StringBuilder sb) { sb.append(nome).append(labels).append(' ').append(valor()).append('\n'); }
+
+        @Override void atributos(Map<String, Object> saida) { saida.put("", valor()); }
+    }
+
+    static final class Medidor extends Metrica {
+        private final LongSupplier leitura;
+
+        Medidor(String nome, String labels, LongSupplier leitura) {
+            super(nome, labels);
+            this.leitura = leitura;
+        }
+
+        long valor() {
+            try {
+                return leitura.getAsLong();
+            } catch (RuntimeException e) {
+                return -1; // ex.: Redis fora do ar na hora da leitura
+            }
+        }
+
+        @Override void escrever(StringBuilder sb) { sb.append(nome).append(labels).append(' ').append(valor()).append('\n'); }
+
+        @Override void atributos(Map<String, Object> saida) { saida.put("", valor()); }
+    }
+
+    /** Latências em nanossegundos, guardadas em microssegundos; exportadas em segundos. */
+    static final class Histograma extends Metrica {
+        static final int BITS_SUB = 4;
+        static final int SUB = 1 << BITS_SUB;
+        static final int FAIXAS = SUB * 34; // até ~2^36 us (19h), o resto cai na última
+        static final int LISTRAS = Integer.highestOneBit(Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors())));
+
+        private final AtomicLongArray[] listras = new AtomicLongArray[LISTRAS];
+        private final LongAdder soma = new LongAdder();
+
+        Histograma(String nome, String labels) {
+            super(nome, labels);
+            for (int i = 0; i < LISTRAS; i++) listras[i] = new AtomicLongArray(FAIXAS);
+        }
+
+        /** Registra o tempo desde t0 (System.nanoTime()). */
+        void desde(long t0) { registrarNanos(System.nanoTime() - t0); }
+
+        void registrarNanos(long nanos) {
+            long us = Math.max(0, nanos / 1000);
+            int listra = (int) Thread.currentThread().getId() & (LISTRAS - 1);
+            listras[listra].incrementAndGet(indice(us));
+            soma.add(us);
+        }
+
+        static int indice(long v) {
+            if (v < 2 * SUB) return (int) v;
+            int desloc = 63 - Long.numberOfLeadingZeros(v) - BITS_SUB;
+            return Math.min(FAIXAS - 1, SUB * (desloc + 1) + (int) (v >>> desloc) - SUB);
+        }
+
+        // maior valor (us) que cai na faixa
+        static long valor(int indice) {
+            if (indice < 2 * SUB) return indice;
+            int desloc = indice / SUB - 1;
+            long topo = indice % SUB + SUB;
+            return ((topo + 1) << desloc) - 1;
+        }
+
+        long[] somarListras() {
+            long[] total = new long[FAIXAS];
+            for (AtomicLongArray l : listras) for (int i = 0; i < FAIXAS; i++) total[i] += l.get(i);
+            return total;
+        }
+
+        long total() {
+            long t = 0;
+            for (long n : somarListras()) t += n;
+            return t;
+        }
+
+        /** Quantil (0-1) em microssegundos, pelo limite superior da faixa. */
+        long quantilUs(double q) {
+            return quantilUs(somarListras(), q);
+        }
+
+        private static long quantilUs(long[] faixas, double q) {
+            long total = 0;
+            for (long n : faixas) total += n;
+            if (total == 0) return 0;
+            long alvo = Math.max(1, (long) Math.ceil(total * q));
+            long acumulado = 0;
+            for (int i = 0; i < faixas.length; i++) {
+                acumulado += faixas[i];
+                if (acumulado >= alvo) return valor(i);
+            }
+            return valor(faixas.length - 1);
+        }
+
+        @Override
+        void escrever(StringBuilder sb) {
+            long[] faixas = somarListras();
+            long total = 0;
+            for (long n : faixas) total += n;
+            for (double q : QUANTIS) {
+                sb.append(nome).append(comLabel(labels, "quantile", String.valueOf(q))).append(' ')
+                        .append(quantilUs(faixas, q) / 1e6).append('\n');
+            }
+            sb.append(nome).append("_sum").append(labels).append(' ').append(soma.sum() / 1e6).append('\n');
+            sb.append(nome).append("_count").append(labels).append(' ').append(total).append('\n');
+        }
+
+        @Override
+        void atributos(Map<String, Object> saida) {
+            long[] faixas = somarListras();
+            long total = 0;
+            for (long n : faixas) total += n;
+            saida.put("_count", total);
+            for (int i = 0; i < QUANTIS.length; i++) saida.put("_" + NOMES_QUANTIS[i] + "_ms", quantilUs(faixas, QUANTIS[i]) / 1000.0);
+        }
+    }
+
+    /** Um histograma por comando do protocolo (listar, pegar, mao, duelo, sair, outro). */
+    static final class PorComando {
+        static final String[] COMANDOS = { "listar", "pegar", "mao", "duelo", "sair", "outro" };
+        private final Histograma[] porComando = new Histograma[COMANDOS.length];
+
+        PorComando(String nome, String ajuda) {
+            for (int i = 0; i < COMANDOS.length; i++) porComando[i] = histograma(nome, ajuda, "cmd", COMANDOS[i]);
+        }
+
+        /** Histograma do comando da linha ("pegar 3" -> pegar), sem alocar. */
+        Histograma de(String linha) {
+            for (int i = 0; i < COMANDOS.length - 1; i++) {
+                String c = COMANDOS[i];
+                if (linha.regionMatches(true, 0, c, 0, c.length())
+                        && (linha.length() == c.length() || linha.charAt(c.length()) == ' ')) return porComando[i];
+            }
+            return porComando[COMANDOS.length - 1];
+        }
+    }
+
+    // ---------- registro ----------
+    static Contador contador(String nome, String ajuda, String... labels) {
+        return (Contador) registrar(nome, ajuda, labels, l -> new Contador(nome, l));
+    }
+
+    static Histograma histograma(String nome, String ajuda, String... labels) {
+        return (Histograma) registrar(nome, ajuda, labels, l -> new Histograma(nome, l));
+    }
+
+    static PorComando porComando(String nome, String ajuda) {
+        return new PorComando(nome, ajuda);
+    }
+
+    /** Medidor lido só na exportação (tamanho de fila, conexões...). Registrar de novo troca a leitura. */
+    static void medidor(String nome, String ajuda, LongSupplier leitura, String... labels) {
+        String l = formatarLabels(labels);
+        ajudas.putIfAbsent(nome, ajuda);
+        registro.put(nome + l, new Medidor(nome, l, leitura));
+    }
+
+    private static Metrica registrar(String nome, String ajuda, String[] labels, java.util.function.Function<String, Metrica> criar) {
+        String l = formatarLabels(labels);
+        ajudas.putIfAbsent(nome, ajuda);
+        return registro.computeIfAbsent(nome + l, k -> criar.apply(l));
+    }
+
+    private static String formatarLabels(String[] kv) {
+        if (kv.length == 0) return "";
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i + 1 < kv.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(kv[i]).append("=\"").append(kv[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String comLabel(String labels, String k, String v) {
+        String novo = k + "=\"" + v + "\"";
+        return labels.isEmpty() ? "{" + novo + "}" : labels.substring(0, labels.length() - 1) + "," + novo + "}";
+    }
+
+    // ---------- exportação ----------
+    /** Texto no formato de exposição do Prometheus. */
+    static String texto() {
+        StringBuilder sb = new StringBuilder(4096);
+        String anterior = null;
+        for (Metrica m : registro.values()) {
+            if (!m.nome.equals(anterior)) {
+                anterior = m.nome;
+                sb.append("# HELP ").append(m.nome).append(' ').append(ajudas.getOrDefault(m.nome, m.nome)).append('\n');
+                sb.append("# TYPE ").append(m.nome).append(' ')
+                        .append(m instanceof Histograma ? "summary" : m instanceof Contador ? "counter" : "gauge").append('\n');
+            }
+            m.escrever(sb);
+        }
+        return sb.toString();
+    }
+
+    /** Sobe o endpoint HTTP e o MBean (uma vez por processo); falhas só vão para o log. */
+    static void iniciar(String servidor) {
+        if (!iniciado.compareAndSet(false, true)) return;
+        medidor("processo_threads", "threads vivas na JVM", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBeanMetricas(), new ObjectName("yugiyeah:type=Metricas,servidor=" + servidor));
+        } catch (JMException e) {
+            Log.erro(Log.SERVIDOR, "[METRICAS] JMX: {}", e.getMessage());
+        }
+        if (PORTA <= 0) return;
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(HOST, PORTA), 0);
+            http.createContext("/metrics", troca -> {
+                byte[] corpo = texto().getBytes(StandardCharsets.UTF_8);
+                troca.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                troca.sendResponseHeaders(200, corpo.length);
+                try (OutputStream out = troca.getResponseBody()) {
+                    out.write(corpo);
+                }
+            });
+            http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "metricas-http");
+                t.setDaemon(true);
+                return t;
+            }));
+            http.start();
+            Log.info(Log.SERVIDOR, "[METRICAS] http://{}:{}/metrics", HOST, PORTA);
+        } catch (IOException e) {
+            Log.erro(Log.SERVIDOR, "[METRICAS] HTTP na porta {}: {}", PORTA, e.getMessage());
+        }
+    }
+
+    // Atributos = séries do registro (histogramas viram _count e _pNN_ms), só leitura
+    static final class MBeanMetricas implements DynamicMBean {
+        private Map<String, Object> valores() {
+            Map<String, Object> r = new TreeMap<>();
+            Map<String, Object> parte = new LinkedHashMap<>();
+            for (Map.Entry<String, Metrica> e : registro.entrySet()) {
+                parte.clear();
+                e.getValue().atributos(parte);
+                for (Map.Entry<String, Object> a : parte.entrySet()) r.put(e.getKey() + a.getKey(), a.getValue());
+            }
+            return r;
+        }
+
+        @Override
+        public Object getAttribute(String nome) throws AttributeNotFoundException {
+            Object v = valores().get(nome);
+            if (v == null) throw new AttributeNotFoundException(nome);
+            return v;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] nomes) {
+            Map<String, Object> v = valores();
+            AttributeList r = new AttributeList();
+            for (String n : nomes) if (v.containsKey(n)) r.add(new Attribute(n, v.get(n)));
+            return r;
+        }
+
+        @Override
+        public void setAttribute(Attribute a) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("métricas são só leitura: " + a.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList a) { return new AttributeList(); }
+
+        @Override
+        public Object invoke(String acao, Object[] params, String[] assinatura) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(acao));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for (Map.Entry<String, Object> e : valores().entrySet()) {
+                attrs.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+            }
+            return new MBeanInfo(getClass().getName(), "Métricas do servidor", attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
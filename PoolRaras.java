@@ -0,0 +1,139 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Conjunto de cartas raras ainda não entregues, sem lock.
+ *
+ * Cada rara ocupa um slot (índice no catálogo de raras) e um bit num
+ * AtomicLongArray: 1 = livre, 0 = já entregue. Reservar é escolher uma palavra
+ * e um bit aleatórios entre os livres e limpar o bit com CAS; só a thread cujo
+ * CAS venceu recebe a carta, então uma rara nunca sai duas vezes, e threads
+ * diferentes sorteiam pacotes em paralelo sem disputar um lock global.
+ *
+ * Teste de estresse (muitas threads disputando as mesmas raras):
+ *   javac PoolRaras.java && java PoolRaras [threads] [raras] [rodadas]
+ */
+final class PoolRaras {
+    private final int capacidade;
+    private final AtomicLongArray bits;
+    private final AtomicInteger livres = new AtomicInteger();
+
+    /** Cria o pool com todos os slots 0..capacidade-1 livres. */
+    PoolRaras(int capacidade) {
+        this.capacidade = capacidade;
+        this.bits = new AtomicLongArray((capacidade + 63) >>> 6);
+        for (int slot = 0; slot < capacidade; slot++) devolver(slot);
+    }
+
+    int capacidade() { return capacidade; }
+
+    int livres() { return livres.get(); }
+
+    boolean disponivel(int slot) {
+        return (bits.get(slot >>> 6) & (1L << slot)) != 0;
+    }
+
+    /**
+     * Reserva uma rara livre qualquer (sondagem aleatória).
+     * Retorna o slot, ou -1 se não há mais raras.
+     */
+    int reservar(Random rnd) {
+        int palavras = bits.length();
+        while (livres.get() > 0) {
+            int inicio = rnd.nextInt(palavras);
+            boolean viuLivre = false;
+            for (int k = 0; k < palavras; k++) {
+                int w = (inicio + k) % palavras;
+                long atual = bits.get(w);
+                while (atual != 0) {
+                    viuLivre = true;
+                    // bit livre aleatório: gira a palavra e pega o primeiro bit 1
+                    int giro = rnd.nextInt(64);
+                    int bit = (Long.numberOfTrailingZeros(Long.rotateRight(atual, giro)) + giro) & 63;
+                    long novo = atual & ~(1L << bit);
+                    if (bits.compareAndSet(w, atual, novo)) {
+                        livres.decrementAndGet();
+                        return (w << 6) + bit;
+                    }
+                    atual = bits.get(w); // outra thread mexeu na palavra: tenta de novo
+                }
+            }
+            if (!viuLivre) return -1;
+        }
+        return -1;
+    }
+
+    /** Remove um slot específico (ex.: rara entregue por outro caminho). */
+    boolean remover(int slot) {
+        int w = slot >>> 6;
+        long mascara = 1L << slot;
+        while (true) {
+            long atual = bits.get(w);
+            if ((atual & mascara) == 0) return false;
+            if (bits.compareAndSet(w, atual, atual & ~mascara)) {
+                livres.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /** Marca o slot como livre de novo. */
+    boolean devolver(int slot) {
+        if (slot < 0 || slot >= capacidade) throw new IllegalArgumentException("slot fora do pool: " + slot);
+        int w = slot >>> 6;
+        long mascara = 1L << slot;
+        while (true) {
+            long atual = bits.get(w);
+            if ((atual & mascara) != 0) return false;
+            if (bits.compareAndSet(w, atual, atual | mascara)) {
+                livres.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    // ============================
+    // Teste de estresse: nenhuma rara pode sair duas vezes
+    // ============================
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+        int raras = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int rodadas = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        for (int r = 1; r <= rodadas; r++) {
+            PoolRaras pool = new PoolRaras(raras);
+            AtomicIntegerArray entregas = new AtomicIntegerArray(raras);
+            CyclicBarrier largada = new CyclicBarrier(threads);
+            ExecutorService exec = Executors.newFixedThreadPool(threads);
+            List<Future<Integer>> fs = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                fs.add(exec.submit(() -> {
+                    largada.await();
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    int minhas = 0, slot;
+                    while ((slot = pool.reservar(rnd)) >= 0) {
+                        entregas.incrementAndGet(slot);
+                        minhas++;
+                    }
+                    return minhas;
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> f : fs) total += f.get();
+            exec.shutdown();
+
+            for (int slot = 0; slot < raras; slot++) {
+                if (entregas.get(slot) != 1) {
+                    System.err.println("[ESTRESSE] FALHA rodada " + r + ": slot " + slot + " entregue " + entregas.get(slot) + " vezes");
+                    System.exit(1);
+                }
+            }
+            if (total != raras || pool.livres() != 0 || pool.reservar(ThreadLocalRandom.current()) != -1) {
+                System.err.println("[ESTRESSE] FALHA rodada " + r + ": entregues=" + total + " livres=" + pool.livres());
+                System.exit(1);
+            }
+        }
+        System.out.println("[ESTRESSE] OK: " + rodadas + " rodadas, " + threads + " threads, " + raras + " raras, nenhuma repetida");
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Protocolo binário opcional, negociado na conexão, ao lado do protocolo texto/END.
+ *
+ * Handshake: o servidor sempre manda a saudação em texto ("...\nEND\n"). Um
+ * cliente binário envia MAGIC (0xB1, que nunca inicia texto UTF-8) como
+ * primeiro byte; o servidor responde com um quadro HELLO e a partir daí só
+ * fala binário. Qualquer outro primeiro byte mantém a conexão em texto.
+ *
+ * Quadro (nos dois sentidos): [opcode u8][requestId varint][tamanho varint][payload]
+ *
+ * Pedidos: LISTAR, PEGAR, MAO, DUELO, SAIR, SESSAO (payload vazio; PEGAR aceita
+ * um varint opcional com o número de pacotes, como "pegar N"; SESSAO devolve
+ * em TEXTO o token dos pings UDP, ver ServicoPing), LOGIN (payload = nome da
+ * conta em UTF-8, como "login <nome>": sem autenticação, uma conexão por
+ * conta, e só antes de pegar cartas; ver Servidor).
+ * Respostas repetem o requestId do pedido; mensagens assíncronas (ex.:
+ * resultado de duelo) usam requestId 0.
+ *  - TEXTO:    payload UTF-8
+ *  - CARTAS:   n, e n registros (id, atk, def) em varint; nomes vêm do CATALOGO
+ *  - CATALOGO: n, e n registros (id, atk, def, tamanho do nome, nome UTF-8)
+ */
+final class ProtocoloBinario {
+    static final int MAGIC = 0xB1;
+    static final int VERSAO = 1;
+
+    // cliente -> servidor
+    static final int OP_LISTAR = 0x01;
+    static final int OP_PEGAR = 0x02;
+    static final int OP_MAO = 0x03;
+    static final int OP_DUELO = 0x04;
+    static final int OP_SAIR = 0x05;
+    static final int OP_SESSAO = 0x06;
+    static final int OP_LOGIN = 0x07;   // payload: nome da conta em UTF-8
+
+    // servidor -> cliente
+    static final int OP_HELLO = 0x80;
+    static final int OP_TEXTO = 0x81;
+    static final int OP_CARTAS = 0x82;
+    static final int OP_CATALOGO = 0x83;
+
+    // pedidos são pequenos; limita para não alocar payloads enormes de clientes ruins
+    static final int MAX_PAYLOAD_PEDIDO = 4096;
+
+    // requestId do pedido em processamento na thread atual (0 = mensagem assíncrona)
+    static final ThreadLocal<Integer> REQUISICAO = ThreadLocal.withInitial(() -> 0);
+
+    private ProtocoloBinario() {}
+
+    static final class Quadro {
+        final int opcode;
+        final int requisicao;
+        final byte[] payload;
+
+        Quadro(int opcode, int requisicao, byte[] payload) {
+            this.opcode = opcode;
+            this.requisicao = requisicao;
+            this.payload = payload;
+        }
+    }
+
+    // ---------- pedidos -> linha de comando do protocolo texto ----------
+    static String linhaDoPedido(Quadro q) {
+        switch (q.opcode) {
+            case OP_LISTAR: return "listar";
+            case OP_PEGAR:
+                if (q.payload.length == 0) return "pegar";
+                try {
+                    return "pegar " + new Leitor(q.payload).varint();
+                } catch (RuntimeException e) {
+                    return "pegar ?"; // payload malformado -> mensagem de uso
+                }
+            case OP_MAO: return "mao";
+            case OP_DUELO: return "duelo";
+            case OP_SAIR: return "sair";
+            case OP_SESSAO: return "sessao";
+            case OP_LOGIN: return "login " + new String(q.payload, StandardCharsets.UTF_8);
+            default: return "?";
+        }
+    }
+
+    static int opcodeDoComando(String comando) {
+        String[] partes = comando.trim().toLowerCase().split("\\s+");
+        switch (partes[0]) {
+            case "listar": return OP_LISTAR;
+            case "pegar": return OP_PEGAR;
+            case "mao": return OP_MAO;
+            case "duelo": return OP_DUELO;
+            case "sair": return OP_SAIR;
+            case "sessao": return OP_SESSAO;
+            case "login": return OP_LOGIN;
+            default: return -1;
+        }
+    }
+
+    /** Monta o quadro de pedido para uma linha de comando ("pegar 5" leva o 5 no payload); null se inválida. */
+    static byte[] pedido(String comando, int requisicao) {
+        int opcode = opcodeDoComando(comando);
+        if (opcode < 0) return null;
+        Resposta r = new Resposta(opcode, 8);
+        String[] partes = comando.trim().split("\\s+");
+        if (opcode == OP_PEGAR && partes.length > 1) {
+            try {
+                r.varint(Integer.parseInt(partes[1]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (opcode == OP_LOGIN && partes.length > 1) r.bytes(partes[1].getBytes(StandardCharsets.UTF_8));
+        return r.quadro(requisicao);
+    }
+
+    // ---------- montagem de respostas ----------
+    static byte[] hello() {
+        return new Resposta(OP_HELLO).varint(VERSAO).quadro(0);
+    }
+
+    static byte[] texto(String msg) {
+        byte[] utf8 = msg.getBytes(StandardCharsets.UTF_8);
+        return new Resposta(OP_TEXTO, utf8.length).bytes(utf8).quadro(REQUISICAO.get());
+    }
+
+    /** Acumula o payload de um quadro (varints e bytes) e gera o quadro. */
+    static final class Resposta {
+        private final int opcode;
+        private byte[] buf;
+        private int tam;
+
+        Resposta(int opcode) {
+            this(opcode, 64);
+        }
+
+        Resposta(int opcode, int capacidade) {
+            this.opcode = opcode;
+            this.buf = new byte[Math.max(16, capacidade)];
+        }
+
+        Resposta varint(int v) {
+            garantir(5);
+            tam = escreverVarint(buf, tam, v);
+            return this;
+        }
+
+        Resposta bytes(byte[] b) {
+            garantir(b.length);
+            System.arraycopy(b, 0, buf, tam, b.length);
+            tam += b.length;
+            return this;
+        }
+
+        Resposta carta(int id, int atk, int def) {
+            return varint(id).varint(atk).varint(def);
+        }
+
+        Resposta cartaComNome(int id, int atk, int def, String nome) {
+            byte[] utf8 = nome.getBytes(StandardCharsets.UTF_8);
+            return carta(id, atk, def).varint(utf8.length).bytes(utf8);
+        }
+
+        byte[] quadro(int requisicao) {
+            return ProtocoloBinario.quadro(opcode, requisicao, buf, tam);
+        }
+
+        // só o payload, para respostas montadas uma vez e reenviadas (ver Listagem)
+        byte[] payload() {
+            return Arrays.copyOf(buf, tam);
+        }
+
+        private void garantir(int extra) {
+            if (tam + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, tam + extra));
+        }
+    }
+
+    /** [opcode][requisicao][tam] + os primeiros tam bytes de payload. */
+    static byte[] quadro(int opcode, int requisicao, byte[] payload, int tam) {
+        byte[] cab = cabecalho(opcode, requisicao, tam);
+        byte[] q = Arrays.copyOf(cab, cab.length + tam);
+        System.arraycopy(payload, 0, q, cab.length, tam);
+        return q;
+    }
+
+    /** Só o cabeçalho [opcode][requestId][tamanho]: o payload vai escrito logo depois, sem cópia. */
+    static byte[] cabecalho(int opcode, int requisicao, int tam) {
+        byte[] cab = new byte[11];
+        int n = 0;
+        cab[n++] = (byte) opcode;
+        n = escreverVarint(cab, n, requisicao);
+        n = escreverVarint(cab, n, tam);
+        return Arrays.copyOf(cab, n);
+    }
+
+    static int escreverVarint(byte[] buf, int pos, int v) {
+        while ((v & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    // ---------- leitura ----------
+    /** Lê um quadro de um stream bloqueante; null no fim do stream. */
+    static Quadro ler(InputStream in, int maxPayload) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) return null;
+        int req = lerVarint(in);
+        int tam = lerVarint(in);
+        if (req < 0 || tam < 0) throw new IOException("requestId/tamanho negativo");
+        if (tam > maxPayload) throw new IOException("quadro muito grande: " + tam);
+        byte[] payload = new byte[tam];
+        int lidos = 0;
+        while (lidos < tam) {
+            int n = in.read(payload, lidos, tam - lidos);
+            if (n < 0) throw new EOFException("quadro incompleto");
+            lidos += n;
+        }
+        return new Quadro(opcode, req, payload);
+    }
+
+    private static int lerVarint(InputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException("varint incompleto");
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("varint inválido");
+    }
+
+    /** Cursor sobre um payload já recebido (usado por clientes para decodificar CARTAS/CATALOGO). */
+    static final class Leitor {
+        private final byte[] buf;
+        private int pos;
+
+        Leitor(byte[] buf) { this.buf = buf; }
+
+        boolean temMais() { return pos < buf.length; }
+
+        int varint() {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = buf[pos++] & 0xFF;
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IllegalStateException("varint inválido");
+        }
+
+        String texto(int tam) {
+            String s = new String(buf, pos, tam, StandardCharsets.UTF_8);
+            pos += tam;
+            return s;
+        }
+    }
+
+    /**
+     * Decodificador incremental para o modo NIO: recebe pedaços do socket e
+     * devolve quadros completos à medida que chegam.
+     */
+    static final class Decodificador {
+        private static final long INCOMPLETO = -1;
+        private final int maxPayload;
+        private byte[] acc = new byte[256];
+        private int tam;
+
+        Decodificador(int maxPayload) { this.maxPayload = maxPayload; }
+
+        void adicionar(ByteBuffer dados) {
+            int n = dados.remaining();
+            if (tam + n > acc.length) acc = Arrays.copyOf(acc, Math.max(acc.length * 2, tam + n));
+            dados.get(acc, tam, n);
+            tam += n;
+        }
+
+        /** Próximo quadro completo, ou null se ainda faltam bytes. */
+        Quadro proximo() throws IOException {
+            if (tam == 0) return null;
+            int[] pos = { 1 };
+            long req = varint(pos);
+            if (req == INCOMPLETO) return null;
+            long len = varint(pos);
+            if (len == INCOMPLETO) return null;
+            if (len > maxPayload) throw new IOException("quadro muito grande: " + len);
+            if (tam - pos[0] < len) return null;
+            Quadro q = new Quadro(acc[0] & 0xFF, (int) req, Arrays.copyOfRange(acc, pos[0], pos[0] + (int) len));
+            int consumidos = pos[0] + (int) len;
+            System.arraycopy(acc, consumidos, acc, 0, tam - consumidos);
+            tam -= consumidos;
+            return q;
+        }
+
+        // INCOMPLETO = varint ainda pela metade no buffer; fora isso, 0..Integer.MAX_VALUE
+        // (um varint de 5 bytes que dá negativo em int é erro de protocolo, não "falta byte")
+        private long varint(int[] pos) throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (pos[0] >= tam) return INCOMPLETO;
+                int b = acc[pos[0]++] & 0xFF;
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (v > Integer.MAX_VALUE) throw new IOException("varint negativo/grande demais: " + v);
+                    return v;
+                }
+            }
+            throw new IOException("varint inválido");
+        }
+    }
+}
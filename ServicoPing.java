@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Serviço UDP de ping/heartbeat dos servidores (porta 6000).
+ *
+ * Vários workers, cada um com o seu DatagramChannel na mesma porta
+ * (SO_REUSEPORT: o kernel distribui os pacotes entre eles; sem suporte
+ * fica um worker só). Cada worker lê até LOTE datagramas por acordada do
+ * Selector em slots de um único buffer direto, e depois responde o lote
+ * inteiro; nada é alocado por pacote.
+ *
+ * Protocolo (texto, um datagrama por mensagem):
+ *   qualquer coisa            -> eco (Cliente antigo, GeradorCarga)
+ *   ping <sessao>             -> ping <sessao> <carimbo>
+ *   pong <sessao> <carimbo>   -> sem resposta; o servidor mede o RTT
+ *
+ * A sessão é o token que o jogador recebe com o comando "sessao" no TCP
+ * (16 dígitos hex). O carimbo (32 dígitos hex) é o relógio do servidor em
+ * µs seguido de um SipHash-2-4, com chave aleatória do processo, sobre
+ * relógio, sessão e endereço de origem. O RTT é medido pelo próprio
+ * servidor; um pong com o relógio alterado, de outra sessão ou de outro
+ * endereço não confere e é ignorado. O cliente só consegue atrasar o pong
+ * (RTT maior), nunca encurtá-lo. Por sessão fica uma média móvel do RTT
+ * (SRTT/RTTVAR como no TCP) para o matchmaker e para as métricas.
+ *
+ * Um erro num datagrama (ex.: send para origem forjada ou inalcançável)
+ * só descarta aquele datagrama; o worker segue.
+ */
+final class ServicoPing {
+    // Configuração (-Dudp.workers, -Dudp.lote)
+    static final int WORKERS = Integer.getInteger("udp.workers", Math.min(4, Runtime.getRuntime().availableProcessors()));
+    static final int LOTE = Integer.getInteger("udp.lote", 32);
+    static final int TAMANHO = 1024; // maior datagrama aceito
+    static final long RTT_MAX_US = 10_000_000;
+
+    private static final byte[] PING = "ping ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = "pong ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    static final Metricas.Histograma RTT =
+            Metricas.histograma("udp_rtt_segundos", "RTT dos jogadores medido pelos pongs");
+    static final Metricas.Contador PACOTES = Metricas.contador("udp_pacotes_total", "datagramas recebidos");
+    static final Metricas.Contador DESCARTADOS =
+            Metricas.contador("udp_respostas_descartadas_total", "respostas que não couberam no buffer do socket");
+    static final Metricas.Contador ERROS = Metricas.contador("udp_erros_total", "datagramas descartados por erro de I/O");
+    static final Metricas.Contador PONGS_INVALIDOS =
+            Metricas.contador("udp_pongs_invalidos_total", "pongs com carimbo que não confere");
+
+    /** Estimativa do RTT de uma sessão (microssegundos). */
+    static final class Rtt {
+        private long srtt, rttvar, ultimo, amostras;
+
+        synchronized void registrar(long us) {
+            if (amostras == 0) {
+                srtt = us;
+                rttvar = us / 2;
+            } else {
+                rttvar = (3 * rttvar + Math.abs(srtt - us)) / 4;
+                srtt = (7 * srtt + us) / 8;
+            }
+            ultimo = us;
+            amostras++;
+        }
+
+        synchronized long srttUs() { return srtt; }
+        synchronized long rttvarUs() { return rttvar; }
+        synchronized long ultimoUs() { return ultimo; }
+        synchronized long amostras() { return amostras; }
+    }
+
+    private final int porta;
+    private final ConcurrentHashMap<Long, Rtt> sessoes = new ConcurrentHashMap<>();
+    private final long chave0, chave1; // chave do SipHash dos carimbos
+    private final long base = System.nanoTime();
+
+    ServicoPing(int porta) {
+        this.porta = porta;
+        SecureRandom r = new SecureRandom();
+        this.chave0 = r.nextLong();
+        this.chave1 = r.nextLong();
+    }
+
+    /** Abre os canais e inicia os workers (threads daemon). */
+    void iniciar() throws IOException {
+        boolean reusePort;
+        try (DatagramChannel teste = DatagramChannel.open()) {
+            reusePort = WORKERS > 1 && teste.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+        int n = reusePort ? WORKERS : 1;
+        for (int i = 0; i < n; i++) {
+            int id = i;
+            DatagramChannel canal = DatagramChannel.open(StandardProtocolFamily.INET);
+            if (reusePort) canal.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            canal.bind(new InetSocketAddress(porta));
+            canal.configureBlocking(false);
+            Thread t = new Thread(() -> rodar(canal), "udp-" + id);
+            t.setDaemon(true);
+            t.start();
+        }
+        Metricas.medidor("udp_sessoes", "sessões com token de ping", sessoes::size);
+        Log.info(Log.REDE, "[UDP] pronto em {} ({} workers{})", porta, n, reusePort ? ", SO_REUSEPORT" : "");
+    }
+
+    /** Token novo para um jogador que conectou. */
+    long novaSessao() {
+        while (true) {
+            long s = ThreadLocalRandom.current().nextLong() >>> 1;
+            if (sessoes.putIfAbsent(s, new Rtt()) == null) return s;
+        }
+    }
+
+    /** Esquece a sessão (jogador desconectou). */
+    void encerrar(long sessao) { sessoes.remove(sessao); }
+
+    /** RTT da sessão ou null se ela não existe. */
+    Rtt rtt(long sessao) { return sessoes.get(sessao); }
+
+    /** SRTT em ms, -1 se a sessão ainda não mandou nenhum pong. */
+    long rttMs(long sessao) {
+        Rtt r = sessoes.get(sessao);
+        return r == null || r.amostras() == 0 ? -1 : r.srttUs() / 1000;
+    }
+
+    static String texto(long sessao) {
+        return String.format("%016x", sessao);
+    }
+
+    // ---------- worker ----------
+    private void rodar(DatagramChannel canal) {
+        ByteBuffer bloco = ByteBuffer.allocateDirect(LOTE * TAMANHO);
+        ByteBuffer[] slots = new ByteBuffer[LOTE];
+        for (int i = 0; i < LOTE; i++) slots[i] = bloco.slice(i * TAMANHO, TAMANHO);
+        SocketAddress[] origens = new SocketAddress[LOTE];
+        try (Selector sel = Selector.open()) {
+            canal.register(sel, SelectionKey.OP_READ);
+            while (true) {
+                sel.select();
+                sel.selectedKeys().clear();
+                // lê até esvaziar o socket ou encher o lote
+                int n;
+                do {
+                    n = 0;
+                    while (n < LOTE) {
+                        ByteBuffer b = slots[n];
+                        b.clear();
+                        SocketAddress de;
+                        try {
+                            de = canal.receive(b);
+                        } catch (IOException e) {
+                            falha("receive", null, e);
+                            continue;
+                        }
+                        if (de == null) break;
+                        b.flip();
+                        origens[n++] = de;
+                    }
+                    PACOTES.add(n);
+                    long agoraUs = (System.nanoTime() - base) / 1000;
+                    for (int i = 0; i < n; i++) {
+                        try {
+                            if (tratar(slots[i], origens[i], agoraUs) && canal.send(slots[i], origens[i]) == 0) DESCARTADOS.inc();
+                        } catch (IOException | RuntimeException e) {
+                            falha("send", origens[i], e);
+                        }
+                        origens[i] = null;
+                    }
+                } while (n == LOTE);
+            }
+        } catch (IOException e) {
+            Log.erro(Log.REDE, "[UDP] erro no selector, worker parado: {}", e.getMessage());
+        }
+    }
+
+    // erro de um datagrama só: conta, loga e segue (uma origem forjada não
+    // pode derrubar o worker; debug para não virar enxurrada de log)
+    private static void falha(String op, SocketAddress origem, Exception e) {
+        ERROS.inc();
+        Log.debug(Log.REDE, "[UDP] {} para {} falhou: {}", op, origem, e.toString());
+    }
+
+    // true = responder com o conteúdo (já ajustado) do buffer
+    private boolean tratar(ByteBuffer b, SocketAddress origem, long agoraUs) {
+        if (comeca(b, PING)) {
+            int fim = fimToken(b, PING.length);
+            long sessao = hex(b, PING.length, fim);
+            if (sessao >= 0 && sessoes.containsKey(sessao) && b.capacity() - fim >= 33) {
+                b.limit(fim + 33).position(fim);
+                b.put((byte) ' ');
+                putHex(b, agoraUs);
+                putHex(b, marca(agoraUs, sessao, origem));
+                b.flip();
+            }
+            return true;
+        }
+        if (comeca(b, PONG)) {
+            int fim = fimToken(b, PONG.length);
+            long sessao = hex(b, PONG.length, fim);
+            int ini = fim + 1;
+            if (sessao < 0 || fimToken(b, ini) != ini + 32) return false;
+            long enviado = hex(b, ini, ini + 16);
+            long tag = hex(b, ini + 16, ini + 32);
+            Rtt r = sessoes.get(sessao);
+            if (enviado < 0 || tag != marca(enviado, sessao, origem)) {
+                PONGS_INVALIDOS.inc();
+            } else if (r != null) {
+                long us = agoraUs - enviado;
+                if (us >= 0 && us <= RTT_MAX_US) {
+                    r.registrar(us);
+                    RTT.registrarNanos(us * 1000);
+                }
+            }
+            return false;
+        }
+        return true; // eco
+    }
+
+    // tag do carimbo: SipHash-2-4 (63 bits) de relógio, sessão e origem
+    private long marca(long us, long sessao, SocketAddress origem) {
+        long endereco = 0;
+        if (origem instanceof InetSocketAddress) {
+            InetSocketAddress a = (InetSocketAddress) origem;
+            // hashCode de Inet4Address é o próprio endereço (sem alocar)
+            endereco = ((long) a.getAddress().hashCode() << 16) | a.getPort();
+        }
+        return sipHash24(chave0, chave1, us, sessao, endereco) >>> 1;
+    }
+
+    // SipHash-2-4 de uma mensagem de exatamente 3 palavras de 64 bits (24 bytes)
+    static long sipHash24(long k0, long k1, long m0, long m1, long m2) {
+        long v0 = k0 ^ 0x736f6d6570736575L, v1 = k1 ^ 0x646f72616e646f6dL;
+        long v2 = k0 ^ 0x6c7967656e657261L, v3 = k1 ^ 0x7465646279746573L;
+        for (int i = 0; i < 5; i++) {
+            long m = i == 0 ? m0 : i == 1 ? m1 : i == 2 ? m2 : 24L << 56; // último bloco: só o tamanho
+            int rodadas = 2;
+            if (i < 4) {
+                v3 ^= m;
+            } else {
+                v2 ^= 0xff; // finalização
+                rodadas = 4;
+            }
+            for (int r = 0; r < rodadas; r++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            if (i < 4) v0 ^= m;
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    private static void putHex(ByteBuffer b, long v) {
+        for (int s = 60; s >= 0; s -= 4) b.put(HEX[(int) (v >>> s) & 0xF]);
+    }
+
+    private static boolean comeca(ByteBuffer b, byte[] prefixo) {
+        if (b.limit() < prefixo.length) return false;
+        for (int i = 0; i < prefixo.length; i++) {
+            if (b.get(i) != prefixo[i]) return false;
+        }
+        return true;
+    }
+
+    // posição do primeiro espaço/fim de linha a partir de "de"
+    private static int fimToken(ByteBuffer b, int de) {
+        int i = de;
+        while (i < b.limit()) {
+            byte c = b.get(i);
+            if (c == ' ' || c == '\n' || c == '\r') break;
+            i++;
+        }
+        return i;
+    }
+
+    // hex sem sinal de até 16 dígitos em [de, ate); -1 se vazio/inválido
+    private static long hex(ByteBuffer b, int de, int ate) {
+        if (ate <= de || ate - de > 16 || ate > b.limit()) return -1;
+        long v = 0;
+        for (int i = de; i < ate; i++) {
+            int c = b.get(i), d;
+            if (c >= '0' && c <= '9') d = c - '0';
+            else if (c >= 'a' && c <= 'f') d = c - 'a' + 10;
+            else if (c >= 'A' && c <= 'F') d = c - 'A' + 10;
+            else return -1;
+            v = (v << 4) | d;
+        }
+        return v < 0 ? -1 : v;
+    }
+}
@@ -1,5 +1,8 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
@@ -8,16 +11,29 @@ import java.util.concurrent.locks.*;
  * Servidor de jogo (TCP + UDP) em Java usando threads.
  *
  * Funcionalidades:
- * - TCP para comandos do jogo: listar, pegar, mao, duelo, sair
- * - UDP para ping (eco)
- * - Pacote de 3 cartas no comando "pegar" (mais chance de comum que rara)
+ * - TCP para comandos do jogo: listar, pegar, mao, duelo, login, sair
+ * - UDP para ping (eco e RTT por sessão, ver ServicoPing)
+ * - Pacote de 3 cartas no comando "pegar" (mais chance de comum que rara);
+ *   "pegar N" abre N pacotes de uma vez (até PEGAR_MAX) numa única resposta
  * - Cartas raras são únicas (removidas globalmente)
- * - Duelo 1vs1: soma ataque/defesa das mãos (mínimo 2 cartas por jogador)
+ * - Duelo 1vs1: soma ataque/defesa das mãos (mínimo 2 cartas por jogador);
+ *   adversários pareados por força da mão e faixa de RTT (ver Matchmaker)
+ * - Protocolo texto (linhas + END) ou binário, negociado no primeiro byte
+ *   (ver ProtocoloBinario)
+ * - "login <nome>" liga a conexão a uma conta: a mão fica com a conta e, com
+ *   -Djornal.dir=DIR, mãos e raras entregues sobrevivem a reinícios (ver Jornal).
+ *   Contas NÃO são autenticadas: o nome é só uma chave, e quem souber o nome
+ *   entra na conta enquanto ela estiver livre. Serve para rede confiável/testes;
+ *   exposto a terceiros, precisa de senha/token na frente. Uma conta aceita uma
+ *   conexão por vez, e o login só vale antes de pegar cartas (a mão da conexão
+ *   não é juntada à da conta)
  *
  * Compilar:
  *   javac Servidor.java
  * Rodar:
- *   java Servidor
+ *   java Servidor          (uma thread por conexão)
+ *   java Servidor --nio    (event loops NIO com Selector, para milhares de conexões)
+ *   java Servidor --virtual (uma thread virtual por conexão; requer Java 21+)
  *
  * Ajuste portas e probabilidades logo abaixo.
  */
@@ -27,179 +43,549 @@ public class Servidor {
     static final int TCP_PORT = 5000;
     static final int UDP_PORT = 6000;
 
-    // Probabilidade de sortear uma carta rara (0.0 - 1.0)
-    // Ex.: 0.15 = 15% de chance de rara, 85% comum
-    static final double RARE_PROBABILITY = 0.15;
+    // Pesos dos tiers nos pacotes, se -Ddrop.pesos não vier (ver TabelaDrop)
+    // Ex.: comum=85,rara=15 = 15% de chance de rara, 85% comum
+    static final String DROP_PESOS = "comum=85,rara=15";
+
+    // Modo durável: diretório do jornal de concessões (-Djornal.dir; sem ele, só memória)
+    static final String JORNAL_DIR = System.getProperty("jornal.dir");
+
+    // Máximo de pacotes num único "pegar N" (-Dpegar.max=N)
+    static final int PEGAR_MAX = Integer.getInteger("pegar.max", 20);
+
+    // Catálogos com maior id abaixo disso usam a mão densa (-Dmao.densa.max, ver Mao)
+    static final int MAO_DENSA_MAX = Integer.getInteger("mao.densa.max", 4096);
+
+    // Modo NIO: número de event loops (cada um com seu Selector) e limite de
+    // bytes por linha de comando (protege contra clientes que nunca mandam \n)
+    static final int NIO_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    static final int NIO_MAX_LINHA = 8192;
 
     // ===== ESTADO COMPARTILHADO =====
-    // Listas de cartas. cartasRaras: únicas (removidas ao entregar).
-    // cartasComuns: repetíveis.
-    static final List<Card> cartasRaras = Collections.synchronizedList(new ArrayList<>());
-    static final List<Card> cartasComuns = Collections.synchronizedList(new ArrayList<>());
+    // Catálogo mapeado (ver CatalogoCartas), montado em initCards antes de
+    // aceitar conexões: nada é copiado na partida. Cada Card é criada na
+    // primeira vez que sai num pacote ou é lida de uma mão e depois
+    // compartilhada (flyweight); as mãos guardam quantidades por id (ver Mao).
+    static volatile CatalogoCartas.Cartas<Card> cartas;
+    // Raras (únicas): índice no catálogo e id por slot, em ordem de id; quais
+    // ainda não foram entregues fica em rarasLivres
+    static volatile int[] raras = new int[0];
+    static volatile int[] idsRaras = new int[0];
+    // Sorteio dos tiers de cada slot e das cartas repetíveis (montada em initCards)
+    static volatile TabelaDrop<Card> drop;
+
+    // Raras livres sem lock global: cada "pegar" reserva com CAS (ver PoolRaras)
+    static volatile PoolRaras rarasLivres = new PoolRaras(0);
 
-    // Lock para operações complexas com cartas (ex.: sortear e remover rara)
-    static final ReentrantLock cardsLock = new ReentrantLock();
+    // Resposta do "listar" pronta em bytes; trocada inteira quando uma rara sai
+    static volatile Listagem listagem;
+    static volatile Listagem.Montador montador;
+    private static final Object listagemLock = new Object();
+
+    // Mãos por conta ("login <nome>"); quem não entrou numa conta fica com a mão da conexão
+    static final ConcurrentMap<String, Mao> contas = new ConcurrentHashMap<>();
+    // Conexão que está usando cada conta (uma por vez; liberada no close)
+    static final ConcurrentMap<String, Player> sessoesContas = new ConcurrentHashMap<>();
+    static final java.util.regex.Pattern NOME_CONTA = java.util.regex.Pattern.compile("[A-Za-z0-9_.-]{1,32}");
+
+    // Jornal das concessões (null = modo só em memória); ver JornalServidor
+    static volatile Jornal jornal;
 
     // Mapeamento de clientes ativos (para eventual uso/log)
     static final ConcurrentMap<Socket, Player> players = new ConcurrentHashMap<>();
 
-    // Fila de duelo (thread-safe)
-    static final BlockingQueue<Player> duelQueue = new LinkedBlockingQueue<>();
+    // Fila de duelo: pareia por força da mão (ATK + DEF) dentro da faixa de
+    // RTT do jogador (SRTT dos pings UDP); a janela cresce com a espera
+    static final long FAIXA_RTT_MS = Long.getLong("match.faixa.rtt.ms", 50);
+    static final Matchmaker<Player> matchmaker =
+            new Matchmaker<>(p -> p.forca.ataque + p.forca.defesa, p -> faixaRtt(Servidor.ping.rttMs(p.sessao)), Servidor::resolverPartida);
+
+    // faixas de FAIXA_RTT_MS; sem pong ainda (-1) vai para a última, junto dos mais lentos
+    static int faixaRtt(long rttMs) {
+        return rttMs < 0 ? Matchmaker.FAIXAS - 1 : (int) Math.min(Matchmaker.FAIXAS - 1, rttMs / FAIXA_RTT_MS);
+    }
+
+    // Métricas (ver Metricas): latência por comando, sorteio e duelo
+    static final Metricas.PorComando LATENCIA_COMANDO =
+            Metricas.porComando("servidor_comando_segundos", "tempo de processarComando por comando");
+    static final Metricas.Histograma LATENCIA_SORTEIO =
+            Metricas.histograma("servidor_sorteio_segundos", "sortear os pacotes de um pegar");
+    static final Metricas.Histograma LATENCIA_DUELO =
+            Metricas.histograma("duelo_resolucao_segundos", "resolver um duelo e responder aos dois jogadores");
+
+    // Ping/heartbeat UDP com RTT por sessão (ver ServicoPing)
+    static final ServicoPing ping = new ServicoPing(UDP_PORT);
 
     // Executor para tarefas que resolvem partidas sem bloquear threads de IO
-    static final ExecutorService duelExecutor = Executors.newCachedThreadPool();
+    // (trocado por um executor de threads virtuais com --virtual)
+    static ExecutorService duelExecutor = Executors.newCachedThreadPool();
 
     public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--virtual") && ThreadsVirtuais.habilitar()) {
+            duelExecutor = ThreadsVirtuais.novoExecutor("duelo-");
+        }
+
         // Inicializa cartas (exemplo pronto)
         initCards();
+        if (JORNAL_DIR != null) {
+            // mãos das contas e raras já entregues, do snapshot + jornal
+            jornal = Jornal.abrir(java.nio.file.Paths.get(JORNAL_DIR), new JornalServidor());
+            atualizarListagem();
+            Log.info(Log.SERVIDOR, "[JORNAL] contas={} raras livres={}", contas.size(), rarasLivres.livres());
+        }
+        matchmaker.iniciar();
+        registrarMedidores();
 
-        // Inicia thread UDP para ping/echo
-        Thread udpThread = new Thread(() -> runUdpServer(UDP_PORT));
-        udpThread.setDaemon(true);
-        udpThread.start();
+        // UDP: eco/ping com RTT por sessão
+        ping.iniciar();
+
+        if (Arrays.asList(args).contains("--nio")) {
+            try {
+                runNioServer(TCP_PORT);
+            } finally {
+                duelExecutor.shutdown();
+            }
+            return;
+        }
 
         // Inicia TCP server
+        ThreadFactory clientThreads = ThreadsVirtuais.fabrica("cliente-");
         try (ServerSocket serverSocket = new ServerSocket(TCP_PORT)) {
-            System.out.println("[SERVIDOR] TCP ouvindo em " + TCP_PORT + " | UDP: " + UDP_PORT);
+            Log.info(Log.SERVIDOR, "[SERVIDOR] TCP ouvindo em {} | UDP: {}", TCP_PORT, UDP_PORT);
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 clientSocket.setTcpNoDelay(true);
                 Player p = new Player(clientSocket);
                 players.put(clientSocket, p);
-                Thread t = new Thread(new ClientHandler(p));
-                t.start();
+                clientThreads.newThread(new ClientHandler(p)).start();
             }
         } finally {
             duelExecutor.shutdown();
         }
     }
 
+    static void registrarMedidores() {
+        Metricas.medidor("servidor_conexoes", "jogadores conectados", players::size);
+        Metricas.medidor("duelo_fila", "jogadores esperando adversário", matchmaker::esperando);
+        Metricas.medidor("duelo_pares_total", "duelos pareados desde o início", matchmaker::pares);
+        Metricas.medidor("duelo_espera_p99_ms", "p99 da espera na fila de duelo", () -> matchmaker.percentilMs(99));
+        Metricas.medidor("raras_livres", "raras ainda não entregues", () -> rarasLivres.livres());
+        Metricas.medidor("servidor_contas", "contas com mão guardada", contas::size);
+        Metricas.iniciar("Servidor");
+    }
+
     // ============================
-    // UDP server (ping/echo)
+    // TCP server NIO (event loops com Selector)
     // ============================
-    static void runUdpServer(int port) {
-        try (DatagramSocket ds = new DatagramSocket(port)) {
-            System.out.println("[UDP] Servidor UDP pronto em porta " + port);
-            byte[] buf = new byte[1024];
+    // Uma thread aceita conexões e as distribui em round-robin entre NIO_LOOPS
+    // event loops. Cada loop faz leitura não-bloqueante, separa linhas e chama
+    // processarComando; respostas vão para a fila de saída da conexão, com o
+    // mesmo enquadramento "msg\nEND\n" do modo por threads.
+    static void runNioServer(int port) throws IOException {
+        LoopNio[] loops = new LoopNio[NIO_LOOPS];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new LoopNio();
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(HOST, port));
+            Log.info(Log.SERVIDOR, "[SERVIDOR] TCP (NIO, {} loops) ouvindo em {} | UDP: {}", loops.length, port, UDP_PORT);
+            int proximo = 0;
+            while (true) {
+                SocketChannel canal = server.accept();
+                canal.socket().setTcpNoDelay(true);
+                canal.configureBlocking(false);
+                loops[proximo].registrar(canal);
+                proximo = (proximo + 1) % loops.length;
+            }
+        }
+    }
+
+    static class LoopNio implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannel> novos = new ConcurrentLinkedQueue<>();
+        final Queue<ConexaoNio> querEscrever = new ConcurrentLinkedQueue<>();
+        volatile Thread thread;
+
+        LoopNio() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void registrar(SocketChannel canal) {
+            novos.add(canal);
+            selector.wakeup();
+        }
+
+        void pedirEscrita(ConexaoNio c) {
+            querEscrever.add(c);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
             while (true) {
-                DatagramPacket pkt = new DatagramPacket(buf, buf.length);
-                ds.receive(pkt);
-                // Echo back (resposta imediata)
-                DatagramPacket resp = new DatagramPacket(pkt.getData(), pkt.getLength(), pkt.getAddress(), pkt.getPort());
-                ds.send(resp);
+                try {
+                    selector.select();
+                    aceitarNovos();
+                    ConexaoNio c;
+                    while ((c = querEscrever.poll()) != null) c.habilitarEscrita();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+                        ConexaoNio conexao = (ConexaoNio) key.attachment();
+                        try {
+                            if (key.isReadable()) conexao.lerDisponivel();
+                            if (key.isValid() && key.isWritable()) conexao.escreverPendente();
+                        } catch (RuntimeException e) {
+                            // bug num comando derruba só a conexão dele, não o loop inteiro
+                            Log.erro(Log.CONEXAO, "[NIO] Erro com {}: {}", conexao.player.getPeerName(), e);
+                            conexao.fecharAposErro();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.erro(Log.REDE, "[NIO] Erro no event loop: {}", e);
+                }
+            }
+        }
+
+        private void aceitarNovos() {
+            SocketChannel canal;
+            while ((canal = novos.poll()) != null) {
+                try {
+                    ConexaoNio c = new ConexaoNio(canal, this);
+                    c.key = canal.register(selector, SelectionKey.OP_READ, c);
+                    Player p = new Player(c);
+                    c.player = p;
+                    players.put(p.socket, p);
+                    Log.info(Log.CONEXAO, "[CONEXÃO] Novo cliente: {}", p.getPeerName());
+                    p.send("Bem-vindo ao servidor de cartas!");
+                } catch (IOException e) {
+                    Log.erro(Log.REDE, "[NIO] Erro registrando conexão: {}", e.getMessage());
+                    try { canal.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+    }
+
+    static class ConexaoNio {
+        final SocketChannel canal;
+        final LoopNio loop;
+        final ByteBuffer leitura = ByteBuffer.allocate(4096);
+        final ByteArrayOutputStream linha = new ByteArrayOutputStream(128);
+        // ByteBuffer[] (partes de uma resposta, escritas juntas) ou Barreira
+        // (respostas esperando o fsync do jornal)
+        final Queue<Object> saida = new ConcurrentLinkedQueue<>();
+        SelectionKey key;
+        Player player;
+        boolean negociado = false; // primeiro byte já visto?
+        ProtocoloBinario.Decodificador decodificador; // != null no modo binário
+
+        ConexaoNio(SocketChannel canal, LoopNio loop) {
+            this.canal = canal;
+            this.loop = loop;
+        }
+
+        // pode ser chamado por qualquer thread (event loop ou duelExecutor);
+        // as partes entram como um item só e saem num write com gathering
+        void enviar(byte[]... partes) {
+            ByteBuffer[] bufs = new ByteBuffer[partes.length];
+            for (int i = 0; i < partes.length; i++) bufs[i] = ByteBuffer.wrap(partes[i]);
+            saida.add(bufs);
+            if (Thread.currentThread() == loop.thread) {
+                escreverPendente();
+            } else {
+                loop.pedirEscrita(this);
+            }
+        }
+
+        // o que entrar na saída depois da barreira só sai quando ela for liberada
+        static final class Barreira {
+            volatile boolean liberada;
+        }
+
+        // Segura as próximas respostas até o registro seq do jornal ter fsync,
+        // sem parar o event loop (a thread do jornal libera e pede a escrita)
+        void segurarAte(Jornal j, long seq) {
+            Barreira b = new Barreira();
+            saida.add(b);
+            j.quandoDuravel(seq, () -> {
+                b.liberada = true;
+                loop.pedirEscrita(this);
+            });
+        }
+
+        void habilitarEscrita() {
+            if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        // só roda na thread do event loop
+        void escreverPendente() {
+            try {
+                Object item;
+                while ((item = saida.peek()) != null) {
+                    if (item instanceof Barreira) {
+                        if (!((Barreira) item).liberada) break; // resto sai quando o jornal liberar
+                        saida.poll();
+                        continue;
+                    }
+                    ByteBuffer[] bufs = (ByteBuffer[]) item;
+                    canal.write(bufs);
+                    if (bufs[bufs.length - 1].hasRemaining()) {
+                        // buffer do socket cheio: espera OP_WRITE
+                        habilitarEscrita();
+                        return;
+                    }
+                    saida.poll();
+                }
+                if (key.isValid()) key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                Log.erro(Log.REDE, "[SEND] Erro enviando a {}: {}", player.getPeerName(), e.getMessage());
+                desconectar();
+            }
+        }
+
+        void lerDisponivel() {
+            try {
+                leitura.clear();
+                int n = canal.read(leitura);
+                if (n < 0) {
+                    desconectar();
+                    return;
+                }
+                leitura.flip();
+                if (!negociado && leitura.hasRemaining()) {
+                    negociado = true;
+                    if ((leitura.get(leitura.position()) & 0xFF) == ProtocoloBinario.MAGIC) {
+                        leitura.get();
+                        decodificador = new ProtocoloBinario.Decodificador(ProtocoloBinario.MAX_PAYLOAD_PEDIDO);
+                        player.binario = true;
+                        player.sendQuadro(ProtocoloBinario.hello());
+                    }
+                }
+                if (decodificador != null) {
+                    decodificador.adicionar(leitura);
+                    ProtocoloBinario.Quadro q;
+                    while ((q = decodificador.proximo()) != null) {
+                        if (!processarQuadro(player, q)) {
+                            desconectar();
+                            return;
+                        }
+                    }
+                    return;
+                }
+                while (leitura.hasRemaining()) {
+                    byte b = leitura.get();
+                    if (b == '\n') {
+                        if (!tratarLinha()) return;
+                    } else if (linha.size() >= NIO_MAX_LINHA) {
+                        Log.aviso(Log.REDE, "[NIO] Linha muito longa de {}", player.getPeerName());
+                        desconectar();
+                        return;
+                    } else {
+                        linha.write(b);
+                    }
+                }
+            } catch (IOException e) {
+                Log.erro(Log.CONEXAO, "[CLIENT HANDLER] Erro com {}: {}", player.getPeerName(), e.getMessage());
+                desconectar();
             }
-        } catch (IOException e) {
-            System.err.println("[UDP] Erro UDP: " + e.getMessage());
+        }
+
+        // retorna false se a conexão foi encerrada
+        private boolean tratarLinha() {
+            byte[] bytes = linha.toByteArray();
+            linha.reset();
+            int len = bytes.length;
+            if (len > 0 && bytes[len - 1] == '\r') len--; // aceita CRLF como o readLine
+            String line = new String(bytes, 0, len, StandardCharsets.UTF_8).trim();
+            if (line.isEmpty()) return true;
+            if (!processarComando(player, line)) {
+                desconectar();
+                return false;
+            }
+            return true;
+        }
+
+        // depois de um erro inesperado: fecha sem tentar esvaziar a saída
+        void fecharAposErro() {
+            saida.clear();
+            try {
+                desconectar();
+            } catch (RuntimeException e) {
+                try { canal.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        void desconectar() {
+            if (!player.connected) return;
+            // tenta esvaziar a saída (ex.: a despedida do "sair") antes de fechar
+            try {
+                Object item;
+                while ((item = saida.poll()) != null) {
+                    if (item instanceof Barreira) {
+                        if (!((Barreira) item).liberada) break; // sem fsync não confirma
+                        continue;
+                    }
+                    ByteBuffer[] bufs = (ByteBuffer[]) item;
+                    canal.write(bufs);
+                    if (bufs[bufs.length - 1].hasRemaining()) break;
+                }
+            } catch (IOException ignored) {}
+            Log.info(Log.CONEXAO, "[DESCONECTADO] {}", player.getPeerName());
+            player.close();
         }
     }
 
     // ============================
-    // Inicialização de cartas (15 raras, 30 comuns conforme pedido)
+    // Inicialização de cartas (catálogo em arquivo: 15 raras e 30 comuns no padrão)
     // ============================
     static void initCards() {
-        cartasRaras.clear();
-        cartasComuns.clear();
-
-        // Cartas raras (IDs começando em 101)
-        cartasRaras.add(new Card(101, "Dragão Lendário", 14, 12));
-        cartasRaras.add(new Card(102, "Fênix de Fogo", 13, 9));
-        cartasRaras.add(new Card(103, "Mago Supremo", 12, 11));
-        cartasRaras.add(new Card(104, "Titã de Pedra", 10, 15));
-        cartasRaras.add(new Card(105, "Serpente Marinha", 11, 10));
-        cartasRaras.add(new Card(106, "Cavaleiro Negro", 13, 11));
-        cartasRaras.add(new Card(107, "Anjo da Guarda", 9, 14));
-        cartasRaras.add(new Card(108, "Demônio Ancestral", 15, 9));
-        cartasRaras.add(new Card(109, "Dragão de Gelo", 12, 13));
-        cartasRaras.add(new Card(110, "Fada Suprema", 10, 12));
-        cartasRaras.add(new Card(111, "Besta Colossal", 14, 10));
-        cartasRaras.add(new Card(112, "Samurai Fantasma", 13, 10));
-        cartasRaras.add(new Card(113, "Guardião Celestial", 11, 14));
-        cartasRaras.add(new Card(114, "Minotauro Real", 12, 12));
-        cartasRaras.add(new Card(115, "Fera Mística", 13, 13));
-
-        // Cartas comuns (IDs 1..30)
-        Random rnd = new Random();
-        for (int i = 1; i <= 30; i++) {
-            // variação de poder
-            int atk = 3 + rnd.nextInt(7);  // 3..9
-            int def = 2 + rnd.nextInt(7);  // 2..8
-            cartasComuns.add(new Card(i, "Comum " + i, atk, def));
-        }
-
-        System.out.println("[CARDS] Inicializadas cartas: raras=" + cartasRaras.size() + " comuns=" + cartasComuns.size());
+        // catálogo compartilhado pelos servidores, lido do arquivo mapeado (ver CatalogoCartas)
+        CatalogoCartas arquivo = CatalogoCartas.padrao();
+        CatalogoCartas.Cartas<Card> porIndice = arquivo.cartas(i -> new Card(arquivo, i));
+        Map<Integer, int[]> porTier = arquivo.indicesPorTier();
+        int[] indicesRaras = porTier.getOrDefault(CatalogoCartas.RARA, new int[0]);
+        int[] ids = new int[indicesRaras.length];
+        for (int slot = 0; slot < ids.length; slot++) ids[slot] = arquivo.id(indicesRaras[slot]);
+
+        cartas = porIndice;
+        raras = indicesRaras;
+        idsRaras = ids;
+        drop = TabelaDrop.configurada(DROP_PESOS, porTier, porIndice::em, Set.of(CatalogoCartas.RARA));
+        rarasLivres = new PoolRaras(indicesRaras.length);
+        montador = new Listagem.Montador(arquivo, porTier.getOrDefault(CatalogoCartas.COMUM, new int[0]),
+                "Cartas raras disponíveis:", "\nCartas comuns (exemplo):", i -> porIndice.em(i).toString());
+        atualizarListagem();
+
+        Log.info(Log.SERVIDOR, "[CARDS] Catálogo: {} cartas, raras={}", arquivo.tamanho(), indicesRaras.length);
+        Log.info(Log.SERVIDOR, "[CARDS] drop: {}", drop);
+    }
+
+    // slot da rara em rarasLivres pelo id (-1 = não é rara)
+    static int slotDaRara(int id) {
+        int slot = Arrays.binarySearch(idsRaras, id);
+        return slot < 0 ? -1 : slot;
     }
 
     // ============================
-    // Sortear pacote de 3 cartas
+    // Sortear pacote(s) de 3 cartas
     // ============================
     static List<Card> sortearPacote() {
-        List<Card> pacote = new ArrayList<>(3);
-        Random rnd = new Random();
+        return sortearPacotes(1);
+    }
 
-        // Proteger operações que podem alterar cartasRaras
-        cardsLock.lock();
-        try {
-            for (int i = 0; i < 3; i++) {
-                boolean tryRare = !cartasRaras.isEmpty() && rnd.nextDouble() < RARE_PROBABILITY;
-                if (tryRare) {
-                    // pega e remove a primeira rara disponível (poderia ser aleatória)
-                    Card c = cartasRaras.remove(0);
-                    pacote.add(c.clone()); // copia antes de dar ao jogador
-                } else {
-                    // comum: permite repetição — devolve cópia
-                    Card base = cartasComuns.get(rnd.nextInt(cartasComuns.size()));
-                    pacote.add(base.clone());
+    // "pegar N": os N pacotes saem numa passada só, devolvidos em sequência
+    static List<Card> sortearPacotes(int quantidade) {
+        return sortearPacotes(quantidade, null);
+    }
+
+    // pity = contador do jogador (null = sem pity, ex.: benchmark)
+    static List<Card> sortearPacotes(int quantidade, TabelaDrop.Pity pity) {
+        long t0 = System.nanoTime();
+        TabelaDrop<Card> tabela = drop;
+        int[] tiers = tabela.sortearTiers(quantidade, pity);
+        List<Card> pacote = new ArrayList<>(tiers.length);
+
+        // Sem lock: a reserva da rara é um CAS no PoolRaras, então vários
+        // "pegar" sorteiam em paralelo e cada rara continua saindo uma vez só
+        boolean saiuRara = false;
+        for (int k = 0; k < tiers.length; k++) {
+            int tier = tiers[k];
+            if (tabela.unico(tier)) {
+                // reserva uma rara livre aleatória (-1 se acabaram)
+                int slot = rarasLivres.reservar(ThreadLocalRandom.current());
+                if (slot >= 0) {
+                    pacote.add(cartas.em(raras[slot])); // a própria carta do catálogo (imutável)
+                    saiuRara = true;
+                    continue;
                 }
+                tier = tiers[k] = tabela.substituto();
             }
-        } finally {
-            cardsLock.unlock();
+            // repetível: permite repetição — a mesma instância do catálogo
+            pacote.add(tabela.carta(tier));
         }
+        tabela.registrarEntrega(pity, tiers); // pity só zera com rara entregue
+        if (saiuRara) atualizarListagem();
+        LATENCIA_SORTEIO.desde(t0);
         return pacote;
     }
 
+    // Remonta a resposta do "listar" a partir do estado atual (versão + 1):
+    // só as entradas das raras livres são juntadas de novo (ver Listagem).
+    // Quem muda as raras chama depois da mudança, então a última remontagem
+    // sempre vê todas as saídas.
+    static void atualizarListagem() {
+        synchronized (listagemLock) {
+            listagem = montador.montar(rarasDisponiveis());
+        }
+    }
+
+    // Índices no catálogo das raras ainda não entregues, em ordem de id
+    static int[] rarasDisponiveis() {
+        PoolRaras livres = rarasLivres;
+        int[] indices = raras;
+        int[] r = new int[indices.length];
+        int n = 0;
+        for (int slot = 0; slot < indices.length; slot++) {
+            if (livres.disponivel(slot)) r[n++] = indices[slot];
+        }
+        return Arrays.copyOf(r, n);
+    }
+
     // ============================
     // Resolver partida entre 2 jogadores
     // ============================
     static void resolverPartida(Player p1, Player p2) {
         // Executa numa thread do executor
         duelExecutor.submit(() -> {
+            long t0 = System.nanoTime();
             try {
-                // Valida que ainda estão conectados
-                if (!p1.isConnected() || !p2.isConnected()) {
-                    if (p1.isConnected()) p1.send("Oponente desconectado.");
-                    if (p2.isConnected()) p2.send("Oponente desconectado.");
-                    return;
-                }
+                duelar(p1, p2);
+                LATENCIA_DUELO.desde(t0);
+            } catch (Exception e) {
+                Log.erro(Log.DUELO, "[DUEL] Erro ao resolver partida: {}", e.getMessage());
+            }
+        });
+    }
 
-                List<Card> mao1 = p1.getHand();
-                List<Card> mao2 = p2.getHand();
+    // Placar e respostas do duelo (síncrono; resolverPartida chama no executor)
+    static void duelar(Player p1, Player p2) {
+        // Valida que ainda estão conectados
+        if (!p1.isConnected() || !p2.isConnected()) {
+            if (p1.isConnected()) p1.send("Oponente desconectado.");
+            if (p2.isConnected()) p2.send("Oponente desconectado.");
+            return;
+        }
 
-                if (mao1.size() < 2 || mao2.size() < 2) {
-                    String msg = "Um dos jogadores não tem cartas suficientes (mínimo 2).";
-                    p1.send(msg);
-                    p2.send(msg);
-                    return;
-                }
+        // totais mantidos a cada "pegar": O(1), sem percorrer as mãos
+        ForcaMao f1 = p1.forca;
+        ForcaMao f2 = p2.forca;
 
-                int atk1 = mao1.stream().mapToInt(c -> c.ataque).sum();
-                int def1 = mao1.stream().mapToInt(c -> c.defesa).sum();
-                int atk2 = mao2.stream().mapToInt(c -> c.ataque).sum();
-                int def2 = mao2.stream().mapToInt(c -> c.defesa).sum();
+        if (f1.cartas < 2 || f2.cartas < 2) {
+            String msg = "Um dos jogadores não tem cartas suficientes (mínimo 2).";
+            p1.send(msg);
+            p2.send(msg);
+            return;
+        }
 
-                int dano1 = atk1 - def2;
-                int dano2 = atk2 - def1;
+        int dano1 = f1.ataque - f2.defesa;
+        int dano2 = f2.ataque - f1.defesa;
 
-                String resultado;
-                if (dano1 > dano2) resultado = "Jogador 1 venceu!";
-                else if (dano2 > dano1) resultado = "Jogador 2 venceu!";
-                else resultado = "Empate!";
+        String resultado;
+        if (dano1 > dano2) resultado = "Jogador 1 venceu!";
+        else if (dano2 > dano1) resultado = "Jogador 2 venceu!";
+        else resultado = "Empate!";
 
-                p1.send("Resultado do duelo: " + resultado);
-                p2.send("Resultado do duelo: " + resultado);
-            } catch (Exception e) {
-                System.err.println("[DUEL] Erro ao resolver partida: " + e.getMessage());
-            }
-        });
+        p1.send("Resultado do duelo: " + resultado);
+        p2.send("Resultado do duelo: " + resultado);
+        Log.debug(Log.DUELO, "[DUELO] {} (rtt {}ms x {}ms)", resultado, ping.rttMs(p1.sessao), ping.rttMs(p2.sessao));
     }
 
     // ============================
@@ -207,30 +593,133 @@ public class Servidor {
     // ============================
     static class Player {
         final Socket socket;
+        final BufferedInputStream rawIn;
+        final OutputStream rawOut;
         final BufferedReader in;
         final BufferedWriter out;
-        final List<Card> hand = Collections.synchronizedList(new ArrayList<>());
+        final ConexaoNio conexao; // != null no modo --nio (streams ficam nulos)
+        // ReentrantLock em vez de synchronized: não prende a carrier thread
+        // de uma thread virtual bloqueada no write/flush do socket
+        final ReentrantLock outLock = new ReentrantLock();
+        // quantidade por id do catálogo; cartas só viram texto ao responder.
+        // Trocada pela mão da conta no "login" (mesma thread dos comandos)
+        volatile Mao mao = new Mao();
+        volatile String conta; // null até o "login"
+        // pacotes seguidos sem rara, para o drop.pity
+        final TabelaDrop.Pity pity = new TabelaDrop.Pity();
+        // totais da mão, trocados junto com ela (sob o lock da mão); leitura sem lock
+        volatile ForcaMao forca = ForcaMao.VAZIA;
         volatile boolean connected = true;
+        volatile boolean binario = false; // protocolo negociado na conexão
+        final long sessao = ping.novaSessao(); // token dos pings UDP
 
         Player(Socket socket) throws IOException {
             this.socket = socket;
-            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            // streams crus por baixo do reader/writer para o modo binário
+            this.rawIn = new BufferedInputStream(socket.getInputStream());
+            this.rawOut = new BufferedOutputStream(socket.getOutputStream());
+            this.in = new BufferedReader(new InputStreamReader(rawIn, "UTF-8"));
+            this.out = new BufferedWriter(new OutputStreamWriter(rawOut, "UTF-8"));
+            this.conexao = null;
+        }
+
+        Player(ConexaoNio conexao) {
+            this.socket = conexao.canal.socket();
+            this.rawIn = null;
+            this.rawOut = null;
+            this.in = null;
+            this.out = null;
+            this.conexao = conexao;
+        }
+
+        // Lê o primeiro byte: MAGIC liga o protocolo binário; qualquer outro
+        // byte é devolvido e a conexão segue em texto.
+        boolean negociarProtocolo() throws IOException {
+            rawIn.mark(1);
+            int b = rawIn.read();
+            if (b == ProtocoloBinario.MAGIC) {
+                binario = true;
+                sendQuadro(ProtocoloBinario.hello());
+                return true;
+            }
+            if (b >= 0) rawIn.reset();
+            return false;
         }
 
         void send(String msg) {
+            if (binario) {
+                sendQuadro(ProtocoloBinario.texto(msg));
+                return;
+            }
+            if (conexao != null) {
+                if (connected) conexao.enviar((msg + "\nEND\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            outLock.lock();
             try {
-                synchronized (out) {
-                    out.write(msg + "\n");
-                    out.write("END\n"); // marcador de fim de resposta
-                    out.flush();
-                }
+                out.write(msg + "\n");
+                out.write("END\n"); // marcador de fim de resposta
+                out.flush();
+            } catch (IOException e) {
+                Log.erro(Log.REDE, "[SEND] Erro enviando a {}: {}", getPeerName(), e.getMessage());
+                close();
+            } finally {
+                outLock.unlock();
+            }
+        }
+
+        // resposta texto já codificada e com END (ex.: Listagem.texto)
+        void sendPronto(byte[] bytes) {
+            if (conexao != null) {
+                if (connected) conexao.enviar(bytes);
+                return;
+            }
+            outLock.lock();
+            try {
+                rawOut.write(bytes);
+                rawOut.flush();
             } catch (IOException e) {
-                System.err.println("[SEND] Erro enviando a " + getPeerName() + ": " + e.getMessage());
+                Log.erro(Log.REDE, "[SEND] Erro enviando a {}: {}", getPeerName(), e.getMessage());
                 close();
+            } finally {
+                outLock.unlock();
+            }
+        }
+
+        // um quadro inteiro ou em partes (ex.: Listagem.quadroCatalogo), escritas em sequência
+        void sendQuadro(byte[]... partes) {
+            if (conexao != null) {
+                if (connected) conexao.enviar(partes);
+                return;
+            }
+            outLock.lock();
+            try {
+                for (byte[] p : partes) rawOut.write(p);
+                rawOut.flush();
+            } catch (IOException e) {
+                Log.erro(Log.REDE, "[SEND] Erro enviando a {}: {}", getPeerName(), e.getMessage());
+                close();
+            } finally {
+                outLock.unlock();
             }
         }
 
+        void sendCartas(List<Card> cartas) {
+            ProtocoloBinario.Resposta r = new ProtocoloBinario.Resposta(ProtocoloBinario.OP_CARTAS, 4 + cartas.size() * 4);
+            r.varint(cartas.size());
+            for (Card c : cartas) r.carta(c.id, c.ataque, c.defesa);
+            sendQuadro(r.quadro(ProtocoloBinario.REQUISICAO.get()));
+        }
+
+        // a mão inteira numa resposta CARTAS (um registro por carta, em ordem de id)
+        void sendMao(Mao.Pares pares) {
+            List<Card> mao = cartasDaMao(pares);
+            ProtocoloBinario.Resposta r = new ProtocoloBinario.Resposta(ProtocoloBinario.OP_CARTAS, 4 + mao.size() * 4);
+            r.varint(mao.size());
+            for (Card c : mao) r.carta(c.id, c.ataque, c.defesa);
+            sendQuadro(r.quadro(ProtocoloBinario.REQUISICAO.get()));
+        }
+
         String readLine() throws IOException {
             return in.readLine();
         }
@@ -240,12 +729,21 @@ public class Servidor {
             connected = false;
             try { socket.close(); } catch (IOException ignored) {}
             players.remove(socket);
-            duelQueue.remove(this); // remove da fila se estiver esperando
+            matchmaker.cancelar(this); // remove da fila se estiver esperando
+            ping.encerrar(sessao);
+            String c = conta;
+            if (c != null) sessoesContas.remove(c, this);
         }
 
         boolean isConnected() { return connected && !socket.isClosed(); }
 
-        List<Card> getHand() { return hand; }
+        void adicionarCartas(List<Card> cartas) {
+            Mao m = mao;
+            synchronized (m) {
+                m.adicionar(cartas);
+                forca = forca.somar(cartas);
+            }
+        }
 
         String getPeerName() {
             try {
@@ -256,27 +754,461 @@ public class Servidor {
         }
     }
 
-    static class Card {
-        final int id;
-        final String nome;
+    // Mão do jogador: quantas de cada carta, por id do catálogo; nome e
+    // atributos saem do catálogo só na hora de responder.
+    // Catálogo pequeno (maior id < MAO_DENSA_MAX): contagem indexada pelo id,
+    // acesso direto. Catálogo grande: pares (id, quantidade) em dois int[]
+    // paralelos ordenados por id, então a mão ocupa 8 bytes por carta
+    // distinta que o jogador tem, e não 4 bytes por id até o maior que tem.
+    static final class Mao {
+        private final boolean densa = cartas == null || cartas.catalogo().maiorId() < MAO_DENSA_MAX;
+        private int[] ids = new int[0];          // só na esparsa
+        private int[] quantidades = new int[0];  // densa: por id; esparsa: paralelo a ids
+        private int distintas;                   // só na esparsa
+        private int total;
+
+        /** Cópia imutável da mão, em ordem de id: ids[i] aparece quantidades[i] vezes. */
+        static final class Pares {
+            final int[] ids;
+            final int[] quantidades;
+
+            Pares(int[] ids, int[] quantidades) {
+                this.ids = ids;
+                this.quantidades = quantidades;
+            }
+        }
+
+        synchronized void adicionar(List<Card> cartas) {
+            if (densa) {
+                for (Card c : cartas) {
+                    garantir(c.id);
+                    quantidades[c.id]++;
+                }
+            } else {
+                int[] novos = new int[cartas.size()];
+                for (int i = 0; i < novos.length; i++) novos[i] = cartas.get(i).id;
+                Arrays.sort(novos);
+                juntar(novos);
+            }
+            total += cartas.size();
+        }
+
+        // recuperação do snapshot
+        synchronized void adicionar(int id, int quantidade) {
+            if (densa) {
+                garantir(id);
+                quantidades[id] += quantidade;
+            } else {
+                int pos = Arrays.binarySearch(ids, 0, distintas, id);
+                if (pos < 0) {
+                    // o snapshot vem em ordem de id: quase sempre insere no fim
+                    pos = -pos - 1;
+                    if (distintas == ids.length) {
+                        ids = Arrays.copyOf(ids, Math.max(8, distintas * 2));
+                        quantidades = Arrays.copyOf(quantidades, ids.length);
+                    }
+                    System.arraycopy(ids, pos, ids, pos + 1, distintas - pos);
+                    System.arraycopy(quantidades, pos, quantidades, pos + 1, distintas - pos);
+                    ids[pos] = id;
+                    quantidades[pos] = 0;
+                    distintas++;
+                }
+                quantidades[pos] += quantidade;
+            }
+            total += quantidade;
+        }
+
+        // densa: cresce só até o maior id que o jogador tem, nunca além do
+        // maior id do catálogo
+        private void garantir(int id) {
+            if (id >= quantidades.length) {
+                int novo = Math.min(Math.max(id + 1, quantidades.length * 2), cartas.catalogo().maiorId() + 1);
+                quantidades = Arrays.copyOf(quantidades, novo);
+            }
+        }
+
+        // esparsa: soma 1 por id de "novos" (ordenado, pode repetir). Ids que
+        // já estão na mão só incrementam; havendo novos, uma fusão das duas
+        // listas ordenadas, O(distintas + novos)
+        private void juntar(int[] novos) {
+            int faltam = 0;
+            for (int k = 0; k < novos.length; k++) {
+                if ((k == 0 || novos[k] != novos[k - 1]) && Arrays.binarySearch(ids, 0, distintas, novos[k]) < 0) faltam++;
+            }
+            if (faltam == 0) {
+                for (int id : novos) quantidades[Arrays.binarySearch(ids, 0, distintas, id)]++;
+                return;
+            }
+            int cap = distintas + faltam <= ids.length ? ids.length : Math.max(distintas + faltam, ids.length * 2);
+            int[] nIds = new int[cap], nQtd = new int[cap];
+            int a = 0, b = 0, n = 0;
+            while (a < distintas || b < novos.length) {
+                if (b == novos.length || (a < distintas && ids[a] < novos[b])) {
+                    nIds[n] = ids[a];
+                    nQtd[n++] = quantidades[a++];
+                } else {
+                    int id = novos[b];
+                    int q = 0;
+                    while (b < novos.length && novos[b] == id) { q++; b++; }
+                    if (a < distintas && ids[a] == id) q += quantidades[a++];
+                    nIds[n] = id;
+                    nQtd[n++] = q;
+                }
+            }
+            ids = nIds;
+            quantidades = nQtd;
+            distintas = n;
+        }
+
+        synchronized int total() { return total; }
+
+        // cópia para montar a resposta fora do lock
+        synchronized Pares pares() {
+            if (!densa) return new Pares(Arrays.copyOf(ids, distintas), Arrays.copyOf(quantidades, distintas));
+            int n = 0;
+            for (int q : quantidades) if (q > 0) n++;
+            int[] i = new int[n], q = new int[n];
+            n = 0;
+            for (int id = 0; id < quantidades.length; id++) {
+                if (quantidades[id] > 0) {
+                    i[n] = id;
+                    q[n++] = quantidades[id];
+                }
+            }
+            return new Pares(i, q);
+        }
+    }
+
+    // ---------- jornal (modo durável, -Djornal.dir) ----------
+    // Estado durável = raras já entregues + mãos das contas. Registro do
+    // jornal (uma concessão por "pegar"):
+    //   tipo u8 (CONCESSAO), conta (tamanho u16 + UTF-8, vazia = sem conta),
+    //   n u32, n ids u32
+    // Quem não entrou numa conta só gera registro se ganhou rara (a rara
+    // some do pool; a mão da conexão não tem a quem voltar).
+    // Snapshot: n u32 + ids das raras entregues, n u32 contas e, por conta,
+    // nome (u16 + UTF-8), n u32 + pares (id u32, quantidade u32).
+    static final class JornalServidor implements Jornal.Estado {
+        static final byte CONCESSAO = 1;
+        private long ignoradas; // ids fora do catálogo atual (catálogo trocado)
+
+        /** Anexa a concessão (com a trava compartilhada do jornal); 0 = nada a registrar. */
+        static long registrar(Jornal j, String conta, List<Card> cartas) {
+            List<Card> registradas = cartas;
+            if (conta == null) {
+                registradas = new ArrayList<>();
+                for (Card c : cartas) if (slotDaRara(c.id) >= 0) registradas.add(c);
+                if (registradas.isEmpty()) return 0;
+            }
+            byte[] nome = conta == null ? new byte[0] : conta.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer b = ByteBuffer.allocate(1 + 2 + nome.length + 4 + 4 * registradas.size());
+            b.put(CONCESSAO).putShort((short) nome.length).put(nome).putInt(registradas.size());
+            for (Card c : registradas) b.putInt(c.id);
+            return j.anexar(b.array());
+        }
+
+        @Override
+        public void aplicar(ByteBuffer r) {
+            if (r.get() != CONCESSAO) throw new IllegalStateException("registro desconhecido no jornal");
+            String conta = texto(r);
+            int n = r.getInt();
+            List<Card> cartas = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                Card c = carta(r.getInt());
+                if (c == null) continue;
+                int slot = slotDaRara(c.id);
+                if (slot >= 0) rarasLivres.remover(slot);
+                cartas.add(c);
+            }
+            if (!conta.isEmpty()) contas.computeIfAbsent(conta, x -> new Mao()).adicionar(cartas);
+        }
+
+        @Override
+        public byte[] capturar() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                List<Integer> entregues = new ArrayList<>();
+                int[] ids = idsRaras;
+                for (int slot = 0; slot < ids.length; slot++) {
+                    if (!rarasLivres.disponivel(slot)) entregues.add(ids[slot]);
+                }
+                out.writeInt(entregues.size());
+                for (int id : entregues) out.writeInt(id);
+                List<Map.Entry<String, Mao>> todas = new ArrayList<>(contas.entrySet());
+                out.writeInt(todas.size());
+                for (Map.Entry<String, Mao> e : todas) {
+                    byte[] nome = e.getKey().getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(nome.length);
+                    out.write(nome);
+                    Mao.Pares p = e.getValue().pares();
+                    out.writeInt(p.ids.length);
+                    for (int k = 0; k < p.ids.length; k++) {
+                        out.writeInt(p.ids[k]);
+                        out.writeInt(p.quantidades[k]);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // ByteArrayOutputStream não lança
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public void restaurar(ByteBuffer s) {
+            int raras = s.getInt();
+            for (int i = 0; i < raras; i++) {
+                Card c = carta(s.getInt());
+                int slot = c == null ? -1 : slotDaRara(c.id);
+                if (slot >= 0) rarasLivres.remover(slot);
+            }
+            int n = s.getInt();
+            for (int i = 0; i < n; i++) {
+                String conta = texto(s);
+                Mao mao = contas.computeIfAbsent(conta, x -> new Mao());
+                int pares = s.getInt();
+                for (int k = 0; k < pares; k++) {
+                    int id = s.getInt(), quantidade = s.getInt();
+                    if (carta(id) != null) mao.adicionar(id, quantidade);
+                }
+            }
+        }
+
+        private Card carta(int id) {
+            Card c = cartas.porId(id);
+            if (c == null && ignoradas++ == 0) Log.aviso(Log.SERVIDOR, "[JORNAL] id {} fora do catálogo atual: ignorado", id);
+            return c;
+        }
+
+        private static String texto(ByteBuffer b) {
+            byte[] utf8 = new byte[b.getShort() & 0xFFFF];
+            b.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Contagem e somas de ATK/DEF de uma mão (imutável: cada "pegar" gera outra)
+    static final class ForcaMao {
+        static final ForcaMao VAZIA = new ForcaMao(0, 0, 0);
+
+        final int cartas;
         final int ataque;
         final int defesa;
 
-        Card(int id, String nome, int ataque, int defesa) {
-            this.id = id;
-            this.nome = nome;
+        ForcaMao(int cartas, int ataque, int defesa) {
+            this.cartas = cartas;
             this.ataque = ataque;
             this.defesa = defesa;
         }
 
-        @Override
-        public Card clone() {
-            return new Card(id, nome, ataque, defesa);
+        ForcaMao somar(List<Card> novas) {
+            int atk = ataque, def = defesa;
+            for (Card c : novas) {
+                atk += c.ataque;
+                def += c.defesa;
+            }
+            return new ForcaMao(cartas + novas.size(), atk, def);
+        }
+    }
+
+    // Imutável e compartilhada: no máximo uma instância por carta do
+    // catálogo, criada no primeiro uso. O nome fica no arquivo mapeado e só
+    // vira String quando a carta é escrita em texto.
+    static final class Card {
+        final int id;
+        final int ataque;
+        final int defesa;
+        private final transient CatalogoCartas catalogo;
+        private final int indice;
+        private transient String texto; // formatado no primeiro toString (String imutável: corrida benigna)
+
+        Card(CatalogoCartas catalogo, int indice) {
+            this.catalogo = catalogo;
+            this.indice = indice;
+            this.id = catalogo.id(indice);
+            this.ataque = catalogo.ataque(indice);
+            this.defesa = catalogo.defesa(indice);
+        }
+
+        String nome() {
+            return catalogo.nome(indice);
         }
 
         @Override
         public String toString() {
-            return String.format("[%d] %s (ATK %d / DEF %d)", id, nome, ataque, defesa);
+            String t = texto;
+            if (t == null) texto = t = String.format("[%d] %s (ATK %d / DEF %d)", id, nome(), ataque, defesa);
+            return t;
+        }
+    }
+
+    // ============================
+    // Processamento de um comando (compartilhado pelos modos threads e NIO)
+    // ============================
+    // Retorna false quando o cliente pediu para sair.
+    static boolean processarComando(Player player, String line) {
+        long t0 = System.nanoTime();
+        try {
+            return executarComando(player, line);
+        } finally {
+            LATENCIA_COMANDO.de(line).desde(t0);
+        }
+    }
+
+    static boolean executarComando(Player player, String line) {
+        if (Log.ativo(Log.COMANDO, Log.Nivel.INFO)) Log.info(Log.COMANDO, "[{}] {}", player.getPeerName(), line);
+        String lower = line.toLowerCase();
+
+        if (lower.equals("listar") && player.binario) {
+            player.sendQuadro(listagem.quadroCatalogo(ProtocoloBinario.REQUISICAO.get()));
+        } else if (lower.equals("listar")) {
+            // raras disponíveis e algumas comuns, já em bytes (ver atualizarListagem)
+            player.sendPronto(listagem.texto);
+        } else if (lower.equals("pegar") || lower.startsWith("pegar ")) {
+            int quantidade = quantidadePacotes(lower);
+            if (quantidade < 1) {
+                player.send("Uso: pegar [N] (N de 1 a " + PEGAR_MAX + ")");
+                return true;
+            }
+            // Sorteia N pacotes de 3 cartas e adiciona à mão do jogador; com o
+            // jornal, a concessão é registrada junto (trava compartilhada) e a
+            // resposta só sai depois do fsync do lote em que ela entrou
+            // (ver duravelAntesDeResponder)
+            Jornal j = jornal;
+            List<Card> pacote;
+            long seq = 0;
+            if (j != null) j.compartilhado().lock();
+            try {
+                pacote = sortearPacotes(quantidade, player.pity);
+                player.adicionarCartas(pacote);
+                if (j != null) seq = JornalServidor.registrar(j, player.conta, pacote);
+            } finally {
+                if (j != null) j.compartilhado().unlock();
+            }
+            duravelAntesDeResponder(player, j, seq);
+            if (player.binario) {
+                player.sendCartas(pacote);
+                return true;
+            }
+            // envia pacote em JSON-like (simples) ou linhas
+            StringBuilder sb = new StringBuilder();
+            sb.append("CARTAS_RECEBIDAS:\n");
+            for (Card c : pacote) sb.append(c.toString()).append("\n");
+            player.send(sb.toString());
+        } else if (lower.equals("mao")) {
+            Mao.Pares mao = player.mao.pares();
+            if (player.mao.total() == 0) {
+                player.send("Sua mão está vazia.");
+            } else if (player.binario) {
+                player.sendMao(mao);
+            } else {
+                player.send(textoMao(mao));
+            }
+        } else if (lower.equals("duelo")) {
+            // Entra na fila; havendo alguém na mesma faixa de força, o duelo
+            // é resolvido na hora (senão a janela de busca alarga com o tempo)
+            if (matchmaker.estaEsperando(player)) {
+                player.send("Você já está na fila de duelo.");
+            } else {
+                player.send("Você entrou na fila de duelo. Aguardando adversário...");
+                matchmaker.entrar(player);
+            }
+        } else if (lower.equals("login") || lower.startsWith("login ")) {
+            String[] partes = line.trim().split("\\s+");
+            if (partes.length != 2 || !NOME_CONTA.matcher(partes[1]).matches()) {
+                player.send("Uso: login <nome> (letras, números, _ . -; até 32)");
+            } else if (player.conta != null) {
+                player.send("Você já entrou como " + player.conta + ".");
+            } else if (player.mao.total() > 0) {
+                player.send("Faça login antes de pegar cartas (a mão desta conexão não vai para a conta).");
+            } else {
+                entrar(player, partes[1]);
+            }
+        } else if (lower.equals("sessao")) {
+            // token para os pings UDP ("ping <sessao>"), que medem o RTT
+            player.send("SESSAO " + ServicoPing.texto(player.sessao));
+        } else if (lower.equals("sair")) {
+            player.send("Encerrando conexão. Até mais!");
+            return false;
+        } else {
+            player.send("Comandos: listar, pegar, mao, duelo, login, sessao, sair");
+        }
+
+        return true;
+    }
+
+    // Liga a conexão à conta: a mão da conta passa a ser a do jogador. Só uma
+    // conexão por conta (sem isso duas sessões dividiriam a Mao com forças
+    // calculadas à parte); a conta volta a ficar livre no close da conexão
+    static void entrar(Player player, String nome) {
+        Player outro = sessoesContas.putIfAbsent(nome, player);
+        if (outro != null) {
+            player.send("Conta " + nome + " já está em uso por outra conexão.");
+            return;
+        }
+        player.conta = nome;
+        if (!player.isConnected()) { // close correu antes de ver a conta
+            sessoesContas.remove(nome, player);
+            return;
+        }
+        Mao conta = contas.computeIfAbsent(nome, n -> new Mao());
+        synchronized (conta) {
+            player.mao = conta;
+            player.forca = ForcaMao.VAZIA.somar(cartasDaMao(conta.pares()));
+        }
+        player.send("LOGIN " + nome + " (" + conta.total() + " cartas na mão)");
+    }
+
+    // A resposta de uma mudança registrada só pode sair depois do fsync. No
+    // modo threads, a thread do jogador espera o lote (group commit com as
+    // outras); no NIO o event loop não para: uma barreira na saída da conexão
+    // segura esta resposta (e as seguintes, na ordem) até o jornal liberar.
+    static void duravelAntesDeResponder(Player player, Jornal j, long seq) {
+        if (seq <= 0) return;
+        if (player.conexao != null) player.conexao.segurarAte(j, seq);
+        else j.aguardar(seq);
+    }
+
+    // ids sem carta no catálogo atual ficam de fora
+    static List<Card> cartasDaMao(Mao.Pares pares) {
+        CatalogoCartas.Cartas<Card> catalogo = cartas;
+        List<Card> r = new ArrayList<>();
+        for (int k = 0; k < pares.ids.length; k++) {
+            Card c = catalogo.porId(pares.ids[k]);
+            if (c == null) continue;
+            for (int q = pares.quantidades[k]; q > 0; q--) r.add(c);
+        }
+        return r;
+    }
+
+    // Resposta de texto do "mao": uma linha numerada por carta, em ordem de id
+    static String textoMao(Mao.Pares pares) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Sua mão:\n");
+        int n = 0;
+        for (Card c : cartasDaMao(pares)) sb.append(++n).append(". ").append(c.toString()).append('\n');
+        return sb.toString();
+    }
+
+    // "pegar" -> 1, "pegar N" -> N; -1 se N inválido ou acima de PEGAR_MAX
+    static int quantidadePacotes(String lower) {
+        String arg = lower.substring("pegar".length()).trim();
+        if (arg.isEmpty()) return 1;
+        try {
+            int n = Integer.parseInt(arg);
+            return n >= 1 && n <= PEGAR_MAX ? n : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Pedido binário: traduz para o comando texto e responde com o mesmo requestId
+    static boolean processarQuadro(Player player, ProtocoloBinario.Quadro q) {
+        ProtocoloBinario.REQUISICAO.set(q.requisicao);
+        try {
+            return processarComando(player, ProtocoloBinario.linhaDoPedido(q));
+        } finally {
+            ProtocoloBinario.REQUISICAO.remove();
         }
     }
 
@@ -293,87 +1225,31 @@ public class Servidor {
         @Override
         public void run() {
             Socket s = player.socket;
-            System.out.println("[CONEXÃO] Novo cliente: " + player.getPeerName());
+            Log.info(Log.CONEXAO, "[CONEXÃO] Novo cliente: {}", player.getPeerName());
             player.send("Bem-vindo ao servidor de cartas!");
 
             try {
+                if (player.negociarProtocolo()) {
+                    ProtocoloBinario.Quadro q;
+                    while ((q = ProtocoloBinario.ler(player.rawIn, ProtocoloBinario.MAX_PAYLOAD_PEDIDO)) != null) {
+                        if (!processarQuadro(player, q)) break;
+                    }
+                    return;
+                }
+
                 String line;
                 while ((line = player.readLine()) != null) {
                     line = line.trim();
                     if (line.isEmpty()) continue;
 
-                    System.out.println("[" + player.getPeerName() + "] " + line);
-                    String lower = line.toLowerCase();
-
-                    if (lower.equals("listar")) {
-                        // Lista raras e algumas comuns
-                        StringBuilder sb = new StringBuilder();
-                        sb.append("Cartas raras disponíveis:\n");
-                        synchronized (cartasRaras) {
-                            for (Card c : cartasRaras) sb.append(c.toString()).append("\n");
-                        }
-                        sb.append("\nCartas comuns (exemplo):\n");
-                        synchronized (cartasComuns) {
-                            for (int i = 0; i < Math.min(10, cartasComuns.size()); i++) {
-                                sb.append(cartasComuns.get(i).toString()).append("\n");
-                            }
-                        }
-                        player.send(sb.toString());
-                    } else if (lower.equals("pegar")) {
-                        // Sorteia pacote de 3 cartas
-                        List<Card> pacote = sortearPacote();
-                        // adiciona à mão do jogador
-                        player.getHand().addAll(pacote);
-                        // envia pacote em JSON-like (simples) ou linhas
-                        StringBuilder sb = new StringBuilder();
-                        sb.append("CARTAS_RECEBIDAS:\n");
-                        for (Card c : pacote) sb.append(c.toString()).append("\n");
-                        player.send(sb.toString());
-                    } else if (lower.equals("mao")) {
-                        List<Card> mao = player.getHand();
-                        if (mao.isEmpty()) {
-                            player.send("Sua mão está vazia.");
-                        } else {
-                            StringBuilder sb = new StringBuilder();
-                            sb.append("Sua mão:\n");
-                            synchronized (mao) {
-                                for (int i = 0; i < mao.size(); i++) {
-                                    sb.append((i+1) + ". " + mao.get(i).toString()).append("\n");
-                                }
-                            }
-                            player.send(sb.toString());
-                        }
-                    } else if (lower.equals("duelo")) {
-                        // Adiciona à fila; se houver par, resolve
-                        if (!duelQueue.contains(player)) {
-                            duelQueue.add(player);
-                            player.send("Você entrou na fila de duelo. Aguardando adversário...");
-                        } else {
-                            player.send("Você já está na fila de duelo.");
-                        }
-
-                        if (duelQueue.size() >= 2) {
-                            Player p1 = duelQueue.poll();
-                            Player p2 = duelQueue.poll();
-                            if (p1 != null && p2 != null) {
-                                resolverPartida(p1, p2);
-                            } else {
-                                // volta para a fila os que existirem
-                                if (p1 != null) duelQueue.offer(p1);
-                                if (p2 != null) duelQueue.offer(p2);
-                            }
-                        }
-                    } else if (lower.equals("sair")) {
-                        player.send("Encerrando conexão. Até mais!");
-                        break;
-                    } else {
-                        player.send("Comandos: listar, pegar, mao, duelo, sair");
-                    }
+                    if (!processarComando(player, line)) break;
                 }
             } catch (IOException e) {
-                System.err.println("[CLIENT HANDLER] Erro com " + player.getPeerName() + ": " + e.getMessage());
+                Log.erro(Log.CONEXAO, "[CLIENT HANDLER] Erro com {}: {}", player.getPeerName(), e.getMessage());
+            } catch (RuntimeException e) {
+                Log.erro(Log.CONEXAO, "[CLIENT HANDLER] Erro inesperado com {}: {}", player.getPeerName(), e);
             } finally {
-                System.out.println("[DESCONECTADO] " + player.getPeerName());
+                Log.info(Log.CONEXAO, "[DESCONECTADO] {}", player.getPeerName());
                 player.close();
             }
         }
@@ -6,74 +6,136 @@ import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
 import com.google.gson.Gson;
 import redis.clients.jedis.JedisPooled;
-import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPubSub;
 
 /**
  * Servidor com Redis para coordenação:
- * - claim atômico de cartas raras (SET NX PX)
- * - salvar mão do jogador em Redis (hash: player:hand)
- * - fila de duelos (lista Redis: queue:duels)
- * - pub/sub para eventos de cartas entregues (channel cards:events)
+ * - claim atômico de cartas raras (SET NX PX), em lote no "pegar N"
+ * - mão do jogador em Redis como contagem por carta (hash: player:hand:<id>, HINCRBY),
+ *   com cache local por sessão e gravação assíncrona em lote (write-behind);
+ *   totais n/atk/def em player:stats:<id> para o duelo não buscar a mão
+ * - fila de duelos em Redis Streams com consumer group (FilaDuelos: duels:stream)
+ * - pub/sub para eventos de cartas entregues (channel cards:events) e resultado
+ *   de duelo só para o nó do jogador (channel duel:results:<serverId>)
+ * - protocolo texto (linhas + END) ou binário negociado no primeiro byte (ProtocoloBinario)
  *
  * Ajuste HOST/PORT e Redis connection conforme necessário.
+ * Opção --virtual: handlers, worker de duelos e subscriber em threads virtuais (Java 21+).
  */
 public class ServidorComRedis {
     // CONFIG
     static final String HOST = "0.0.0.0";
     static final int TCP_PORT = 5000;
     static final int UDP_PORT = 6000;
-    static final double RARE_PROBABILITY = 0.15;
+    static final String DROP_PESOS = "comum=85,rara=15"; // padrão de -Ddrop.pesos (ver TabelaDrop)
+    static final int PEGAR_MAX = Integer.getInteger("pegar.max", 20); // limite do "pegar N"
+    // Inventário local de raras reservadas por este nó (-Draras.inventario=N, 0 desliga)
+    // e TTL da reserva no Redis, renovado enquanto o nó está vivo
+    static final int INVENTARIO_ALVO = Integer.getInteger("raras.inventario", 3);
+    static final long LEASE_MS = 15000;
+    // atraso máximo da gravação da mão local no Redis (-Dmao.flush.ms=N)
+    static final long MAO_FLUSH_MS = Long.getLong("mao.flush.ms", 200);
 
     // Redis
     static final String REDIS_HOST = "127.0.0.1";
     static final int REDIS_PORT = 6379;
     static JedisPooled jedisPool;
+    // comandos das sessões agrupados em pipelines compartilhados (-Dredis.janela.us etc.)
+    static DespachanteRedis redis;
     static Gson gson = new Gson();
 
     // cartas locais
+    // raras ainda livres no cache local (objetos só das raras)
     static final List<Card> cartasRaras = Collections.synchronizedList(new ArrayList<>());
-    static final List<Card> cartasComuns = Collections.synchronizedList(new ArrayList<>());
+    // catálogo mapeado por índice/id (ver CatalogoCartas): cada Card é criada no
+    // primeiro uso; resolve as mãos guardadas só com ids
+    static volatile CatalogoCartas.Cartas<Card> catalogo;
+    static volatile Listagem.Montador montador;
+    // tiers de cada slot e cartas repetíveis (montada em initCards)
+    static volatile TabelaDrop<Card> drop;
     static final ReentrantLock cardsLock = new ReentrantLock();
+    static InventarioRaras inventario;
+    static String serverId; // único por processo (host + sufixo), dono das reservas
+    static FilaDuelos filaDuelos;
 
     // players locais
     static final ConcurrentMap<String, Player> localPlayers = new ConcurrentHashMap<>();
+    // players com cartas ainda não gravadas no Redis; flushLock serializa as
+    // gravações (o flush do "duelo" espera um lote em voo terminar)
+    static final Set<Player> maosSujas = ConcurrentHashMap.newKeySet();
+    static final ReentrantLock flushLock = new ReentrantLock();
 
-    // executor para resolver partidas localmente se necessário
-    static final ExecutorService duelExecutor = Executors.newCachedThreadPool();
+    // métricas (ver Metricas)
+    static final Metricas.PorComando LATENCIA_COMANDO =
+            Metricas.porComando("servidor_comando_segundos", "tempo de processarComando por comando");
+    static final Metricas.Histograma LATENCIA_SORTEIO =
+            Metricas.histograma("servidor_sorteio_segundos", "sortear os pacotes de um pegar (inclui claims no Redis)");
+    static final Metricas.Histograma ESPERA_CARDS_LOCK =
+            Metricas.histograma("servidor_cards_lock_espera_segundos", "espera para obter o cardsLock");
+
+    // resposta do "listar" pronta em bytes; trocada inteira quando uma rara sai
+    static volatile Listagem listagem;
+
+    // ping/heartbeat UDP com RTT por sessão (ver ServicoPing)
+    static final ServicoPing ping = new ServicoPing(UDP_PORT);
+
+    // executor para resolver partidas localmente se necessário (virtual com --virtual)
+    static ExecutorService duelExecutor = Executors.newCachedThreadPool();
 
     public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--virtual") && ThreadsVirtuais.habilitar()) {
+            duelExecutor = ThreadsVirtuais.novoExecutor("duelo-");
+        }
+
         // inicia Redis
         jedisPool = new JedisPooled(REDIS_HOST, REDIS_PORT);
+        redis = new DespachanteRedis(jedisPool);
+        redis.iniciar();
 
         // inicializa cartas
         initCards();
+        serverId = InetAddress.getLocalHost().getHostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        if (Arrays.asList(args).contains("--teste-lease")) {
+            System.exit(testeLease() ? 0 : 1);
+        }
+        filaDuelos = new FilaDuelos(jedisPool, redis, REDIS_HOST, REDIS_PORT, serverId);
+
+        Metricas.medidor("servidor_conexoes", "jogadores conectados neste nó", localPlayers::size);
+        Metricas.medidor("duelo_fila", "entradas no stream de duelos (todos os nós)", filaDuelos::tamanho);
+        Metricas.iniciar("ServidorComRedis");
 
         // start subscriber para eventos
-        Thread subThread = new Thread(() -> runSubscriber());
-        subThread.setDaemon(true);
-        subThread.start();
+        ThreadsVirtuais.iniciar("subscriber", () -> runSubscriber());
 
-        // start worker que consome fila de duelos (poderá rodar em todos os servidores)
-        Thread worker = new Thread(() -> runDuelWorker());
-        worker.setDaemon(true);
-        worker.start();
+        // start worker que consome fila de duelos (roda em todos os servidores, mesmo consumer group)
+        ThreadsVirtuais.iniciar("duel-worker", () -> runDuelWorker());
+
+        // grava as mãos locais alteradas a cada MAO_FLUSH_MS, num único pipeline
+        ThreadsVirtuais.iniciar("mao-flush", () -> runFlushMaos());
+
+        // reserva raras em segundo plano para servir "pegar" sem ir ao Redis
+        if (INVENTARIO_ALVO > 0) {
+            inventario = new InventarioRaras(serverId);
+            ThreadsVirtuais.iniciar("inventario-raras", inventario);
+            Runtime.getRuntime().addShutdownHook(new Thread(inventario::encerrar));
+        }
 
         // UDP ping responder
-        Thread udpThread = new Thread(() -> runUdpServer(UDP_PORT));
-        udpThread.setDaemon(true);
-        udpThread.start();
+        ping.iniciar();
 
         // TCP accept loop
+        ThreadFactory clientThreads = ThreadsVirtuais.fabrica("cliente-");
         try (ServerSocket serverSocket = new ServerSocket(TCP_PORT)) {
-            System.out.println("[SERVIDOR] TCP ouvindo em " + TCP_PORT + " | UDP: " + UDP_PORT + " | Redis: " + REDIS_HOST + ":" + REDIS_PORT);
+            Log.info(Log.SERVIDOR, "[SERVIDOR] TCP ouvindo em {} | UDP: {} | Redis: {}", TCP_PORT, UDP_PORT, REDIS_HOST + ":" + REDIS_PORT);
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 String playerId = clientSocket.getRemoteSocketAddress().toString() + "-" + System.nanoTime();
                 Player p = new Player(playerId, clientSocket);
                 localPlayers.put(playerId, p);
-                new Thread(new ClientHandler(p)).start();
+                clientThreads.newThread(new ClientHandler(p)).start();
             }
         } finally {
             jedisPool.close();
@@ -81,8 +143,16 @@ public class ServidorComRedis {
         }
     }
 
-    // ---------- Redis subscriber: escuta cards:events e atualiza cache local ----------
+    // cardsLock com o tempo de espera medido
+    static void travarCartas() {
+        long t0 = System.nanoTime();
+        cardsLock.lock();
+        ESPERA_CARDS_LOCK.desde(t0);
+    }
+
+    // ---------- Redis subscriber: cards:events (cache local) e resultados dos duelos deste nó ----------
     static void runSubscriber() {
+        String meusResultados = canalResultados(serverId);
         try (Jedis jedis = new Jedis(REDIS_HOST, REDIS_PORT)) {
             jedis.subscribe(new JedisPubSub() {
                 @Override
@@ -93,197 +163,566 @@ public class ServidorComRedis {
                             String[] parts = message.split(" ");
                             int cardId = Integer.parseInt(parts[1]);
                             // remove rara localmente se presente
-                            cardsLock.lock();
+                            travarCartas();
                             try {
-                                cartasRaras.removeIf(c -> c.id == cardId);
+                                if (cartasRaras.removeIf(c -> c.id == cardId)) atualizarListagem();
                             } finally {
                                 cardsLock.unlock();
                             }
-                            System.out.println("[PUBSUB] carta rara " + cardId + " entregue - removida do cache local");
+                            Log.info(Log.PUBSUB, "[PUBSUB] carta rara {} entregue - removida do cache local", cardId);
                         }
+                    } else if (channel.equals(meusResultados)) {
+                        // resultado de um jogador conectado aqui: vai direto para o socket
+                        Map<?, ?> res = gson.fromJson(message, Map.class);
+                        String playerId = (String) res.get("playerId");
+                        Player p = localPlayers.get(playerId);
+                        if (p == null) Log.info(Log.PUBSUB, "[PUBSUB] resultado para {}, que já desconectou", playerId);
+                        else duelExecutor.execute(() -> p.send((String) res.get("result"))); // não trava o subscriber
                     }
                 }
-            }, "cards:events");
+            }, "cards:events", meusResultados);
         } catch (Exception e) {
-            System.err.println("[SUBSCRIBER] erro: " + e.getMessage());
+            Log.erro(Log.PUBSUB, "[SUBSCRIBER] erro: {}", e.getMessage());
         }
     }
 
     // ---------- worker que consome fila de duelos e resolve ----------
+    // os pares saem atômicos do stream (FilaDuelos); cada duelo roda no duelExecutor
     static void runDuelWorker() {
-        try (Jedis jedis = new Jedis(REDIS_HOST, REDIS_PORT)) {
-            System.out.println("[WORKER] Duel worker ativo (consome queue:duels)");
-            while (true) {
-                // BLPOP espera por um item (timeout 0 = bloqueante)
-                List<String> item1 = jedis.blpop(0, "queue:duels");
-                String p1Json = item1.get(1);
-                List<String> item2 = jedis.blpop(0, "queue:duels");
-                String p2Json = item2.get(1);
-
-                DuelEntry e1 = gson.fromJson(p1Json, DuelEntry.class);
-                DuelEntry e2 = gson.fromJson(p2Json, DuelEntry.class);
-
-                duelExecutor.submit(() -> {
-                    try {
-                        // obtém mãos dos jogadores do Redis
-                        List<Card> mao1 = getHandFromRedis(e1.playerId);
-                        List<Card> mao2 = getHandFromRedis(e2.playerId);
-
-                        if (mao1.size() < 2 || mao2.size() < 2) {
-                            // responde aos servidores donos
-                            publishResultToOwner(e1, e2, "Um dos jogadores não tem cartas suficientes (mínimo 2).");
-                            return;
-                        }
+        filaDuelos.rodarWorker(duelExecutor, ServidorComRedis::resolverDuelo);
+    }
 
-                        int atk1 = mao1.stream().mapToInt(c -> c.ataque).sum();
-                        int def1 = mao1.stream().mapToInt(c -> c.defesa).sum();
-                        int atk2 = mao2.stream().mapToInt(c -> c.ataque).sum();
-                        int def2 = mao2.stream().mapToInt(c -> c.defesa).sum();
-
-                        int dano1 = atk1 - def2;
-                        int dano2 = atk2 - def1;
-                        String resultado;
-                        if (dano1 > dano2) resultado = "Jogador 1 venceu!";
-                        else if (dano2 > dano1) resultado = "Jogador 2 venceu!";
-                        else resultado = "Empate!";
-
-                        publishResultToOwner(e1, e2, "Resultado do duelo: " + resultado);
-                    } catch (Exception ex) {
-                        System.err.println("[WORKER] erro ao resolver duelo: " + ex.getMessage());
-                    }
-                });
-            }
-        } catch (Exception e) {
-            System.err.println("[WORKER] erro de conexão Redis: " + e.getMessage());
+    // exceção => o par não é confirmado e volta para a fila depois
+    static void resolverDuelo(String p1Json, String p2Json) {
+        DuelEntry e1 = gson.fromJson(p1Json, DuelEntry.class);
+        DuelEntry e2 = gson.fromJson(p2Json, DuelEntry.class);
+
+        // só os totais das mãos (n, atk, def): O(1), sem buscar as cartas
+        int[][] forcas = getForcasFromRedis(e1.playerId, e2.playerId);
+        int[] f1 = forcas[0], f2 = forcas[1];
+
+        if (f1[0] < 2 || f2[0] < 2) {
+            // responde aos servidores donos
+            publishResultToOwner(e1, e2, "Um dos jogadores não tem cartas suficientes (mínimo 2).");
+            return;
         }
+
+        int dano1 = f1[1] - f2[2];
+        int dano2 = f2[1] - f1[2];
+        String resultado;
+        if (dano1 > dano2) resultado = "Jogador 1 venceu!";
+        else if (dano2 > dano1) resultado = "Jogador 2 venceu!";
+        else resultado = "Empate!";
+
+        publishResultToOwner(e1, e2, "Resultado do duelo: " + resultado);
     }
 
-    // envia resultado de volta aos servidores "donos" via chave Redis pub/sub específica ou hash
-    // aqui simplificamos publicando no channel "duel:result" com payload JSON contendo owner (serverId) e playerId
+    // envia o resultado só para o servidor "dono" de cada jogador (canal
+    // duel:results:<serverId>), os dois num round-trip: o tráfego cresce com
+    // o número de duelos, não duelos x servidores
     static void publishResultToOwner(DuelEntry e1, DuelEntry e2, String resultado) {
-        // payloads simples
         Map<String, String> r1 = new HashMap<>();
         r1.put("playerId", e1.playerId);
-        r1.put("owner", e1.serverId);
         r1.put("result", resultado);
 
         Map<String, String> r2 = new HashMap<>();
         r2.put("playerId", e2.playerId);
-        r2.put("owner", e2.serverId);
         r2.put("result", resultado);
 
-        jedisPool.publish("duel:results", gson.toJson(r1));
-        jedisPool.publish("duel:results", gson.toJson(r2));
+        CompletableFuture.allOf(
+                redis.enviar(p -> p.publish(canalResultados(e1.serverId), gson.toJson(r1))),
+                redis.enviar(p -> p.publish(canalResultados(e2.serverId), gson.toJson(r2)))).join();
     }
 
-    // ---------- UDP ping echo ----------
-    static void runUdpServer(int port) {
-        try (DatagramSocket ds = new DatagramSocket(port)) {
-            System.out.println("[UDP] pronto em " + port);
-            byte[] buf = new byte[1024];
-            while (true) {
-                DatagramPacket pkt = new DatagramPacket(buf, buf.length);
-                ds.receive(pkt);
-                DatagramPacket resp = new DatagramPacket(pkt.getData(), pkt.getLength(), pkt.getAddress(), pkt.getPort());
-                ds.send(resp);
-            }
-        } catch (IOException e) {
-            System.err.println("[UDP] erro: " + e.getMessage());
-        }
+    static String canalResultados(String serverId) {
+        return "duel:results:" + serverId;
     }
 
     // ---------- init cards ----------
     static void initCards() {
+        // catálogo compartilhado pelos servidores, lido do arquivo mapeado (ver CatalogoCartas)
+        CatalogoCartas arquivo = CatalogoCartas.padrao();
+        CatalogoCartas.Cartas<Card> porIndice = arquivo.cartas(i -> new Card(arquivo, i));
+        Map<Integer, int[]> porTier = arquivo.indicesPorTier();
         cartasRaras.clear();
-        cartasComuns.clear();
-        cartasRaras.add(new Card(101, "Dragão Lendário", 14, 12));
-        cartasRaras.add(new Card(102, "Fênix de Fogo", 13, 9));
-        cartasRaras.add(new Card(103, "Mago Supremo", 12, 11));
-        cartasRaras.add(new Card(104, "Titã de Pedra", 10, 15));
-        cartasRaras.add(new Card(105, "Serpente Marinha", 11, 10));
-        cartasRaras.add(new Card(106, "Cavaleiro Negro", 13, 11));
-        cartasRaras.add(new Card(107, "Anjo da Guarda", 9, 14));
-        cartasRaras.add(new Card(108, "Demônio Ancestral", 15, 9));
-        cartasRaras.add(new Card(109, "Dragão de Gelo", 12, 13));
-        cartasRaras.add(new Card(110, "Fada Suprema", 10, 12));
-        cartasRaras.add(new Card(111, "Besta Colossal", 14, 10));
-        cartasRaras.add(new Card(112, "Samurai Fantasma", 13, 10));
-        cartasRaras.add(new Card(113, "Guardião Celestial", 11, 14));
-        cartasRaras.add(new Card(114, "Minotauro Real", 12, 12));
-        cartasRaras.add(new Card(115, "Fera Mística", 13, 13));
-        Random rnd = new Random();
-        for (int i = 1; i <= 30; i++) {
-            cartasComuns.add(new Card(i, "Comum " + i, 3 + rnd.nextInt(7), 2 + rnd.nextInt(7)));
-        }
-        System.out.println("[CARDS] raras=" + cartasRaras.size() + " comuns=" + cartasComuns.size());
-    }
-
-    // ---------- sortear pacote agora tenta claim via Redis ----------
+        for (int i : porTier.getOrDefault(CatalogoCartas.RARA, new int[0])) cartasRaras.add(porIndice.em(i));
+        catalogo = porIndice;
+        drop = TabelaDrop.configurada(DROP_PESOS, porTier, porIndice::em, Set.of(CatalogoCartas.RARA));
+        montador = new Listagem.Montador(arquivo, porTier.getOrDefault(CatalogoCartas.COMUM, new int[0]),
+                "Cartas raras disponíveis:", "\nCartas comuns (exemplo):", i -> porIndice.em(i).toString());
+        atualizarListagem();
+        Log.info(Log.SERVIDOR, "[CARDS] catálogo={} raras={} drop: {}", arquivo.tamanho(), cartasRaras.size(), drop);
+    }
+
+    // Remonta a resposta do "listar" (versão + 1): só as entradas das raras
+    // livres são juntadas de novo (ver Listagem). Chamado com o cardsLock
+    // depois de cada mudança em cartasRaras, então as versões saem em ordem.
+    static void atualizarListagem() {
+        listagem = montador.montar(indicesRaras());
+    }
+
+    static int[] indicesRaras() {
+        synchronized (cartasRaras) {
+            return cartasRaras.stream().mapToInt(c -> c.indice).toArray();
+        }
+    }
+
+    // ---------- sortear pacote(s): raras via claim em lote no Redis ----------
     static List<Card> sortearPacote(String playerId) {
-        List<Card> pacote = new ArrayList<>();
-        Random rnd = new Random();
+        return sortearPacotes(playerId, 1, null);
+    }
 
-        for (int i = 0; i < 3; i++) {
-            boolean tryRare = rnd.nextDouble() < RARE_PROBABILITY;
-            if (tryRare) {
-                // tentativa de claim de alguma rara (varremos localmente por simplicidade)
-                Card claimed = null;
-                cardsLock.lock();
+    // "pegar N": decide primeiro quais slots tentam rara e pega todas do
+    // inventário local ou, se ele esvaziou, faz os claims de uma vez (claimRaras)
+    static List<Card> sortearPacotes(String playerId, int quantidade, TabelaDrop.Pity pity) {
+        long t0 = System.nanoTime();
+        TabelaDrop<Card> tabela = drop;
+        int[] tiers = tabela.sortearTiers(quantidade, pity);
+        int pedidas = 0;
+        for (int tier : tiers) {
+            if (tabela.unico(tier)) pedidas++;
+        }
+        Iterator<Card> raras = (pedidas == 0 ? Collections.<Card>emptyList() : obterRaras(playerId, pedidas)).iterator();
+
+        List<Card> pacote = new ArrayList<>(tiers.length);
+        for (int k = 0; k < tiers.length; k++) {
+            int tier = tiers[k];
+            if (tabela.unico(tier)) {
+                if (raras.hasNext()) {
+                    pacote.add(raras.next());
+                    continue;
+                }
+                tier = tiers[k] = tabela.substituto(); // se não conseguiu rare -> tier repetível
+            }
+            pacote.add(tabela.carta(tier));
+        }
+        tabela.registrarEntrega(pity, tiers); // pity só zera com rara entregue
+        LATENCIA_SORTEIO.desde(t0);
+        return pacote;
+    }
+
+    // Raras para um pedido: primeiro do inventário pré-reservado (sem chamada
+    // ao Redis); só se ele acabou cai no claim síncrono em lote
+    static List<Card> obterRaras(String playerId, int quantas) {
+        List<Card> raras = inventario != null ? inventario.retirar(playerId, quantas) : new ArrayList<>();
+        if (raras.size() < quantas) raras.addAll(claimRaras(playerId, quantas - raras.size()));
+        return raras;
+    }
+
+    // KEYS = {card:rare:<id>}, ARGV = {valor[, ttl]}: SET NX (PX ttl se vier).
+    // 1 = gravou; 0 = reservada por outro nó (o TTL pode vencer e ela volta a
+    // ser candidata); -1 = já tem dono definitivo
+    static final String LUA_TOMAR =
+            "local ok " +
+            "if ARGV[2] then ok = redis.call('SET', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) " +
+            "else ok = redis.call('SET', KEYS[1], ARGV[1], 'NX') end " +
+            "if ok then return 1 end " +
+            "local v = redis.call('GET', KEYS[1]) " +
+            "if v and string.sub(v, 1, 10) ~= 'reservada:' then return -1 end return 0";
+
+    static CompletableFuture<Object> tomar(Card c, String valor, List<String> ttl) {
+        List<String> args = new ArrayList<>(2);
+        args.add(valor);
+        args.addAll(ttl);
+        return redis.enviar(p -> p.eval(LUA_TOMAR, List.of("card:rare:" + c.id), args));
+    }
+
+    static int resultado(Object r) {
+        return ((Number) r).intValue();
+    }
+
+    // raras que podem ter voltado ao pool (reserva perdida/expirada): voltam
+    // a ser candidatas; se já tiverem dono, o próximo LUA_TOMAR as tira
+    static void devolverAoCache(Collection<Card> raras) {
+        if (raras.isEmpty()) return;
+        travarCartas();
+        try {
+            boolean mudou = false;
+            for (Card c : raras) {
+                if (!cartasRaras.contains(c)) mudou |= cartasRaras.add(c);
+            }
+            if (mudou) atualizarListagem();
+        } finally {
+            cardsLock.unlock();
+        }
+    }
+
+    static void tirarDoCache(Collection<Card> raras) {
+        if (raras.isEmpty()) return;
+        travarCartas();
+        try {
+            if (cartasRaras.removeAll(raras)) atualizarListagem();
+        } finally {
+            cardsLock.unlock();
+        }
+    }
+
+    // Tenta reservar até "quantas" raras. Cada rodada manda um LUA_TOMAR por
+    // candidato num único pipeline; as que falharam são trocadas pelos
+    // próximos candidatos na rodada seguinte. Só sai do cache local a rara
+    // com dono definitivo: uma reservada por outro nó fica, porque volta ao
+    // pool se aquele nó morrer.
+    // O cardsLock só cobre a cópia dos candidatos e a atualização do cache no
+    // fim: as respostas do Redis são esperadas sem lock, então os claims de
+    // várias sessões entram juntos nos lotes do despachante. Duas sessões
+    // podem tentar a mesma rara; o SET NX decide e a perdedora segue adiante.
+    static List<Card> claimRaras(String playerId, int quantas) {
+        List<Card> ganhas = new ArrayList<>();
+        List<String> valores = new ArrayList<>();
+        List<Card> candidatas;
+        travarCartas();
+        try {
+            candidatas = new ArrayList<>(cartasRaras);
+        } finally {
+            cardsLock.unlock();
+        }
+        Collections.shuffle(candidatas, ThreadLocalRandom.current()); // sessões simultâneas tendem a raras diferentes
+
+        List<Card> sair = new ArrayList<>();
+        int prox = 0;
+        while (ganhas.size() < quantas && prox < candidatas.size()) {
+            int fim = Math.min(candidatas.size(), prox + (quantas - ganhas.size()));
+            List<Card> rodada = candidatas.subList(prox, fim);
+            List<CompletableFuture<Object>> respostas = new ArrayList<>();
+            List<String> valoresRodada = new ArrayList<>();
+            for (Card c : rodada) {
+                String value = playerId + ":" + System.currentTimeMillis();
+                valoresRodada.add(value);
+                respostas.add(tomar(c, value, List.of())); // sem TTL: a chave é o registro do dono
+            }
+            for (int i = 0; i < rodada.size(); i++) {
+                Card c = rodada.get(i);
+                int r = resultado(DespachanteRedis.esperar(respostas.get(i)));
+                if (r == 1) {
+                    ganhas.add(c);
+                    valores.add(valoresRodada.get(i));
+                }
+                // ganha ou com dono definitivo: sai do cache local
+                if (r != 0) sair.add(c);
+            }
+            prox = fim;
+        }
+        tirarDoCache(sair);
+
+        if (!ganhas.isEmpty()) marcarEntregues(ganhas, valores, playerId);
+        return ganhas;
+    }
+
+    // ---------- teste: raras reservadas por um nó morto voltam ao pool ----------
+    // java ServidorComRedis --teste-lease (use um Redis de teste: grava card:rare:*)
+    // Simula um nó que reservou raras e morreu (card:rare:<id> = "reservada:<nó>"
+    // com PX curto e ninguém renovando). Enquanto a reserva vale, o claim deste
+    // nó não ganha nenhuma mas as mantém no cache; vencido o TTL, ganha todas.
+    static boolean testeLease() throws InterruptedException {
+        List<Card> alvo;
+        synchronized (cartasRaras) {
+            alvo = new ArrayList<>(cartasRaras.subList(0, Math.min(3, cartasRaras.size())));
+        }
+        cartasRaras.retainAll(alvo);
+        for (Card c : alvo) jedisPool.psetex("card:rare:" + c.id, 1000, "reservada:no-morto");
+
+        List<Card> antes = claimRaras("teste-lease", alvo.size());
+        boolean ok = !alvo.isEmpty() && antes.isEmpty() && cartasRaras.size() == alvo.size();
+        Thread.sleep(1500); // o nó morto não renova: as reservas vencem
+        List<Card> depois = claimRaras("teste-lease", alvo.size());
+        ok &= depois.size() == alvo.size() && cartasRaras.isEmpty();
+
+        for (Card c : alvo) {
+            jedisPool.del("card:rare:" + c.id);
+            jedisPool.hdel("cards:delivered", String.valueOf(c.id));
+        }
+        System.out.println("[TESTE-LEASE] " + (ok ? "OK" : "FALHA") + ": raras=" + alvo.size()
+                + " com reserva viva=" + antes.size() + " depois do TTL=" + depois.size());
+        return ok;
+    }
+
+    // marca entregues e avisa os outros servidores (no mesmo lote do despachante)
+    static void marcarEntregues(List<Card> cartas, List<String> valores, String playerId) {
+        List<CompletableFuture<Long>> fs = new ArrayList<>();
+        for (int i = 0; i < cartas.size(); i++) {
+            String cardId = String.valueOf(cartas.get(i).id);
+            String valor = valores.get(i);
+            fs.add(redis.enviar(p -> p.hset("cards:delivered", cardId, valor)));
+            fs.add(redis.enviar(p -> p.publish("cards:events", "DELIVERED " + cardId)));
+        }
+        CompletableFuture.allOf(fs.toArray(new CompletableFuture<?>[0])).join();
+        for (Card c : cartas) Log.info(Log.RARAS, "[REDIS] claimed rare {} for {}", c.id, playerId);
+    }
+
+    // ---------- inventário local de raras (reserva com TTL no Redis) ----------
+    // Em segundo plano o nó grava card:rare:<id> = "reservada:<serverId>" com
+    // SET NX PX LEASE_MS para até INVENTARIO_ALVO raras e renova o TTL a cada
+    // LEASE_MS/3 (só das chaves que ainda são suas). O "pegar" tira daqui e,
+    // antes de responder, troca a reserva pelo dono definitivo (sem TTL) e
+    // grava cards:delivered num único EVAL por rara, todos no mesmo lote do
+    // despachante; só as confirmadas vão para a mão. Se o nó morrer, só
+    // reservas ainda não entregues expiram e voltam ao pool: os outros nós
+    // mantêm as raras reservadas no cache e as tomam quando o TTL vence.
+    static class InventarioRaras implements Runnable {
+        // KEYS = chaves reservadas, ARGV = {marca, ttl}: renova as que ainda
+        // são nossas e devolve 1/0 por chave
+        static final String LUA_RENOVAR =
+                "local r = {} " +
+                "for i, k in ipairs(KEYS) do " +
+                "  if redis.call('GET', k) == ARGV[1] then redis.call('PEXPIRE', k, ARGV[2]); r[i] = 1 else r[i] = 0 end " +
+                "end return r";
+        // KEYS = {card:rare:<id>, cards:delivered}, ARGV = {marca, valor, id}:
+        // troca a reserva pelo dono (sem TTL) e marca entregue, só se a
+        // reserva ainda for nossa
+        static final String LUA_FINALIZAR =
+                "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+                "  redis.call('SET', KEYS[1], ARGV[2]) " +
+                "  redis.call('HSET', KEYS[2], ARGV[3], ARGV[2]) return 1 end return 0";
+
+        final String marca;
+        final ConcurrentLinkedQueue<Card> reservadas = new ConcurrentLinkedQueue<>();
+        final Semaphore acordar = new Semaphore(0);
+        volatile boolean ativo = true;
+
+        InventarioRaras(String serverId) {
+            this.marca = "reservada:" + serverId;
+        }
+
+        // chamado no caminho do "pegar": devolve só as raras cujo dono já foi
+        // gravado. Uma reserva que expirou no meio tempo volta ao cache local
+        // como candidata e o slot cai no substituto.
+        List<Card> retirar(String playerId, int quantas) {
+            List<Card> tiradas = new ArrayList<>();
+            Card c;
+            while (tiradas.size() < quantas && (c = reservadas.poll()) != null) tiradas.add(c);
+            if (tiradas.isEmpty()) return tiradas;
+            acordar.release();
+
+            List<CompletableFuture<Object>> respostas = new ArrayList<>();
+            for (Card t : tiradas) {
+                List<String> chaves = List.of("card:rare:" + t.id, "cards:delivered");
+                List<String> args = List.of(marca, playerId + ":" + System.currentTimeMillis(), String.valueOf(t.id));
+                respostas.add(redis.enviar(p -> p.eval(LUA_FINALIZAR, chaves, args)));
+            }
+            List<Card> r = new ArrayList<>();
+            List<Card> perdidas = new ArrayList<>();
+            List<CompletableFuture<Long>> avisos = new ArrayList<>();
+            for (int i = 0; i < tiradas.size(); i++) {
+                Card t = tiradas.get(i);
+                if (((Number) DespachanteRedis.esperar(respostas.get(i))).longValue() == 0) {
+                    Log.aviso(Log.RARAS, "[INVENTARIO] reserva da rara {} expirou antes da entrega", t.id);
+                    perdidas.add(t);
+                    continue;
+                }
+                r.add(t);
+                avisos.add(redis.enviar(p -> p.publish("cards:events", "DELIVERED " + t.id)));
+                Log.info(Log.RARAS, "[INVENTARIO] rare {} for {}", t.id, playerId);
+            }
+            CompletableFuture.allOf(avisos.toArray(new CompletableFuture<?>[0])).join();
+            devolverAoCache(perdidas);
+            return r;
+        }
+
+        @Override
+        public void run() {
+            Log.info(Log.RARAS, "[INVENTARIO] mantendo {} raras reservadas (TTL {}ms)", INVENTARIO_ALVO, LEASE_MS);
+            long proximaRenovacao = System.currentTimeMillis() + LEASE_MS / 3;
+            while (ativo) {
                 try {
-                    Iterator<Card> it = cartasRaras.iterator();
-                    while (it.hasNext()) {
-                        Card c = it.next();
-                        boolean ok = tryClaimRareInRedis(c.id, playerId);
-                        if (ok) {
-                            // remove localmente (já claimado)
-                            it.remove();
-                            claimed = c;
-                            break;
-                        }
+                    if (System.currentTimeMillis() >= proximaRenovacao) {
+                        renovar();
+                        proximaRenovacao = System.currentTimeMillis() + LEASE_MS / 3;
                     }
-                } finally {
-                    cardsLock.unlock();
+                    reabastecer();
+                } catch (Exception e) {
+                    Log.erro(Log.RARAS, "[INVENTARIO] erro: {}", e.getMessage());
                 }
-                if (claimed != null) {
-                    pacote.add(claimed.clone());
-                    continue;
+                try {
+                    acordar.tryAcquire(500, TimeUnit.MILLISECONDS);
+                    acordar.drainPermits();
+                } catch (InterruptedException e) {
+                    return;
                 }
             }
-            // se não conseguiu rare -> comum aleatória (repete)
-            Card base = cartasComuns.get(rnd.nextInt(cartasComuns.size()));
-            pacote.add(base.clone());
         }
-        return pacote;
+
+        // como no claimRaras, o cardsLock não fica preso durante o pipeline
+        void reabastecer() {
+            int faltam = INVENTARIO_ALVO - reservadas.size();
+            if (faltam <= 0) return;
+            List<Card> candidatas;
+            travarCartas();
+            try {
+                candidatas = new ArrayList<>(cartasRaras);
+            } finally {
+                cardsLock.unlock();
+            }
+            Collections.shuffle(candidatas);
+            List<Card> rodada = candidatas.subList(0, Math.min(faltam, candidatas.size()));
+            if (rodada.isEmpty()) return;
+            List<Response<Object>> respostas = new ArrayList<>();
+            try (Pipeline p = jedisPool.pipelined()) {
+                List<String> args = List.of(marca, String.valueOf(LEASE_MS));
+                for (Card c : rodada) respostas.add(p.eval(LUA_TOMAR, List.of("card:rare:" + c.id), args));
+                p.sync();
+            }
+            List<Card> sair = new ArrayList<>();
+            for (int i = 0; i < rodada.size(); i++) {
+                Card c = rodada.get(i);
+                int r = resultado(respostas.get(i).get());
+                if (r == 1) reservadas.add(c);
+                // reservada por nós ou com dono definitivo: sai do cache
+                // local; reservada por outro nó fica (pode expirar)
+                if (r != 0) sair.add(c);
+            }
+            tirarDoCache(sair);
+        }
+
+        // um EVAL para todas as reservas; as que não são mais nossas saem do inventário
+        void renovar() {
+            List<Card> atuais = new ArrayList<>(reservadas);
+            if (atuais.isEmpty()) return;
+            List<String> chaves = new ArrayList<>();
+            for (Card c : atuais) chaves.add("card:rare:" + c.id);
+            List<?> r = (List<?>) jedisPool.eval(LUA_RENOVAR, chaves, List.of(marca, String.valueOf(LEASE_MS)));
+            List<Card> perdidas = new ArrayList<>();
+            for (int i = 0; i < atuais.size(); i++) {
+                if (((Number) r.get(i)).longValue() == 0 && reservadas.remove(atuais.get(i))) {
+                    Log.aviso(Log.RARAS, "[INVENTARIO] reserva da rara {} perdida", atuais.get(i).id);
+                    perdidas.add(atuais.get(i));
+                }
+            }
+            devolverAoCache(perdidas); // expirou: volta ao pool (se outro nó a pegou, o claim descobre)
+        }
+
+        // desligamento limpo: apaga as reservas não entregues (voltam ao pool
+        // na hora, sem esperar o TTL)
+        void encerrar() {
+            ativo = false;
+            try {
+                Card c;
+                while ((c = reservadas.poll()) != null) {
+                    jedisPool.eval("if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0",
+                            List.of("card:rare:" + c.id), List.of(marca));
+                }
+            } catch (Exception e) {
+                Log.erro(Log.RARAS, "[INVENTARIO] erro ao encerrar: {}", e.getMessage());
+            }
+        }
     }
 
-    // ---------- claim atômico no Redis ----------
-    static boolean tryClaimRareInRedis(int cardId, String playerId) {
-        String key = "card:rare:" + cardId;
-        String value = playerId + ":" + System.currentTimeMillis();
-        SetParams params = SetParams.setParams().nx().px(60000); // 60s TTL
-        String res = jedisPool.set(key, value, params);
-        if ("OK".equalsIgnoreCase(res)) {
-            // marca entregue de forma persistente
-            jedisPool.hset("cards:delivered", String.valueOf(cardId), value);
-            // publica evento para outros servidores atualizarem cache
-            jedisPool.publish("cards:events", "DELIVERED " + cardId);
-            System.out.println("[REDIS] claimed rare " + cardId + " for " + playerId);
-            return true;
+    // ---------- mão do jogador em Redis ----------
+    // hash player:hand:<playerId>, campo = id da carta, valor = quantidade.
+    // Os deltas de uma sessão vão num EVAL atômico de HINCRBYs (sem ler a mão
+    // antes), e a leitura traz só ids/quantidades; atk/def/nome vêm do catálogo local.
+    // KEYS = {mão, totais}; ARGV = {dn, datk, ddef, id1, q1, id2, q2, ...}
+    static final String LUA_SOMAR_CARTAS =
+            "redis.call('HINCRBY', KEYS[2], 'n', ARGV[1]) " +
+            "redis.call('HINCRBY', KEYS[2], 'atk', ARGV[2]) " +
+            "redis.call('HINCRBY', KEYS[2], 'def', ARGV[3]) " +
+            "for i = 4, #ARGV, 2 do redis.call('HINCRBY', KEYS[1], ARGV[i], ARGV[i + 1]) end return 1";
+
+    static String chaveMao(String playerId) {
+        return "player:hand:" + playerId;
+    }
+
+    // totais da mão (n, atk, def), atualizados no mesmo script que a mão:
+    // o duelo lê só isto, sem buscar as cartas
+    static String chaveForca(String playerId) {
+        return "player:stats:" + playerId;
+    }
+
+    // ARGV do LUA_SOMAR_CARTAS: deltas dos totais (pelo catálogo local) + pares id/quantidade
+    static List<String> argvSomar(Map<Integer, Integer> quantidades) {
+        int n = 0, atk = 0, def = 0;
+        List<String> pares = new ArrayList<>(quantidades.size() * 2);
+        for (Map.Entry<Integer, Integer> e : quantidades.entrySet()) {
+            Card c = catalogo.porId(e.getKey());
+            n += e.getValue();
+            if (c != null) {
+                atk += c.ataque * e.getValue();
+                def += c.defesa * e.getValue();
+            }
+            pares.add(String.valueOf(e.getKey()));
+            pares.add(String.valueOf(e.getValue()));
         }
-        return false;
+        List<String> argv = new ArrayList<>(List.of(String.valueOf(n), String.valueOf(atk), String.valueOf(def)));
+        argv.addAll(pares);
+        return argv;
     }
 
-    // ---------- salvar mão do jogador em Redis (JSON) ----------
-    static void saveHandToRedis(String playerId, List<Card> hand) {
-        String json = gson.toJson(hand);
-        jedisPool.hset("player:hand", playerId, json);
+    // {cartas, ataque, defesa} dos dois jogadores num só round-trip
+    static int[][] getForcasFromRedis(String playerId1, String playerId2) {
+        CompletableFuture<List<String>> r1 = redis.enviar(p -> p.hmget(chaveForca(playerId1), "n", "atk", "def"));
+        CompletableFuture<List<String>> r2 = redis.enviar(p -> p.hmget(chaveForca(playerId2), "n", "atk", "def"));
+        return new int[][] { forca(DespachanteRedis.esperar(r1)), forca(DespachanteRedis.esperar(r2)) };
+    }
+
+    static int[] forca(List<String> campos) {
+        int[] f = new int[3];
+        for (int i = 0; i < 3; i++) {
+            String v = campos == null ? null : campos.get(i);
+            f[i] = v == null ? 0 : Integer.parseInt(v);
+        }
+        return f;
+    }
+
+    // {id -> quantidade} -> lista de cartas (ordenada por id, repetidas conforme a quantidade)
+    static List<Card> expandirMao(SortedMap<Integer, Integer> quantidades) {
+        List<Card> mao = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> e : quantidades.entrySet()) {
+            Card c = catalogo.porId(e.getKey());
+            if (c == null) {
+                Log.aviso(Log.SERVIDOR, "[MAO] carta {} fora do catálogo local", e.getKey());
+                continue;
+            }
+            for (int i = 0; i < e.getValue(); i++) mao.add(c);
+        }
+        return mao;
+    }
+
+    // ---------- write-behind das mãos locais ----------
+    static void runFlushMaos() {
+        while (true) {
+            try {
+                Thread.sleep(MAO_FLUSH_MS);
+                if (!maosSujas.isEmpty()) gravarPendentes(new ArrayList<>(maosSujas));
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.erro(Log.SERVIDOR, "[MAO] erro no flush: {}", e.getMessage());
+            }
+        }
     }
 
-    static List<Card> getHandFromRedis(String playerId) {
-        String json = jedisPool.hget("player:hand", playerId);
-        if (json == null) return new ArrayList<>();
-        Card[] arr = gson.fromJson(json, Card[].class);
-        return new ArrayList<>(Arrays.asList(arr));
+    // grava já as cartas pendentes deste jogador (antes do "duelo" e ao desconectar)
+    static void flushMao(Player p) {
+        gravarPendentes(List.of(p));
+    }
+
+    // um EVAL de HINCRBYs por jogador, todos no mesmo pipeline; se o Redis
+    // falhar, os deltas voltam para a sessão e saem no próximo flush
+    static void gravarPendentes(List<Player> players) {
+        flushLock.lock();
+        try {
+            List<Player> quem = new ArrayList<>();
+            List<Map<Integer, Integer>> deltas = new ArrayList<>();
+            for (Player p : players) {
+                maosSujas.remove(p);
+                Map<Integer, Integer> d = p.retirarPendentes();
+                if (d.isEmpty()) continue;
+                quem.add(p);
+                deltas.add(d);
+            }
+            if (quem.isEmpty()) return;
+            try (Pipeline pipe = jedisPool.pipelined()) {
+                for (int i = 0; i < quem.size(); i++) {
+                    String id = quem.get(i).playerId;
+                    pipe.eval(LUA_SOMAR_CARTAS, List.of(chaveMao(id), chaveForca(id)), argvSomar(deltas.get(i)));
+                }
+                pipe.sync();
+            } catch (RuntimeException e) {
+                for (int i = 0; i < quem.size(); i++) quem.get(i).devolverPendentes(deltas.get(i));
+                throw e;
+            }
+        } finally {
+            flushLock.unlock();
+        }
     }
 
     // ---------- DTOs ----------
@@ -295,47 +734,168 @@ public class ServidorComRedis {
     static class Player {
         final String playerId;
         final Socket socket;
+        final BufferedInputStream rawIn;
+        final OutputStream rawOut;
         final BufferedReader in;
         final BufferedWriter out;
+        final ReentrantLock outLock = new ReentrantLock(); // não prende carrier de thread virtual
         volatile boolean connected = true;
+        volatile boolean binario = false;
+        final long sessao = ping.novaSessao(); // token dos pings UDP
+        final TabelaDrop.Pity pity = new TabelaDrop.Pity(); // pacotes seguidos sem rara
+        // mão da sessão: o jogador fica neste servidor enquanto o socket vive,
+        // então lê daqui e só os deltas vão ao Redis (via maosSujas). Começa
+        // vazia: o playerId é da conexão (endereço + nanoTime), não há mão
+        // anterior a carregar.
+        final TreeMap<Integer, Integer> mao = new TreeMap<>();          // id -> quantidade
+        final Map<Integer, Integer> pendentes = new HashMap<>();        // ainda não gravado
+        final ReentrantLock maoLock = new ReentrantLock();
 
         Player(String playerId, Socket socket) throws IOException {
             this.playerId = playerId;
             this.socket = socket;
-            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            this.rawIn = new BufferedInputStream(socket.getInputStream());
+            this.rawOut = new BufferedOutputStream(socket.getOutputStream());
+            this.in = new BufferedReader(new InputStreamReader(rawIn, "UTF-8"));
+            this.out = new BufferedWriter(new OutputStreamWriter(rawOut, "UTF-8"));
+        }
+
+        // primeiro byte == MAGIC -> protocolo binário; senão devolve o byte e segue em texto
+        boolean negociarProtocolo() throws IOException {
+            rawIn.mark(1);
+            int b = rawIn.read();
+            if (b == ProtocoloBinario.MAGIC) {
+                binario = true;
+                sendQuadro(ProtocoloBinario.hello());
+                return true;
+            }
+            if (b >= 0) rawIn.reset();
+            return false;
         }
 
         void send(String msg) {
+            if (binario) { sendQuadro(ProtocoloBinario.texto(msg)); return; }
+            outLock.lock();
             try {
-                synchronized (out) {
-                    out.write(msg + "\n");
-                    out.write("END\n");
-                    out.flush();
-                }
+                out.write(msg + "\n");
+                out.write("END\n");
+                out.flush();
+            } catch (IOException e) {
+                Log.erro(Log.REDE, "[SEND] erro: {}", e.getMessage());
+                close();
+            } finally {
+                outLock.unlock();
+            }
+        }
+        // resposta texto já codificada e com END (ex.: Listagem.texto)
+        void sendPronto(byte[] bytes) {
+            outLock.lock();
+            try {
+                rawOut.write(bytes);
+                rawOut.flush();
             } catch (IOException e) {
-                System.err.println("[SEND] erro: " + e.getMessage());
+                Log.erro(Log.REDE, "[SEND] erro: {}", e.getMessage());
                 close();
+            } finally {
+                outLock.unlock();
             }
         }
+
+        // um quadro inteiro ou em partes (ex.: Listagem.quadroCatalogo), escritas em sequência
+        void sendQuadro(byte[]... partes) {
+            outLock.lock();
+            try {
+                for (byte[] p : partes) rawOut.write(p);
+                rawOut.flush();
+            } catch (IOException e) {
+                Log.erro(Log.REDE, "[SEND] erro: {}", e.getMessage());
+                close();
+            } finally {
+                outLock.unlock();
+            }
+        }
+        // uma resposta CARTAS com todos os registros (no texto são várias mensagens)
+        void sendCartas(List<Card> cartas) {
+            ProtocoloBinario.Resposta r = new ProtocoloBinario.Resposta(ProtocoloBinario.OP_CARTAS, 4 + cartas.size() * 4);
+            r.varint(cartas.size());
+            for (Card c : cartas) r.carta(c.id, c.ataque, c.defesa);
+            sendQuadro(r.quadro(ProtocoloBinario.REQUISICAO.get()));
+        }
         String readLine() throws IOException { return in.readLine(); }
+
+        void adicionarCartas(List<Card> cartas) {
+            maoLock.lock();
+            try {
+                for (Card c : cartas) {
+                    mao.merge(c.id, 1, Integer::sum);
+                    pendentes.merge(c.id, 1, Integer::sum);
+                }
+            } finally {
+                maoLock.unlock();
+            }
+            maosSujas.add(this);
+        }
+
+        List<Card> cartasDaMao() {
+            maoLock.lock();
+            try {
+                return expandirMao(mao);
+            } finally {
+                maoLock.unlock();
+            }
+        }
+
+        Map<Integer, Integer> retirarPendentes() {
+            maoLock.lock();
+            try {
+                Map<Integer, Integer> d = new HashMap<>(pendentes);
+                pendentes.clear();
+                return d;
+            } finally {
+                maoLock.unlock();
+            }
+        }
+
+        void devolverPendentes(Map<Integer, Integer> d) {
+            maoLock.lock();
+            try {
+                d.forEach((id, n) -> pendentes.merge(id, n, Integer::sum));
+            } finally {
+                maoLock.unlock();
+            }
+            maosSujas.add(this);
+        }
+
         void close() {
+            boolean estava = connected;
             connected = false;
             try { socket.close(); } catch (IOException ignored) {}
             localPlayers.remove(playerId);
+            ping.encerrar(sessao);
+            if (estava) {
+                try {
+                    flushMao(this);
+                } catch (Exception e) {
+                    Log.erro(Log.SERVIDOR, "[MAO] erro ao gravar mão de {}: {}", playerId, e.getMessage());
+                }
+            }
         }
     }
 
+    // uma instância por carta usada, criada no primeiro uso (ver
+    // CatalogoCartas.Cartas); o nome só sai do arquivo ao escrever texto
     static class Card {
         final int id;
-        final String nome;
         final int ataque;
         final int defesa;
-        Card(int id, String nome, int ataque, int defesa) {
-            this.id = id; this.nome = nome; this.ataque = ataque; this.defesa = defesa;
+        final int indice; // posição no catálogo
+        private final transient CatalogoCartas catalogo;
+        Card(CatalogoCartas catalogo, int indice) {
+            this.catalogo = catalogo; this.indice = indice;
+            this.id = catalogo.id(indice); this.ataque = catalogo.ataque(indice); this.defesa = catalogo.defesa(indice);
         }
-        @Override public Card clone() { return new Card(id, nome, ataque, defesa); }
-        @Override public String toString() { return String.format("[%d] %s (ATK %d / DEF %d)", id, nome, ataque, defesa); }
+        String nome() { return catalogo.nome(indice); }
+        @Override public String toString() { return String.format("[%d] %s (ATK %d / DEF %d)", id, nome(), ataque, defesa); }
     }
 
     // ---------- handler por cliente ----------
@@ -345,63 +905,115 @@ public class ServidorComRedis {
 
         @Override
         public void run() {
-            System.out.println("[CONEXÃO] " + player.playerId);
+            Log.info(Log.CONEXAO, "[CONEXÃO] {}", player.playerId);
             player.send("Bem-vindo (id=" + player.playerId + ")");
 
             try {
+                if (player.negociarProtocolo()) {
+                    ProtocoloBinario.Quadro q;
+                    while ((q = ProtocoloBinario.ler(player.rawIn, ProtocoloBinario.MAX_PAYLOAD_PEDIDO)) != null) {
+                        ProtocoloBinario.REQUISICAO.set(q.requisicao);
+                        try {
+                            if (!processarComando(ProtocoloBinario.linhaDoPedido(q))) break;
+                        } finally {
+                            ProtocoloBinario.REQUISICAO.remove();
+                        }
+                    }
+                    return;
+                }
                 String line;
                 while ((line = player.readLine()) != null) {
                     line = line.trim();
                     if (line.isEmpty()) continue;
-                    System.out.println("[" + player.playerId + "] " + line);
-                    String lc = line.toLowerCase();
-
-                    if (lc.equals("listar")) {
-                        StringBuilder sb = new StringBuilder();
-                        sb.append("Cartas raras disponíveis:\n");
-                        synchronized (cartasRaras) { for (Card c : cartasRaras) sb.append(c.toString()).append("\n"); }
-                        sb.append("\nCartas comuns (exemplo):\n");
-                        synchronized (cartasComuns) { for (int i = 0; i < Math.min(10, cartasComuns.size()); i++) sb.append(cartasComuns.get(i).toString()).append("\n"); }
-                        player.send(sb.toString());
-
-                    } else if (lc.equals("pegar")) {
-                        List<Card> pacote = sortearPacote(player.playerId);
-                        // salva mão no redis (concorrente)
-                        // pegamos a mão atual do redis e mesclamos com pacote (ou sobrescrever conforme sua regra)
-                        List<Card> mao = getHandFromRedis(player.playerId);
-                        mao.addAll(pacote);
-                        saveHandToRedis(player.playerId, mao);
-                        // também mantemos localmente (útil se você quiser enviar direto)
-                        player.send("CARTAS_RECEBIDAS:");
-                        for (Card c : pacote) player.send(c.toString());
-                    } else if (lc.equals("mao")) {
-                        List<Card> mao = getHandFromRedis(player.playerId);
-                        if (mao.isEmpty()) player.send("Sua mão está vazia.");
-                        else {
-                            player.send("Sua mão:");
-                            for (int i = 0; i < mao.size(); i++) player.send((i+1) + ". " + mao.get(i).toString());
-                        }
-                    } else if (lc.equals("duelo")) {
-                        // publica na fila distribuída
-                        DuelEntry e = new DuelEntry();
-                        e.serverId = InetAddress.getLocalHost().getHostName(); // ou id do servidor
-                        e.playerId = player.playerId;
-                        String json = gson.toJson(e);
-                        jedisPool.rpush("queue:duels", json);
-                        player.send("Você entrou na fila de duelo (distributed).");
-                    } else if (lc.equals("sair")) {
-                        player.send("Até mais.");
-                        break;
-                    } else {
-                        player.send("Comandos: listar, pegar, mao, duelo, sair");
-                    }
+                    if (!processarComando(line)) break;
                 }
             } catch (IOException ex) {
-                System.err.println("[HANDLER] erro: " + ex.getMessage());
+                Log.erro(Log.CONEXAO, "[HANDLER] erro: {}", ex.getMessage());
             } finally {
                 player.close();
-                System.out.println("[DESCONECTADO] " + player.playerId);
+                Log.info(Log.CONEXAO, "[DESCONECTADO] {}", player.playerId);
+            }
+        }
+
+        // "pegar" -> 1, "pegar N" -> N; -1 se inválido ou acima de PEGAR_MAX
+        static int quantidadePacotes(String lc) {
+            String arg = lc.substring("pegar".length()).trim();
+            if (arg.isEmpty()) return 1;
+            try {
+                int n = Integer.parseInt(arg);
+                return n >= 1 && n <= PEGAR_MAX ? n : -1;
+            } catch (NumberFormatException e) {
+                return -1;
             }
         }
+
+        // retorna false quando o cliente pede "sair"
+        boolean processarComando(String line) throws IOException {
+            long t0 = System.nanoTime();
+            try {
+                return executarComando(line);
+            } finally {
+                LATENCIA_COMANDO.de(line).desde(t0);
+            }
+        }
+
+        boolean executarComando(String line) throws IOException {
+            Log.info(Log.COMANDO, "[{}] {}", player.playerId, line);
+            String lc = line.toLowerCase();
+
+            if (lc.equals("listar") && player.binario) {
+                player.sendQuadro(listagem.quadroCatalogo(ProtocoloBinario.REQUISICAO.get()));
+            } else if (lc.equals("listar")) {
+                // pronta em bytes, sem lock nas listas (ver atualizarListagem)
+                player.sendPronto(listagem.texto);
+
+            } else if (lc.equals("pegar") || lc.startsWith("pegar ")) {
+                int quantidade = quantidadePacotes(lc);
+                if (quantidade < 1) {
+                    player.send("Uso: pegar [N] (N de 1 a " + PEGAR_MAX + ")");
+                    return true;
+                }
+                List<Card> pacote = sortearPacotes(player.playerId, quantidade, player.pity);
+                // soma o pacote à mão local; vai ao redis no próximo flush
+                player.adicionarCartas(pacote);
+                // também mantemos localmente (útil se você quiser enviar direto)
+                if (player.binario) { player.sendCartas(pacote); return true; }
+                if (!lc.equals("pegar")) {
+                    // "pegar N": uma única resposta com todas as cartas
+                    StringBuilder sb = new StringBuilder("CARTAS_RECEBIDAS:\n");
+                    for (Card c : pacote) sb.append(c.toString()).append("\n");
+                    player.send(sb.toString());
+                    return true;
+                }
+                player.send("CARTAS_RECEBIDAS:");
+                for (Card c : pacote) player.send(c.toString());
+            } else if (lc.equals("mao")) {
+                List<Card> mao = player.cartasDaMao();
+                if (mao.isEmpty()) player.send("Sua mão está vazia.");
+                else if (player.binario) player.sendCartas(mao);
+                else {
+                    player.send("Sua mão:");
+                    for (int i = 0; i < mao.size(); i++) player.send((i+1) + ". " + mao.get(i).toString());
+                }
+            } else if (lc.equals("duelo")) {
+                // o worker de duelo pode estar em outro nó: grava a mão antes de entrar na fila
+                flushMao(player);
+                // publica na fila distribuída
+                DuelEntry e = new DuelEntry();
+                e.serverId = serverId; // canal de resultados deste nó
+                e.playerId = player.playerId;
+                String json = gson.toJson(e);
+                filaDuelos.entrar(json);
+                player.send("Você entrou na fila de duelo (distributed).");
+            } else if (lc.equals("sessao")) {
+                player.send("SESSAO " + ServicoPing.texto(player.sessao));
+            } else if (lc.equals("sair")) {
+                player.send("Até mais.");
+                return false;
+            } else {
+                player.send("Comandos: listar, pegar, mao, duelo, sessao, sair");
+            }
+            return true;
+        }
     }
 }
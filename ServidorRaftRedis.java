@@ -5,10 +5,14 @@ import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.*;
+import java.util.function.Predicate;
 import com.google.gson.Gson;
 import redis.clients.jedis.JedisPooled;
 import io.etcd.jetcd.*;
 import io.etcd.jetcd.kv.*;
+import io.etcd.jetcd.options.GetOption;
 import io.etcd.jetcd.options.PutOption;
 import io.etcd.jetcd.op.*;
 import io.etcd.jetcd.kv.TxnResponse;
@@ -18,9 +22,15 @@ import io.etcd.jetcd.ByteSequence;
  * ServidorRaftRedis
  *
  * - usa etcd (via jetcd) para claim atômico de cartas raras (consenso Raft)
- * - usa Redis (JedisPooled) para cache, filas e pub/sub
+ * - usa Redis (JedisPooled) para cache, filas e pub/sub; fila de duelos em
+ *   Redis Streams com consumer group (FilaDuelos)
+ * - resultado de duelo publicado só para o nó do jogador (duel:results:<serverId>)
+ * - mão do jogador em Redis como contagem por carta (hash player:hand:<id>, HINCRBY),
+ *   com totais n/atk/def em player:stats:<id> para o duelo não buscar a mão
+ * - protocolo texto (linhas + END) ou binário negociado no primeiro byte (ProtocoloBinario)
  *
  * Ajuste ETCD_ENDPOINTS e REDIS_HOST conforme sua infra.
+ * Opção --virtual: clientes, duelos e subscribers em threads virtuais (Java 21+).
  */
 public class ServidorRaftRedis {
     // CONFIG
@@ -32,25 +42,78 @@ public class ServidorRaftRedis {
     static final int TCP_PORT = 5000;
     static final int UDP_PORT = 6000;
 
-    // Probabilidade de tentar rara por slot do pacote
-    static final double RARE_PROB = 0.18;
+    // Pesos dos tiers por slot do pacote, se -Ddrop.pesos não vier (ver TabelaDrop)
+    static final String DROP_PESOS = "comum=82,rara=18";
+    // Chaves de claim no etcd: card:rare:<id> (lidas de uma vez pelo prefixo)
+    static final String RARE_PREFIX = "card:rare:";
+    // Máximo de transações etcd por "pegar" (além da leitura do prefixo)
+    static final int MAX_TXN_CLAIM = 2;
+    // Inventário local: quantas raras manter reservadas sob a lease deste nó
+    // (-Draras.inventario=N, 0 desliga) e TTL da lease em segundos
+    static final int INVENTARIO_ALVO = Integer.getInteger("raras.inventario", 3);
+    static final long LEASE_TTL_S = 15;
+    // Máximo de pacotes num "pegar N" (-Dpegar.max=N)
+    static final int PEGAR_MAX = Integer.getInteger("pegar.max", 20);
+    // Comandos por sessão lidos e ainda não escritos (-Dsessao.emvoo=N); ao
+    // chegar no limite a sessão para de ler e o TCP segura o cliente
+    static final int MAX_EM_VOO = Integer.getInteger("sessao.emvoo", 32);
 
     // libs
     static Client etcdClient;
     static JedisPooled jedis;
+    // comandos das sessões agrupados em pipelines compartilhados (-Dredis.janela.us etc.)
+    static DespachanteRedis redis;
     static Gson gson = new Gson();
 
     // cartas
+    // raras ainda livres no cache local (objetos só das raras)
     static final List<Card> cartasRaras = Collections.synchronizedList(new ArrayList<>());
-    static final List<Card> cartasComuns = Collections.synchronizedList(new ArrayList<>());
-    static final Random rnd = new Random();
+    // catálogo mapeado por índice/id (ver CatalogoCartas): cada Card é criada no
+    // primeiro uso; resolve as mãos guardadas só com ids
+    static volatile CatalogoCartas.Cartas<Card> catalogo;
+    static volatile Listagem.Montador montador;
+    // resposta do "listar" pronta em bytes; trocada inteira quando uma rara sai
+    static volatile Listagem listagem;
+    private static final Object listagemLock = new Object();
+    // tiers de cada slot e cartas repetíveis (montada em initCards)
+    static volatile TabelaDrop<Card> drop;
+    // raras que algum "pegar" deste servidor está tentando no etcd agora;
+    // evita que duas threads locais disputem a mesma chave na transação
+    static final Set<Integer> emReserva = ConcurrentHashMap.newKeySet();
+    static InventarioRaras inventario;
+    static FilaDuelos filaDuelos;
+    // players conectados neste nó (destino dos resultados de duelo)
+    static final ConcurrentMap<String, ClientHandler> localPlayers = new ConcurrentHashMap<>();
 
-    // executor
-    static final ExecutorService clientPool = Executors.newCachedThreadPool();
-    static final ExecutorService workerPool = Executors.newCachedThreadPool();
+    // métricas (ver Metricas); comandos e sorteio medidos até o futuro completar
+    static final Metricas.PorComando LATENCIA_COMANDO =
+            Metricas.porComando("servidor_comando_segundos", "do início do comando até a resposta escrita");
+    static final Metricas.Histograma LATENCIA_SORTEIO =
+            Metricas.histograma("servidor_sorteio_segundos", "sortear os pacotes de um pegar (inclui claims no etcd)");
+    static final Metricas.Histograma LATENCIA_TXN =
+            Metricas.histograma("etcd_txn_segundos", "transação de claim no etcd");
+    static final Metricas.Contador TXN_OK = Metricas.contador("etcd_txn_total", "transações de claim por resultado", "resultado", "ok");
+    static final Metricas.Contador TXN_CONFLITO = Metricas.contador("etcd_txn_total", "transações de claim por resultado", "resultado", "conflito");
+    static final Metricas.Contador TXN_ERRO = Metricas.contador("etcd_txn_total", "transações de claim por resultado", "resultado", "erro");
+
+    // ping/heartbeat UDP com RTT por sessão (ver ServicoPing)
+    static final ServicoPing ping = new ServicoPing(UDP_PORT);
+
+    // executor (uma thread virtual por tarefa com --virtual)
+    static ExecutorService clientPool = Executors.newCachedThreadPool();
+    static ExecutorService workerPool = Executors.newCachedThreadPool();
+    // poucas threads fixas montam as respostas quando os futuros de etcd/Redis
+    // completam; nenhuma fica parada esperando I/O remoto nem escrevendo em
+    // socket (isso é da tarefa de escrita de cada sessão)
+    static final ExecutorService respostas = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
     // main
     public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--virtual") && ThreadsVirtuais.habilitar()) {
+            clientPool = ThreadsVirtuais.novoExecutor("cliente-");
+            workerPool = ThreadsVirtuais.novoExecutor("duelo-");
+        }
+
         // id do servidor (pode ser hostname/uuid)
         final String serverId = InetAddress.getLocalHost().getHostName() + "-" + UUID.randomUUID().toString().substring(0,6);
 
@@ -59,26 +122,38 @@ public class ServidorRaftRedis {
 
         // inicia redis
         jedis = new JedisPooled(REDIS_HOST, REDIS_PORT);
+        redis = new DespachanteRedis(jedis);
+        redis.iniciar();
+        filaDuelos = new FilaDuelos(jedis, redis, REDIS_HOST, REDIS_PORT, serverId);
+
+        Metricas.medidor("servidor_conexoes", "jogadores conectados neste nó", localPlayers::size);
+        Metricas.medidor("duelo_fila", "entradas no stream de duelos (todos os nós)", filaDuelos::tamanho);
+        Metricas.medidor("raras_em_reserva", "raras em transação no etcd agora", emReserva::size);
+        Metricas.iniciar("ServidorRaftRedis");
 
         // carrega cartas
         initCards();
+        if (Arrays.asList(args).contains("--teste-lease")) {
+            System.exit(testeLease(serverId) ? 0 : 1);
+        }
 
         // start UDP responder (ping)
-        Thread udp = new Thread(() -> runUdpResponder(UDP_PORT));
-        udp.setDaemon(true);
-        udp.start();
+        ping.iniciar();
 
         // start duel worker (consume fila de duelos via redis)
-        Thread duelWorker = new Thread(() -> runDuelWorker());
-        duelWorker.setDaemon(true);
-        duelWorker.start();
+        ThreadsVirtuais.iniciar("duel-worker", () -> runDuelWorker());
 
         // subscribe results/events: deliver results back to local players
-        Thread sub = new Thread(() -> runSubscribers());
-        sub.setDaemon(true);
-        sub.start();
+        ThreadsVirtuais.iniciar("subscriber", () -> runSubscribers(serverId));
 
-        System.out.println("[SERVIDOR] Servidor iniciado. TCP:" + TCP_PORT + " UDP:" + UDP_PORT + " serverId:" + serverId);
+        // reserva raras em segundo plano para servir "pegar" sem ir ao etcd
+        if (INVENTARIO_ALVO > 0) {
+            inventario = new InventarioRaras(serverId);
+            ThreadsVirtuais.iniciar("inventario-raras", inventario);
+            Runtime.getRuntime().addShutdownHook(new Thread(inventario::encerrar));
+        }
+
+        Log.info(Log.SERVIDOR, "[SERVIDOR] Servidor iniciado. TCP:{} UDP:{} serverId:{}", TCP_PORT, UDP_PORT, serverId);
 
         // tcp accept
         try (ServerSocket srv = new ServerSocket(TCP_PORT)) {
@@ -96,223 +171,624 @@ public class ServidorRaftRedis {
 
     // ---------- cartas ----------
     static void initCards() {
+        // catálogo compartilhado pelos servidores, lido do arquivo mapeado (ver CatalogoCartas)
+        CatalogoCartas arquivo = CatalogoCartas.padrao();
+        CatalogoCartas.Cartas<Card> porIndice = arquivo.cartas(i -> new Card(arquivo, i));
+        Map<Integer, int[]> porTier = arquivo.indicesPorTier();
         cartasRaras.clear();
-        cartasComuns.clear();
-        // 15 raras (exemplo)
-        cartasRaras.add(new Card(101, "Dragão Lendário", 14, 12));
-        cartasRaras.add(new Card(102, "Fênix de Fogo", 13, 9));
-        cartasRaras.add(new Card(103, "Mago Supremo", 12, 11));
-        cartasRaras.add(new Card(104, "Titã de Pedra", 10, 15));
-        cartasRaras.add(new Card(105, "Serpente Marinha", 11, 10));
-        cartasRaras.add(new Card(106, "Cavaleiro Negro", 13, 11));
-        cartasRaras.add(new Card(107, "Anjo da Guarda", 9, 14));
-        cartasRaras.add(new Card(108, "Demônio Ancestral", 15, 9));
-        cartasRaras.add(new Card(109, "Dragão de Gelo", 12, 13));
-        cartasRaras.add(new Card(110, "Fada Suprema", 10, 12));
-        cartasRaras.add(new Card(111, "Besta Colossal", 14, 10));
-        cartasRaras.add(new Card(112, "Samurai Fantasma", 13, 10));
-        cartasRaras.add(new Card(113, "Guardião Celestial", 11, 14));
-        cartasRaras.add(new Card(114, "Minotauro Real", 12, 12));
-        cartasRaras.add(new Card(115, "Fera Mística", 13, 13));
-        // 30 comuns
-        for (int i = 1; i <= 30; i++) {
-            cartasComuns.add(new Card(i, "Comum " + i, 3 + rnd.nextInt(8), 2 + rnd.nextInt(6)));
-        }
-        System.out.println("[CARDS] raras=" + cartasRaras.size() + " comuns=" + cartasComuns.size());
-    }
-
-    // ---------- UDP ping responder ----------
-    static void runUdpResponder(int port) {
-        try (DatagramSocket ds = new DatagramSocket(port)) {
-            byte[] buf = new byte[1024];
-            System.out.println("[UDP] pronto em " + port);
-            while (true) {
-                DatagramPacket pkt = new DatagramPacket(buf, buf.length);
-                ds.receive(pkt);
-                // eco
-                DatagramPacket resp = new DatagramPacket(pkt.getData(), pkt.getLength(), pkt.getAddress(), pkt.getPort());
-                ds.send(resp);
-            }
-        } catch (IOException e) {
-            System.err.println("[UDP] erro: " + e.getMessage());
+        for (int i : porTier.getOrDefault(CatalogoCartas.RARA, new int[0])) cartasRaras.add(porIndice.em(i));
+        catalogo = porIndice;
+        drop = TabelaDrop.configurada(DROP_PESOS, porTier, porIndice::em, Set.of(CatalogoCartas.RARA));
+        montador = new Listagem.Montador(arquivo, porTier.getOrDefault(CatalogoCartas.COMUM, new int[0]),
+                "Raras:", "Comuns (ex.):", i -> porIndice.em(i).toString());
+        atualizarListagem();
+        Log.info(Log.SERVIDOR, "[CARDS] catálogo={} raras={} drop: {}", arquivo.tamanho(), cartasRaras.size(), drop);
+    }
+
+    // tira raras do cache local e remonta o "listar" se alguma saiu
+    static void tirarRaras(Predicate<Card> filtro) {
+        if (cartasRaras.removeIf(filtro)) atualizarListagem();
+    }
+
+    // Remonta a resposta do "listar" (versão + 1): só as entradas das raras
+    // livres são juntadas de novo (ver Listagem). Cada mudança em cartasRaras
+    // é seguida de uma remontagem, e elas se enfileiram no lock: a última
+    // sempre vê o estado final.
+    static void atualizarListagem() {
+        synchronized (listagemLock) {
+            int[] indices;
+            synchronized (cartasRaras) { indices = cartasRaras.stream().mapToInt(c -> c.indice).toArray(); }
+            listagem = montador.montar(indices);
         }
     }
 
-    // ---------- worker de duelos (consume queue:duels) ----------
+    // ---------- worker de duelos (consume duels:stream via FilaDuelos) ----------
+    // pares atômicos do consumer group; cada duelo roda no workerPool
     static void runDuelWorker() {
-        System.out.println("[WORKER] duel worker iniciado (consume queue:duels)");
-        while (true) {
-            try {
-                // BLPOP blocking (via JedisPooled uses blocking operation through underlying connection)
-                // Usamos timeout 0 em BLPOP com JedisPooled não há método direto -> usar Jedis (try-with-resources)
-                try (var j = new redis.clients.jedis.Jedis(REDIS_HOST, REDIS_PORT)) {
-                    List<String> item1 = j.blpop(0, "queue:duels");
-                    if (item1 == null || item1.size() < 2) continue;
-                    String p1Json = item1.get(1);
-                    List<String> item2 = j.blpop(0, "queue:duels");
-                    if (item2 == null || item2.size() < 2) continue;
-                    String p2Json = item2.get(1);
-
-                    DuelEntry e1 = gson.fromJson(p1Json, DuelEntry.class);
-                    DuelEntry e2 = gson.fromJson(p2Json, DuelEntry.class);
-
-                    workerPool.submit(() -> processDuel(e1, e2));
-                }
-            } catch (Exception ex) {
-                System.err.println("[WORKER] erro: " + ex.getMessage());
-                try { Thread.sleep(200); } catch (InterruptedException ignored) {}
-            }
-        }
+        filaDuelos.rodarWorker(workerPool, (j1, j2) ->
+                processDuel(gson.fromJson(j1, DuelEntry.class), gson.fromJson(j2, DuelEntry.class)));
     }
 
+    // exceção => o par não é confirmado e volta para a fila depois
     static void processDuel(DuelEntry e1, DuelEntry e2) {
-        try {
-            // get hands from redis
-            String j1 = jedis.hget("player:hand", e1.playerId);
-            String j2 = jedis.hget("player:hand", e2.playerId);
-            List<Card> mao1 = j1 == null ? new ArrayList<>() : Arrays.asList(gson.fromJson(j1, Card[].class));
-            List<Card> mao2 = j2 == null ? new ArrayList<>() : Arrays.asList(gson.fromJson(j2, Card[].class));
-
-            if (mao1.size() < 2 || mao2.size() < 2) {
-                // publish message result back
-                Map<String,String> r1 = Map.of("playerId", e1.playerId, "owner", e1.serverId, "result", "Um dos jogadores não tem cartas suficientes (min 2).");
-                Map<String,String> r2 = Map.of("playerId", e2.playerId, "owner", e2.serverId, "result", "Um dos jogadores não tem cartas suficientes (min 2).");
-                jedis.publish("duel:results", gson.toJson(r1));
-                jedis.publish("duel:results", gson.toJson(r2));
-                return;
+        // only the hand totals (n, atk, def): O(1), hands are not fetched
+        int[][] forcas = getForcasFromRedis(e1.playerId, e2.playerId);
+        int[] f1 = forcas[0], f2 = forcas[1];
+
+        if (f1[0] < 2 || f2[0] < 2) {
+            // publish message result back
+            publishResult(e1, e2, "Um dos jogadores não tem cartas suficientes (min 2).");
+            return;
+        }
+
+        int dano1 = f1[1] - f2[2];
+        int dano2 = f2[1] - f1[2];
+
+        String resultado;
+        if (dano1 > dano2) resultado = "Jogador 1 venceu!";
+        else if (dano2 > dano1) resultado = "Jogador 2 venceu!";
+        else resultado = "Empate!";
+
+        publishResult(e1, e2, "Resultado do duelo: " + resultado);
+    }
+
+    // each result goes only to the owning node's channel (duel:results:<serverId>),
+    // both in one round-trip: traffic grows with duels, not duels x nodes
+    static void publishResult(DuelEntry e1, DuelEntry e2, String resultado) {
+        CompletableFuture.allOf(
+                redis.enviar(p -> p.publish(canalResultados(e1.serverId), gson.toJson(Map.of("playerId", e1.playerId, "result", resultado)))),
+                redis.enviar(p -> p.publish(canalResultados(e2.serverId), gson.toJson(Map.of("playerId", e2.playerId, "result", resultado))))).join();
+    }
+
+    static String canalResultados(String serverId) {
+        return "duel:results:" + serverId;
+    }
+
+    // ---------- mão do jogador em Redis ----------
+    // hash player:hand:<playerId>, campo = id da carta, valor = quantidade.
+    // Um "pegar" é um único EVAL atômico de HINCRBYs (sem ler a mão antes),
+    // e a leitura traz só ids/quantidades; atk/def/nome vêm do catálogo local.
+    // KEYS = {mão, totais}; ARGV = {dn, datk, ddef, id1, q1, id2, q2, ...}
+    static final String LUA_SOMAR_CARTAS =
+            "redis.call('HINCRBY', KEYS[2], 'n', ARGV[1]) " +
+            "redis.call('HINCRBY', KEYS[2], 'atk', ARGV[2]) " +
+            "redis.call('HINCRBY', KEYS[2], 'def', ARGV[3]) " +
+            "for i = 4, #ARGV, 2 do redis.call('HINCRBY', KEYS[1], ARGV[i], ARGV[i + 1]) end return 1";
+
+    static String chaveMao(String playerId) {
+        return "player:hand:" + playerId;
+    }
+
+    // totais da mão (n, atk, def), atualizados no mesmo script que a mão:
+    // o duelo lê só isto, sem buscar as cartas
+    static String chaveForca(String playerId) {
+        return "player:stats:" + playerId;
+    }
+
+    // ARGV do LUA_SOMAR_CARTAS: deltas dos totais (pelo catálogo local) + pares id/quantidade
+    static List<String> argvSomar(Map<Integer, Integer> quantidades) {
+        int n = 0, atk = 0, def = 0;
+        List<String> pares = new ArrayList<>(quantidades.size() * 2);
+        for (Map.Entry<Integer, Integer> e : quantidades.entrySet()) {
+            Card c = catalogo.porId(e.getKey());
+            n += e.getValue();
+            if (c != null) {
+                atk += c.ataque * e.getValue();
+                def += c.defesa * e.getValue();
             }
+            pares.add(String.valueOf(e.getKey()));
+            pares.add(String.valueOf(e.getValue()));
+        }
+        List<String> argv = new ArrayList<>(List.of(String.valueOf(n), String.valueOf(atk), String.valueOf(def)));
+        argv.addAll(pares);
+        return argv;
+    }
+
+    // {cartas, ataque, defesa} dos dois jogadores num só round-trip
+    static int[][] getForcasFromRedis(String playerId1, String playerId2) {
+        CompletableFuture<List<String>> r1 = redis.enviar(p -> p.hmget(chaveForca(playerId1), "n", "atk", "def"));
+        CompletableFuture<List<String>> r2 = redis.enviar(p -> p.hmget(chaveForca(playerId2), "n", "atk", "def"));
+        return new int[][] { forca(DespachanteRedis.esperar(r1)), forca(DespachanteRedis.esperar(r2)) };
+    }
+
+    static int[] forca(List<String> campos) {
+        int[] f = new int[3];
+        for (int i = 0; i < 3; i++) {
+            String v = campos == null ? null : campos.get(i);
+            f[i] = v == null ? 0 : Integer.parseInt(v);
+        }
+        return f;
+    }
 
-            int atk1 = mao1.stream().mapToInt(c -> c.ataque).sum();
-            int def1 = mao1.stream().mapToInt(c -> c.defesa).sum();
-            int atk2 = mao2.stream().mapToInt(c -> c.ataque).sum();
-            int def2 = mao2.stream().mapToInt(c -> c.defesa).sum();
-            int dano1 = atk1 - def2;
-            int dano2 = atk2 - def1;
+    static CompletableFuture<Object> addToHandInRedis(String playerId, List<Card> cartas) {
+        Map<Integer, Integer> quantidades = new TreeMap<>();
+        for (Card c : cartas) quantidades.merge(c.id, 1, Integer::sum);
+        if (quantidades.isEmpty()) return CompletableFuture.completedFuture(null);
+        List<String> argv = argvSomar(quantidades);
+        return redis.enviar(p -> p.eval(LUA_SOMAR_CARTAS, List.of(chaveMao(playerId), chaveForca(playerId)), argv));
+    }
+
+    static CompletableFuture<List<Card>> getHandFromRedis(String playerId) {
+        return redis.enviar(p -> p.hgetAll(chaveMao(playerId))).thenApply(ServidorRaftRedis::expandirMao);
+    }
 
-            String resultado;
-            if (dano1 > dano2) resultado = "Jogador 1 venceu!";
-            else if (dano2 > dano1) resultado = "Jogador 2 venceu!";
-            else resultado = "Empate!";
+    // {id -> quantidade} -> lista de cartas (ordenada por id, repetidas conforme a quantidade)
+    static List<Card> expandirMao(Map<String, String> quantidades) {
+        List<Card> mao = new ArrayList<>();
+        if (quantidades == null || quantidades.isEmpty()) return mao;
+        for (Map.Entry<Integer, Integer> e : ordenarPorId(quantidades).entrySet()) {
+            Card c = catalogo.porId(e.getKey());
+            if (c == null) {
+                Log.aviso(Log.SERVIDOR, "[MAO] carta {} fora do catálogo local", e.getKey());
+                continue;
+            }
+            for (int i = 0; i < e.getValue(); i++) mao.add(c);
+        }
+        return mao;
+    }
 
-            Map<String,String> r1 = Map.of("playerId", e1.playerId, "owner", e1.serverId, "result", resultado);
-            Map<String,String> r2 = Map.of("playerId", e2.playerId, "owner", e2.serverId, "result", resultado);
-            jedis.publish("duel:results", gson.toJson(r1));
-            jedis.publish("duel:results", gson.toJson(r2));
-        } catch (Exception ex) {
-            System.err.println("[WORKER] processDuel erro: " + ex.getMessage());
+    static TreeMap<Integer, Integer> ordenarPorId(Map<String, String> quantidades) {
+        TreeMap<Integer, Integer> r = new TreeMap<>();
+        for (Map.Entry<String, String> e : quantidades.entrySet()) {
+            int n = Integer.parseInt(e.getValue());
+            if (n > 0) r.put(Integer.parseInt(e.getKey()), n);
         }
+        return r;
     }
 
     // ---------- subscribers (duel results and cards events) ----------
-    static void runSubscribers() {
+    static void runSubscribers(String serverId) {
+        String meusResultados = canalResultados(serverId);
         try (var j = new redis.clients.jedis.Jedis(REDIS_HOST, REDIS_PORT)) {
             j.subscribe(new redis.clients.jedis.JedisPubSub() {
                 @Override
                 public void onMessage(String channel, String message) {
                     if ("cards:events".equals(channel)) {
                         // message: DELIVERED <cardId> <playerId> <serverId>
-                        System.out.println("[PUBSUB cards:events] " + message);
+                        Log.info(Log.PUBSUB, "[PUBSUB cards:events] {}", message);
                         // remove rare from local cache (if present)
                         try {
                             String[] parts = message.split(" ");
                             if (parts.length >= 2 && parts[0].equals("DELIVERED")) {
                                 int cardId = Integer.parseInt(parts[1]);
-                                cartasRaras.removeIf(c -> c.id == cardId);
+                                tirarRaras(c -> c.id == cardId);
                             }
                         } catch (Exception ignored) {}
-                    } else if ("duel:results".equals(channel)) {
+                    } else if (meusResultados.equals(channel)) {
+                        // result for a player connected here: goes to the session's write queue
                         try {
-                            Map res = gson.fromJson(message, Map.class);
-                            String owner = (String) res.get("owner");
+                            Map<?, ?> res = gson.fromJson(message, Map.class);
                             String playerId = (String) res.get("playerId");
                             String result = (String) res.get("result");
-                            // if owner matches this host? We don't know owner mapping here; we send anyway into a redis hash for owner
-                            // Better: publish and let each server check if player is local
-                            // For simplicity we publish to a hash results:playerId -> result; local servers will pick it up if needed
-                            jedis.hset("duel:result:" + playerId, "result", result);
+                            ClientHandler h = localPlayers.get(playerId);
+                            if (h == null) Log.info(Log.PUBSUB, "[SUB duel:results] {} já desconectou", playerId);
+                            else h.send(result); // só enfileira: um socket lento não trava o subscriber
                         } catch (Exception ex) {
-                            System.err.println("[SUB duel:results] parse error: " + ex.getMessage());
+                            Log.erro(Log.PUBSUB, "[SUB duel:results] parse error: {}", ex.getMessage());
                         }
                     }
                 }
-            }, "cards:events", "duel:results");
+            }, "cards:events", meusResultados);
         } catch (Exception e) {
-            System.err.println("[SUBSCRIBER] erro: " + e.getMessage());
+            Log.erro(Log.PUBSUB, "[SUBSCRIBER] erro: {}", e.getMessage());
         }
     }
 
-    // ---------- try claim rare using etcd transaction ----------
-    static boolean tryClaimRareWithEtcd(int cardId, String playerId, String serverId) {
-        try {
-            KV kv = etcdClient.getKVClient();
-            String keyStr = "card:rare:" + cardId;
-            ByteSequence key = ByteSequence.from(keyStr, StandardCharsets.UTF_8);
-            String valueStr = serverId + ":" + playerId + ":" + System.currentTimeMillis();
-            ByteSequence value = ByteSequence.from(valueStr, StandardCharsets.UTF_8);
-
-            // Compare: create_revision(key) == 0 => key doesn't exist yet
-            Cmp cmp = new Cmp(key, Cmp.Op.EQUAL, CmpTarget.version(0));
-            Txn txn = kv.txn();
-            CompletableFuture<TxnResponse> f = txn.If(cmp)
-                    .Then(Op.put(key, value, PutOption.DEFAULT))
-                    .commit();
-            TxnResponse resp = f.get(3, TimeUnit.SECONDS);
+    // ---------- sortear pacote(s) (3 cartas cada) ----------
+    // "pegar N": sorteia quais slots tentam rara, pega-as do inventário local
+    // (ou reserva no etcd, se ele esvaziou) e completa com comuns
+    static CompletableFuture<List<Card>> sortearPacotes(String playerId, String serverId, int quantidade, TabelaDrop.Pity pity) {
+        long t0 = System.nanoTime();
+        TabelaDrop<Card> tabela = drop;
+        int[] tiers = tabela.sortearTiers(quantidade, pity);
+        int pedidas = 0;
+        for (int tier : tiers) {
+            if (tabela.unico(tier)) pedidas++;
+        }
+        CompletableFuture<List<Card>> rarasF = pedidas == 0
+                ? CompletableFuture.completedFuture(Collections.<Card>emptyList())
+                : obterRaras(playerId, serverId, pedidas);
+
+        return rarasF.thenApply(ganhas -> {
+            Iterator<Card> raras = ganhas.iterator();
+            List<Card> pacote = new ArrayList<>(tiers.length);
+            for (int k = 0; k < tiers.length; k++) {
+                int tier = tiers[k];
+                if (tabela.unico(tier)) {
+                    if (raras.hasNext()) { pacote.add(raras.next()); continue; }
+                    tier = tiers[k] = tabela.substituto(); // fallback: tier repetível (can repeat)
+                }
+                pacote.add(tabela.carta(tier));
+            }
+            tabela.registrarEntrega(pity, tiers); // pity só zera com rara entregue
+            LATENCIA_SORTEIO.desde(t0);
+            return pacote;
+        });
+    }
+
+    // Raras para um pedido: primeiro do inventário pré-reservado (sem chamada
+    // remota); só se ele acabou cai no claim síncrono em lote
+    static CompletableFuture<List<Card>> obterRaras(String playerId, String serverId, int quantas) {
+        CompletableFuture<List<Card>> doInventario = inventario != null
+                ? inventario.retirar(playerId, quantas)
+                : CompletableFuture.completedFuture(new ArrayList<>());
+        return doInventario.thenCompose(raras -> {
+            if (raras.size() >= quantas) return CompletableFuture.completedFuture(raras);
+            return claimRaras(playerId, serverId, quantas - raras.size()).thenApply(ganhas -> {
+                raras.addAll(ganhas);
+                return raras;
+            });
+        });
+    }
+
+    // ---------- claim de raras em lote no etcd ----------
+    // 1) uma leitura do prefixo card:rare: diz quais raras já têm dono no cluster
+    //    (saem do cache) e quais estão só reservadas sob a lease de outro nó
+    //    (ficam no cache, mas não entram nesta rodada: voltam se a lease cair);
+    // 2) uma transação "If(todas as chaves escolhidas version==0) Then(put em todas)
+    //    Else(get em todas)" reserva o lote inteiro de uma vez;
+    // 3) se alguma foi tomada no meio tempo, o Else mostra quais: as ainda livres
+    //    (mais substitutas) vão numa segunda transação. No máximo MAX_TXN_CLAIM.
+    // Nenhum lock é mantido durante as chamadas ao etcd.
+    // Tudo assíncrono: cada etapa começa quando a resposta anterior chega, sem
+    // thread parada esperando o etcd.
+    static CompletableFuture<List<Card>> claimRaras(String playerId, String serverId, int quantas) {
+        List<Card> ganhas = new ArrayList<>();
+        List<String> valores = new ArrayList<>();
+        if (cartasRaras.isEmpty()) return CompletableFuture.completedFuture(ganhas); // nada livre no cache local
+        KV kv = etcdClient.getKVClient();
+        return lerRarasTomadasAsync(kv)
+                .thenCompose(tomadas -> {
+                    LinkedList<Card> livres = candidatas(tomadas);
+                    Collections.shuffle(livres, ThreadLocalRandom.current()); // nós diferentes tendem a disputar raras diferentes
+                    return rodadaClaim(kv, playerId, serverId, quantas, livres, ganhas, valores, 0);
+                })
+                .exceptionally(e -> {
+                    Log.erro(Log.RARAS, "[ETCD] claim error: {}", e.getMessage());
+                    return null; // fica com o que já ganhou
+                })
+                .thenCompose(x -> ganhas.isEmpty()
+                        ? CompletableFuture.completedFuture(ganhas)
+                        : marcarEntregues(ganhas, valores, playerId, serverId).thenApply(v -> ganhas));
+    }
+
+    // uma transação do claim; encadeia a próxima se faltar rara e ainda houver livres
+    static CompletableFuture<Void> rodadaClaim(KV kv, String playerId, String serverId, int quantas,
+                                               LinkedList<Card> livres, List<Card> ganhas, List<String> valores, int txn) {
+        if (txn >= MAX_TXN_CLAIM || ganhas.size() >= quantas || livres.isEmpty()) return CompletableFuture.completedFuture(null);
+        List<Card> lote = new ArrayList<>();
+        Iterator<Card> it = livres.iterator();
+        while (it.hasNext() && lote.size() < quantas - ganhas.size()) {
+            Card c = it.next();
+            it.remove();
+            if (emReserva.add(c.id)) lote.add(c);
+        }
+        if (lote.isEmpty()) return CompletableFuture.completedFuture(null);
+
+        String[] vals = new String[lote.size()];
+        for (int i = 0; i < vals.length; i++) vals[i] = serverId + ":" + playerId + ":" + System.currentTimeMillis();
+        return txnLoteAsync(kv, lote, vals, PutOption.DEFAULT, livres)
+                .whenComplete((ok, e) -> { for (Card c : lote) emReserva.remove(c.id); })
+                .thenCompose(ok -> {
+                    if (ok) {
+                        ganhas.addAll(lote);
+                        valores.addAll(Arrays.asList(vals));
+                    }
+                    return rodadaClaim(kv, playerId, serverId, quantas, livres, ganhas, valores, txn + 1);
+                });
+    }
+
+    // ---------- teste: raras reservadas por um nó morto voltam ao pool ----------
+    // java ServidorRaftRedis --teste-lease (use etcd/Redis de teste: grava card:rare:*)
+    // Outro "nó" reserva raras sob a sua lease; enquanto ela vale, o claim
+    // deste nó não ganha nenhuma mas as mantém no cache. A lease é revogada
+    // (nó morto: o etcd apaga as chaves) e o claim seguinte ganha todas.
+    static boolean testeLease(String serverId) throws Exception {
+        List<Card> alvo;
+        synchronized (cartasRaras) {
+            alvo = new ArrayList<>(cartasRaras.subList(0, Math.min(3, cartasRaras.size())));
+        }
+        cartasRaras.retainAll(alvo);
+        KV kv = etcdClient.getKVClient();
+        Lease lease = etcdClient.getLeaseClient();
+        long leaseMorto = lease.grant(60).get(3, TimeUnit.SECONDS).getID();
+        PutOption comLease = PutOption.newBuilder().withLeaseId(leaseMorto).build();
+        for (Card c : alvo) {
+            kv.put(ByteSequence.from(RARE_PREFIX + c.id, StandardCharsets.UTF_8),
+                    ByteSequence.from("reservada:no-morto", StandardCharsets.UTF_8), comLease).get(3, TimeUnit.SECONDS);
+        }
+
+        List<Card> antes = claimRaras("teste-lease", serverId, alvo.size()).get(10, TimeUnit.SECONDS);
+        boolean ok = !alvo.isEmpty() && antes.isEmpty() && cartasRaras.size() == alvo.size();
+        lease.revoke(leaseMorto).get(3, TimeUnit.SECONDS); // o nó morre: o etcd apaga as reservas dele
+        List<Card> depois = claimRaras("teste-lease", serverId, alvo.size()).get(10, TimeUnit.SECONDS);
+        ok &= depois.size() == alvo.size() && cartasRaras.isEmpty();
+
+        for (Card c : alvo) {
+            kv.delete(ByteSequence.from(RARE_PREFIX + c.id, StandardCharsets.UTF_8)).get(3, TimeUnit.SECONDS);
+            jedis.hdel("cards:delivered", String.valueOf(c.id));
+        }
+        System.out.println("[TESTE-LEASE] " + (ok ? "OK" : "FALHA") + ": raras=" + alvo.size()
+                + " com lease viva=" + antes.size() + " depois de revogar=" + depois.size());
+        return ok;
+    }
+
+    // mark delivered persistently in redis hash and publish events (one round-trip)
+    static CompletableFuture<Void> marcarEntregues(List<Card> cartas, List<String> valores, String playerId, String serverId) {
+        List<CompletableFuture<Long>> fs = new ArrayList<>();
+        for (int i = 0; i < cartas.size(); i++) {
+            String cardId = String.valueOf(cartas.get(i).id);
+            String valor = valores.get(i);
+            fs.add(redis.enviar(p -> p.hset("cards:delivered", cardId, valor)));
+            fs.add(redis.enviar(p -> p.publish("cards:events", "DELIVERED " + cardId + " " + playerId + " " + serverId)));
+        }
+        return CompletableFuture.allOf(fs.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            for (Card c : cartas) Log.info(Log.RARAS, "[ETCD] claimed rare {} for player {} by {}", c.id, playerId, serverId);
+        });
+    }
+
+    // If(todas as chaves do lote livres) Then(put de todas) Else(get de todas).
+    // true se o lote inteiro foi gravado (e sai do cache local); senão remove do
+    // cache as que já têm dono definitivo, deixa no cache (fora desta rodada) as
+    // reservadas por outro nó e devolve no início de "livres" as que seguem livres.
+    static boolean txnLote(KV kv, List<Card> lote, String[] vals, PutOption opcao, Deque<Card> livres) throws Exception {
+        return txnLoteAsync(kv, lote, vals, opcao, livres).get();
+    }
+
+    static CompletableFuture<Boolean> txnLoteAsync(KV kv, List<Card> lote, String[] vals, PutOption opcao, Deque<Card> livres) {
+        int n = lote.size();
+        Cmp[] cmps = new Cmp[n];
+        Op[] puts = new Op[n];
+        Op[] gets = new Op[n];
+        for (int i = 0; i < n; i++) {
+            ByteSequence key = ByteSequence.from(RARE_PREFIX + lote.get(i).id, StandardCharsets.UTF_8);
+            // version(key) == 0 => key doesn't exist yet
+            cmps[i] = new Cmp(key, Cmp.Op.EQUAL, CmpTarget.version(0));
+            puts[i] = Op.put(key, ByteSequence.from(vals[i], StandardCharsets.UTF_8), opcao);
+            gets[i] = Op.get(key, GetOption.DEFAULT);
+        }
+        long t0 = System.nanoTime();
+        return kv.txn().If(cmps).Then(puts).Else(gets).commit().orTimeout(3, TimeUnit.SECONDS).whenComplete((resp, e) -> {
+            LATENCIA_TXN.desde(t0);
+            (e != null ? TXN_ERRO : resp.isSucceeded() ? TXN_OK : TXN_CONFLITO).inc();
+        }).thenApply(resp -> {
             if (resp.isSucceeded()) {
-                // mark delivered persistently in redis hash and publish event
-                jedis.hset("cards:delivered", String.valueOf(cardId), valueStr);
-                jedis.publish("cards:events", "DELIVERED " + cardId + " " + playerId + " " + serverId);
-                System.out.println("[ETCD] claimed rare " + cardId + " for player " + playerId + " by " + serverId);
+                tirarRaras(lote::contains);
                 return true;
-            } else {
-                return false;
             }
-        } catch (Exception e) {
-            System.err.println("[ETCD] claim error: " + e.getMessage());
+            // Else: um GetResponse por chave, na ordem do lote
+            List<GetResponse> estado = resp.getGetResponses();
+            Set<Card> tomadas = new HashSet<>();
+            for (int i = n - 1; i >= 0; i--) {
+                Card c = lote.get(i);
+                GetResponse g = estado.get(i);
+                if (g.getCount() == 0) livres.addFirst(c); // continua livre: tenta de novo na próxima
+                else if (definitiva(g.getKvs().get(0).getValue().toString(StandardCharsets.UTF_8))) tomadas.add(c);
+            }
+            tirarRaras(tomadas::contains);
             return false;
+        });
+    }
+
+    // valor de card:rare:<id>: "reservada:<nó>" é reserva presa à lease de um
+    // nó (some se ele morrer); qualquer outro valor é o dono definitivo
+    static boolean definitiva(String valor) {
+        return !valor.startsWith("reservada:");
+    }
+
+    // id -> valor de cada chave card:rare:<id> no etcd (uma leitura de range;
+    // os valores são curtos e dizem se a rara tem dono ou só reserva)
+    static Map<Integer, String> lerRarasTomadas(KV kv) throws Exception {
+        return lerRarasTomadasAsync(kv).get();
+    }
+
+    static CompletableFuture<Map<Integer, String>> lerRarasTomadasAsync(KV kv) {
+        ByteSequence prefixo = ByteSequence.from(RARE_PREFIX, StandardCharsets.UTF_8);
+        GetOption opt = GetOption.newBuilder().withPrefix(prefixo).build();
+        return kv.get(prefixo, opt).orTimeout(3, TimeUnit.SECONDS).thenApply(resp -> {
+            Map<Integer, String> ids = new HashMap<>();
+            for (KeyValue kvp : resp.getKvs()) {
+                String chave = kvp.getKey().toString(StandardCharsets.UTF_8);
+                try {
+                    ids.put(Integer.parseInt(chave.substring(RARE_PREFIX.length())), kvp.getValue().toString(StandardCharsets.UTF_8));
+                } catch (NumberFormatException ignored) {}
+            }
+            return ids;
+        });
+    }
+
+    // Tira do cache as raras com dono definitivo e devolve as candidatas: as
+    // do cache sem chave no etcd. As reservadas por outro nó ficam no cache.
+    static LinkedList<Card> candidatas(Map<Integer, String> tomadas) {
+        if (!tomadas.isEmpty()) tirarRaras(c -> { String v = tomadas.get(c.id); return v != null && definitiva(v); });
+        LinkedList<Card> livres = new LinkedList<>();
+        synchronized (cartasRaras) {
+            for (Card c : cartasRaras) if (!tomadas.containsKey(c.id)) livres.add(c);
         }
+        return livres;
     }
 
-    // ---------- sortear pacote (3 cartas) ----------
-    static List<Card> sortearPacote(String playerId, String serverId) {
-        List<Card> pacote = new ArrayList<>();
-        for (int i = 0; i < 3; i++) {
-            boolean tryRare = rnd.nextDouble() < RARE_PROB;
-            if (tryRare) {
-                Card chosen = null;
-                synchronized (cartasRaras) {
-                    // iterate and try claim in etcd
-                    for (Card c : new ArrayList<>(cartasRaras)) {
-                        if (tryClaimRareWithEtcd(c.id, playerId, serverId)) {
-                            chosen = c.clone();
-                            cartasRaras.removeIf(x -> x.id == c.id);
-                            break;
-                        }
+    // ---------- inventário local de raras (lease do etcd) ----------
+    // Em segundo plano o nó reserva até INVENTARIO_ALVO raras gravando
+    // card:rare:<id> = "reservada:<serverId>" presas a uma lease própria. O
+    // "pegar" tira daqui sem esperar uma rodada de claim, mas só responde
+    // depois de regravar a chave sem lease (txn If value == marca) e marcar
+    // entregue no Redis; só as confirmadas vão para a mão. Se o nó morrer ou
+    // perder a lease, o etcd apaga apenas as chaves ainda reservadas: uma
+    // rara já entregue tem dono sem lease e nunca volta ao pool.
+    static class InventarioRaras implements Runnable {
+        final String serverId;
+        final String marca;
+        final ConcurrentLinkedQueue<Card> reservadas = new ConcurrentLinkedQueue<>();
+        final Semaphore acordar = new Semaphore(0);
+        volatile long leaseId = 0;
+        volatile io.etcd.jetcd.support.CloseableClient keepAlive;
+        volatile boolean ativo = true;
+
+        InventarioRaras(String serverId) {
+            this.serverId = serverId;
+            this.marca = "reservada:" + serverId;
+        }
+
+        // chamado no caminho do "pegar": uma txn por rara, em paralelo. Falha
+        // ou timeout conta como perdida (no pior caso a rara fica com dono e
+        // fora de qualquer mão, nunca em duas). Ela volta ao cache como
+        // candidata: se a chave ainda existir, a próxima leitura do prefixo decide.
+        CompletableFuture<List<Card>> retirar(String playerId, int quantas) {
+            List<Card> tiradas = new ArrayList<>();
+            Card c;
+            while (tiradas.size() < quantas && (c = reservadas.poll()) != null) tiradas.add(c);
+            if (tiradas.isEmpty()) return CompletableFuture.completedFuture(tiradas);
+            acordar.release();
+
+            KV kv = etcdClient.getKVClient();
+            ByteSequence marcaBs = ByteSequence.from(marca, StandardCharsets.UTF_8);
+            String[] vals = new String[tiradas.size()];
+            List<CompletableFuture<Boolean>> fs = new ArrayList<>();
+            for (int i = 0; i < vals.length; i++) {
+                ByteSequence key = ByteSequence.from(RARE_PREFIX + tiradas.get(i).id, StandardCharsets.UTF_8);
+                vals[i] = serverId + ":" + playerId + ":" + System.currentTimeMillis();
+                fs.add(kv.txn()
+                        .If(new Cmp(key, Cmp.Op.EQUAL, CmpTarget.value(marcaBs)))
+                        .Then(Op.put(key, ByteSequence.from(vals[i], StandardCharsets.UTF_8), PutOption.DEFAULT))
+                        .commit().orTimeout(3, TimeUnit.SECONDS)
+                        .thenApply(TxnResponse::isSucceeded)
+                        .exceptionally(e -> false));
+            }
+            return CompletableFuture.allOf(fs.toArray(new CompletableFuture<?>[0])).thenCompose(x -> {
+                List<Card> r = new ArrayList<>();
+                List<String> valores = new ArrayList<>();
+                boolean devolveu = false;
+                for (int i = 0; i < vals.length; i++) {
+                    if (fs.get(i).join()) {
+                        r.add(tiradas.get(i));
+                        valores.add(vals[i]);
+                    } else {
+                        Log.aviso(Log.RARAS, "[INVENTARIO] reserva da rara {} perdida antes da entrega", tiradas.get(i).id);
+                        if (!cartasRaras.contains(tiradas.get(i))) devolveu |= cartasRaras.add(tiradas.get(i));
                     }
                 }
-                if (chosen != null) { pacote.add(chosen); continue; }
+                if (devolveu) atualizarListagem();
+                return r.isEmpty() ? CompletableFuture.completedFuture(r)
+                        : marcarEntregues(r, valores, playerId, serverId).thenApply(v -> r);
+            });
+        }
+
+        @Override
+        public void run() {
+            Log.info(Log.RARAS, "[INVENTARIO] mantendo {} raras reservadas (lease {}s)", INVENTARIO_ALVO, LEASE_TTL_S);
+            while (ativo) {
+                try {
+                    reabastecer();
+                } catch (Exception e) {
+                    Log.erro(Log.RARAS, "[INVENTARIO] erro: {}", e.getMessage());
+                }
+                try {
+                    acordar.tryAcquire(500, TimeUnit.MILLISECONDS);
+                    acordar.drainPermits();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void reabastecer() throws Exception {
+            int faltam = INVENTARIO_ALVO - reservadas.size();
+            if (faltam <= 0 || cartasRaras.isEmpty()) return;
+            if (leaseId == 0) novaLease();
+
+            KV kv = etcdClient.getKVClient();
+            LinkedList<Card> livres = candidatas(lerRarasTomadas(kv));
+            Collections.shuffle(livres, ThreadLocalRandom.current());
+
+            List<Card> lote = new ArrayList<>();
+            for (Card c : livres) {
+                if (lote.size() >= faltam) break;
+                if (emReserva.add(c.id)) lote.add(c);
+            }
+            if (lote.isEmpty()) return;
+            try {
+                String[] vals = new String[lote.size()];
+                Arrays.fill(vals, marca);
+                PutOption comLease = PutOption.newBuilder().withLeaseId(leaseId).build();
+                if (txnLote(kv, lote, vals, comLease, new LinkedList<>())) {
+                    reservadas.addAll(lote);
+                    Log.info(Log.RARAS, "[INVENTARIO] reservadas {} raras (lease {})", lote.size(), Long.toHexString(leaseId));
+                }
+            } finally {
+                for (Card c : lote) emReserva.remove(c.id);
+            }
+        }
+
+        void novaLease() throws Exception {
+            Lease lease = etcdClient.getLeaseClient();
+            long id = lease.grant(LEASE_TTL_S).get(3, TimeUnit.SECONDS).getID();
+            keepAlive = lease.keepAlive(id, new io.grpc.stub.StreamObserver<io.etcd.jetcd.lease.LeaseKeepAliveResponse>() {
+                @Override public void onNext(io.etcd.jetcd.lease.LeaseKeepAliveResponse r) {}
+                @Override public void onError(Throwable t) { perderLease(id, t.getMessage()); }
+                @Override public void onCompleted() { perderLease(id, "keepalive encerrado"); }
+            });
+            leaseId = id;
+        }
+
+        // lease perdida: as chaves reservadas somem do etcd, então as raras
+        // ainda em "reservadas" voltam ao cache local como candidatas. As já
+        // retiradas saíram da fila antes da txn de entrega e não voltam.
+        void perderLease(long id, String motivo) {
+            if (leaseId != id) return;
+            leaseId = 0;
+            Log.aviso(Log.RARAS, "[INVENTARIO] lease {} perdida: {}", Long.toHexString(id), motivo);
+            Card c;
+            while ((c = reservadas.poll()) != null) cartasRaras.add(c);
+            atualizarListagem();
+            acordar.release();
+        }
+
+        // desligamento limpo: revoga a lease (as raras não entregues voltam
+        // ao pool na hora, sem esperar o TTL)
+        void encerrar() {
+            ativo = false;
+            try {
+                if (keepAlive != null) keepAlive.close();
+                if (leaseId != 0) etcdClient.getLeaseClient().revoke(leaseId).get(3, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                Log.erro(Log.RARAS, "[INVENTARIO] erro ao encerrar: {}", e.getMessage());
             }
-            // fallback: random common (can repeat)
-            Card base = cartasComuns.get(rnd.nextInt(cartasComuns.size()));
-            pacote.add(base.clone());
         }
-        return pacote;
     }
 
     // ---------- Client Handler ----------
     static class ClientHandler implements Runnable {
         private final Socket sock;
         private final String serverId;
+        private BufferedInputStream rawIn;
+        private OutputStream rawOut;
         private BufferedReader in;
-        private BufferedWriter out;
         private final String playerId;
+        private volatile boolean binario = false;
+        private final long sessao = ping.novaSessao(); // token dos pings UDP
+        private final TabelaDrop.Pity pity = new TabelaDrop.Pity(); // pacotes seguidos sem rara
+        // comandos da sessão encadeados: cada um começa quando o anterior
+        // respondeu (ordem preservada) e a thread de leitura não espera nada
+        private CompletableFuture<Boolean> fila = CompletableFuture.completedFuture(true);
+        private final AtomicBoolean fechado = new AtomicBoolean();
+        // respostas da sessão: byte[] (ou byte[][], um quadro em partes) a
+        // escrever ou Runnable que roda quando tudo antes dele já foi para o
+        // socket (libera vaga em voo, fecha).
+        // Só a tarefa de escrita da sessão toca o socket, então um leitor
+        // lento segura a própria tarefa e não o pool "respostas".
+        private final ConcurrentLinkedQueue<Object> saida = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean escrevendo = new AtomicBoolean();
+        private final Semaphore emVoo = new Semaphore(MAX_EM_VOO);
 
         ClientHandler(Socket sock, String serverId) {
             this.sock = sock;
             this.serverId = serverId;
             this.playerId = sock.getRemoteSocketAddress().toString() + "-" + UUID.randomUUID().toString().substring(0,6);
             try {
-                in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
-                out = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream(), StandardCharsets.UTF_8));
+                rawIn = new BufferedInputStream(sock.getInputStream());
+                rawOut = new BufferedOutputStream(sock.getOutputStream());
+                in = new BufferedReader(new InputStreamReader(rawIn, StandardCharsets.UTF_8));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -320,77 +796,228 @@ public class ServidorRaftRedis {
 
         @Override
         public void run() {
+            localPlayers.put(playerId, this);
             try {
                 send("Bem-vindo! playerId=" + playerId);
+                // primeiro byte == MAGIC -> protocolo binário
+                rawIn.mark(1);
+                int primeiro = rawIn.read();
+                if (primeiro == ProtocoloBinario.MAGIC) {
+                    binario = true;
+                    sendQuadro(ProtocoloBinario.hello());
+                    ProtocoloBinario.Quadro q;
+                    while ((q = ProtocoloBinario.ler(rawIn, ProtocoloBinario.MAX_PAYLOAD_PEDIDO)) != null) {
+                        enfileirar(ProtocoloBinario.linhaDoPedido(q), q.requisicao);
+                    }
+                    return;
+                }
+                if (primeiro >= 0) rawIn.reset();
+
                 String line;
                 while ((line = in.readLine()) != null) {
                     line = line.trim();
                     if (line.isEmpty()) continue;
-                    System.out.println("[" + playerId + "] " + line);
-                    String lc = line.toLowerCase();
-                    if (lc.equals("listar")) {
-                        StringBuilder sb = new StringBuilder();
-                        sb.append("Raras:\n");
-                        synchronized (cartasRaras) { for (Card c : cartasRaras) sb.append(c.toString()).append("\n"); }
-                        sb.append("Comuns (ex.):\n");
-                        synchronized (cartasComuns) { for (int i = 0; i < Math.min(10, cartasComuns.size()); i++) sb.append(cartasComuns.get(i).toString()).append("\n"); }
-                        send(sb.toString());
-                    } else if (lc.equals("pegar")) {
-                        List<Card> pacote = sortearPacote(playerId, serverId);
-                        // merge with existing hand in redis
-                        String existing = jedis.hget("player:hand", playerId);
-                        List<Card> mao = existing == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(gson.fromJson(existing, Card[].class)));
-                        mao.addAll(pacote);
-                        jedis.hset("player:hand", playerId, gson.toJson(mao));
-                        send("CARTAS_RECEBIDAS:");
-                        for (Card c : pacote) send(c.toString());
-                    } else if (lc.equals("mao")) {
-                        String j = jedis.hget("player:hand", playerId);
-                        if (j == null) send("Sua mão está vazia.");
-                        else {
-                            Card[] arr = gson.fromJson(j, Card[].class);
-                            send("Sua mão:");
-                            for (int i = 0; i < arr.length; i++) send((i+1) + ". " + arr[i].toString());
+                    enfileirar(line, 0);
+                }
+            } catch (IOException e) {
+                if (!fechado.get()) Log.aviso(Log.CONEXAO, "[HANDLER] {}", e.getMessage()); // "sair" fecha o socket
+            } finally {
+                // fecha só depois que as respostas dos comandos em voo saírem
+                fila.whenComplete((continuar, e) -> enfileirarSaida((Runnable) this::fechar));
+            }
+        }
+
+        // roda na thread de leitura: com MAX_EM_VOO comandos pendentes ela
+        // espera aqui, sem ler mais nada do cliente
+        private void enfileirar(String line, int req) {
+            emVoo.acquireUninterruptibly();
+            fila = fila.thenComposeAsync(continuar -> {
+                if (!continuar) return CompletableFuture.completedFuture(false);
+                long t0 = System.nanoTime();
+                CompletableFuture<Boolean> f;
+                try {
+                    f = processarComando(line, req);
+                } catch (RuntimeException e) {
+                    f = CompletableFuture.failedFuture(e);
+                }
+                return f.handle((ok, e) -> {
+                    LATENCIA_COMANDO.de(line).desde(t0);
+                    if (e != null) {
+                        Log.erro(Log.COMANDO, "[{}] erro em '{}': {}", playerId, line, e);
+                        responder(req, () -> send("Erro interno, tente novamente."));
+                    }
+                    enfileirarSaida((Runnable) emVoo::release); // a vaga volta quando a resposta sair
+                    if (e == null && !ok) enfileirarSaida((Runnable) this::fechar);
+                    return e != null || ok;
+                });
+            }, respostas);
+        }
+
+        private void enfileirarSaida(Object item) {
+            saida.add(item);
+            if (escrevendo.compareAndSet(false, true)) clientPool.execute(this::escreverPendente);
+        }
+
+        // tarefa de escrita da sessão (uma por vez, no clientPool); depois de
+        // fechada descarta os bytes, mas ainda roda os Runnable
+        private void escreverPendente() {
+            do {
+                Object item;
+                while ((item = saida.poll()) != null) {
+                    if (item instanceof Runnable) {
+                        ((Runnable) item).run();
+                        continue;
+                    }
+                    if (fechado.get()) continue;
+                    try {
+                        if (item instanceof byte[][]) {
+                            for (byte[] p : (byte[][]) item) rawOut.write(p);
+                        } else {
+                            rawOut.write((byte[]) item);
                         }
-                    } else if (lc.equals("duelo")) {
-                        // publish to queue
-                        DuelEntry e = new DuelEntry(); e.serverId = serverId; e.playerId = playerId;
-                        jedis.rpush("queue:duels", gson.toJson(e));
-                        send("Você entrou na fila de duelo (distribuída).");
-                    } else if (lc.equals("sair")) {
-                        send("Até mais.");
-                        break;
-                    } else {
-                        send("Comandos: listar, pegar, mao, duelo, sair");
+                        Object prox = saida.peek();
+                        if (prox == null || prox instanceof Runnable) rawOut.flush();
+                    } catch (IOException e) {
+                        Log.aviso(Log.REDE, "[SEND] {}", e.getMessage());
+                        fechar();
                     }
                 }
-            } catch (IOException e) {
-                System.err.println("[HANDLER] " + e.getMessage());
+                escrevendo.set(false);
+            } while (!saida.isEmpty() && escrevendo.compareAndSet(false, true));
+        }
+
+        void fechar() {
+            if (!fechado.compareAndSet(false, true)) return;
+            localPlayers.remove(playerId);
+            ping.encerrar(sessao);
+            try { sock.close(); } catch (IOException ignored) {}
+            Log.info(Log.CONEXAO, "[DISCONNECT] {}", playerId);
+        }
+
+        // escreve com o id do pedido (binário): a ThreadLocal não acompanha o
+        // futuro quando ele completa em outra thread
+        private boolean responder(int req, Runnable escrita) {
+            ProtocoloBinario.REQUISICAO.set(req);
+            try {
+                escrita.run();
             } finally {
-                try { sock.close(); } catch (IOException ignored) {}
-                System.out.println("[DISCONNECT] " + playerId);
+                ProtocoloBinario.REQUISICAO.remove();
             }
+            return true;
         }
 
-        void send(String msg) {
+        // "pegar" -> 1, "pegar N" -> N; -1 se inválido ou acima de PEGAR_MAX
+        static int quantidadePacotes(String lc) {
+            String arg = lc.substring("pegar".length()).trim();
+            if (arg.isEmpty()) return 1;
             try {
-                synchronized (out) {
-                    out.write(msg + "\n");
-                    out.write("END\n");
-                    out.flush();
+                int n = Integer.parseInt(arg);
+                return n >= 1 && n <= PEGAR_MAX ? n : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // futuro com false quando o cliente pede "sair"; pegar/mao/duelo só
+        // escrevem a resposta quando etcd/Redis responderem
+        CompletableFuture<Boolean> processarComando(String line, int req) {
+            Log.info(Log.COMANDO, "[{}] {}", playerId, line);
+            String lc = line.toLowerCase();
+            if (lc.equals("pegar") || lc.startsWith("pegar ")) {
+                int quantidade = quantidadePacotes(lc);
+                if (quantidade < 1) {
+                    return CompletableFuture.completedFuture(responder(req, () -> send("Uso: pegar [N] (N de 1 a " + PEGAR_MAX + ")")));
                 }
-            } catch (IOException e) {
-                System.err.println("[SEND] " + e.getMessage());
+                // add to hand in redis: one atomic HINCRBY script, no read-modify-write
+                return sortearPacotes(playerId, serverId, quantidade, pity)
+                        .thenCompose(pacote -> addToHandInRedis(playerId, pacote).thenApply(x -> pacote))
+                        .thenApplyAsync(pacote -> responder(req, () -> enviarPacote(lc, pacote)), respostas);
+            } else if (lc.equals("mao")) {
+                return getHandFromRedis(playerId)
+                        .thenApplyAsync(mao -> responder(req, () -> enviarMao(mao)), respostas);
+            } else if (lc.equals("duelo")) {
+                // publish to queue
+                DuelEntry e = new DuelEntry(); e.serverId = serverId; e.playerId = playerId;
+                return filaDuelos.entrarAsync(gson.toJson(e))
+                        .thenApplyAsync(id -> responder(req, () -> send("Você entrou na fila de duelo (distribuída).")), respostas);
+            } else if (lc.equals("sair")) {
+                responder(req, () -> send("Até mais."));
+                return CompletableFuture.completedFuture(false);
+            }
+            return CompletableFuture.completedFuture(responder(req, () -> comandoLocal(lc)));
+        }
+
+        // listar e ajuda: só memória local
+        private void comandoLocal(String lc) {
+            if (lc.equals("listar") && binario) {
+                sendQuadro(listagem.quadroCatalogo(ProtocoloBinario.REQUISICAO.get()));
+            } else if (lc.equals("listar")) {
+                // pronta em bytes, sem lock nas listas (ver atualizarListagem)
+                sendPronto(listagem.texto);
+            } else if (lc.equals("sessao")) {
+                send("SESSAO " + ServicoPing.texto(sessao));
+            } else {
+                send("Comandos: listar, pegar, mao, duelo, sessao, sair");
             }
         }
+
+        private void enviarPacote(String lc, List<Card> pacote) {
+            if (binario) { sendCartas(pacote.toArray(new Card[0])); return; }
+            if (!lc.equals("pegar")) {
+                // "pegar N": resposta única com todas as cartas
+                StringBuilder sb = new StringBuilder("CARTAS_RECEBIDAS:\n");
+                for (Card c : pacote) sb.append(c.toString()).append("\n");
+                send(sb.toString());
+                return;
+            }
+            send("CARTAS_RECEBIDAS:");
+            for (Card c : pacote) send(c.toString());
+        }
+
+        private void enviarMao(List<Card> mao) {
+            if (mao.isEmpty()) { send("Sua mão está vazia."); return; }
+            Card[] arr = mao.toArray(new Card[0]);
+            if (binario) { sendCartas(arr); return; }
+            send("Sua mão:");
+            for (int i = 0; i < arr.length; i++) send((i+1) + ". " + arr[i].toString());
+        }
+
+        void send(String msg) {
+            if (binario) { sendQuadro(ProtocoloBinario.texto(msg)); return; }
+            enfileirarSaida((msg + "\nEND\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        // resposta texto já codificada e com END (ex.: Listagem.texto)
+        void sendPronto(byte[] bytes) {
+            enfileirarSaida(bytes);
+        }
+
+        // um quadro inteiro ou em partes (ex.: Listagem.quadroCatalogo), escritas em sequência
+        void sendQuadro(byte[]... partes) {
+            enfileirarSaida(partes.length == 1 ? partes[0] : partes);
+        }
+
+        void sendCartas(Card[] cartas) {
+            ProtocoloBinario.Resposta r = new ProtocoloBinario.Resposta(ProtocoloBinario.OP_CARTAS, 4 + cartas.length * 4);
+            r.varint(cartas.length);
+            for (Card c : cartas) r.carta(c.id, c.ataque, c.defesa);
+            sendQuadro(r.quadro(ProtocoloBinario.REQUISICAO.get()));
+        }
     }
 
     // ---------- Data types ----------
+    // uma instância por carta usada, criada no primeiro uso (ver
+    // CatalogoCartas.Cartas); o nome só sai do arquivo ao escrever texto
     static class Card {
-        final int id; final String nome; final int ataque; final int defesa;
-        Card(int id, String nome, int ataque, int defesa) { this.id=id; this.nome=nome; this.ataque=ataque; this.defesa=defesa; }
-        @Override public Card clone() { return new Card(id, nome, ataque, defesa); }
-        @Override public String toString() { return id + ": " + nome + " (ATK " + ataque + " / DEF " + defesa + ")"; }
+        final int id; final int ataque; final int defesa;
+        final int indice; // posição no catálogo
+        private final transient CatalogoCartas catalogo;
+        Card(CatalogoCartas catalogo, int indice) {
+            this.catalogo = catalogo; this.indice = indice;
+            id = catalogo.id(indice); ataque = catalogo.ataque(indice); defesa = catalogo.defesa(indice);
+        }
+        String nome() { return catalogo.nome(indice); }
+        @Override public String toString() { return id + ": " + nome() + " (ATK " + ataque + " / DEF " + defesa + ")"; }
     }
 
     static class DuelEntry {
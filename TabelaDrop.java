@@ -0,0 +1,256 @@
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Tabela de drop dos pacotes: qualquer número de tiers de raridade com pesos,
+ * slot garantido por pacote e pity por jogador.
+ *
+ * O tier de cada slot sai de uma tabela de alias (Walker/Vose): um inteiro e
+ * um double aleatórios, custo constante para qualquer número de tiers; a
+ * carta dentro do tier é um índice uniforme no int[] do tier (índices do
+ * CatalogoCartas), convertido em objeto só na saída. Os números vêm do
+ * ThreadLocalRandom da thread (nada de Random compartilhado).
+ *
+ * Tiers "únicos" (raras) não sorteiam carta aqui: o servidor tenta reservar uma
+ * (PoolRaras, Redis ou etcd) e, se não conseguir, usa substituto(), que
+ * sorteia só entre os tiers repetíveis. O pity só anda com o que foi
+ * entregue de fato: o servidor chama registrarEntrega() com os tiers finais,
+ * então uma rara sorteada que virou substituto não zera o contador.
+ *
+ * Configuração (-D na partida, tiers por nome ou número do CatalogoCartas):
+ *   drop.pesos=comum=70,incomum=25,rara=5   pesos relativos (padrão do servidor)
+ *   drop.garantia=incomum                   todo pacote tem ao menos um tier >= esse
+ *   drop.pity=rara/10                       após 10 pacotes sem tier >= rara, o próximo traz uma
+ */
+final class TabelaDrop<T> {
+    static final int CARTAS_POR_PACOTE = 3;
+    private static final String[] NOMES = { "comum", "incomum", "rara" }; // índice = tier
+
+    /** Pacotes entregues seguidos sem o tier do pity (um por jogador). */
+    static final class Pity {
+        private final AtomicInteger semTier = new AtomicInteger();
+
+        int pacotesSem() { return semTier.get(); }
+    }
+
+    // alias de Vose sobre pesos >= 0 (soma > 0)
+    static final class Alias {
+        private final double[] prob;
+        private final int[] alias;
+
+        Alias(double[] pesos) {
+            int n = pesos.length;
+            prob = new double[n];
+            alias = new int[n];
+            double soma = 0;
+            for (double p : pesos) soma += p;
+            double[] escala = new double[n];
+            int[] pequenos = new int[n], grandes = new int[n];
+            int np = 0, ng = 0;
+            for (int i = 0; i < n; i++) {
+                escala[i] = pesos[i] * n / soma;
+                if (escala[i] < 1) pequenos[np++] = i;
+                else grandes[ng++] = i;
+            }
+            while (np > 0 && ng > 0) {
+                int p = pequenos[--np], g = grandes[--ng];
+                prob[p] = escala[p];
+                alias[p] = g;
+                escala[g] = escala[g] + escala[p] - 1;
+                if (escala[g] < 1) pequenos[np++] = g;
+                else grandes[ng++] = g;
+            }
+            while (ng > 0) prob[grandes[--ng]] = 1;
+            while (np > 0) prob[pequenos[--np]] = 1; // sobra de arredondamento
+        }
+
+        int amostra(ThreadLocalRandom r) {
+            int i = r.nextInt(prob.length);
+            return r.nextDouble() < prob[i] ? i : alias[i];
+        }
+    }
+
+    private final int[] tiers;             // tiers com peso > 0, na ordem crescente
+    private final Alias todos;             // sobre tiers
+    private final int[] repetiveis;        // tiers com lista
+    private final Alias substitutos;       // sobre repetiveis
+    private final int[] garantidos;        // tiers >= garantia
+    private final Alias garantia;          // sobre garantidos (null = sem regra)
+    private final int minimoGarantido;
+    private final int tierPity, pacotesPity;
+    private final Map<Integer, int[]> cartas;
+    private final IntFunction<T> carta;
+    private final Set<Integer> unicos;
+
+    /**
+     * pesos: tier -> peso; cartas: índices de cada tier (os dos tiers únicos
+     * são ignorados); carta: índice -> objeto; unicos: tiers resolvidos pelo
+     * servidor. garantia/tierPity < 0 desligam as regras.
+     */
+    TabelaDrop(Map<Integer, Double> pesos, Map<Integer, int[]> cartas, IntFunction<T> carta, Set<Integer> unicos,
+               int garantia, int tierPity, int pacotesPity) {
+        this.unicos = Set.copyOf(unicos);
+        this.cartas = new HashMap<>();
+        cartas.forEach((tier, indices) -> {
+            if (indices.length > 0 && !this.unicos.contains(tier)) this.cartas.put(tier, indices.clone());
+        });
+        this.carta = carta;
+
+        // só entram tiers com peso e com cartas (ou únicos)
+        TreeMap<Integer, Double> validos = new TreeMap<>();
+        pesos.forEach((tier, peso) -> {
+            if (peso > 0 && (this.cartas.containsKey(tier) || this.unicos.contains(tier))) validos.put(tier, peso);
+        });
+        if (validos.keySet().stream().noneMatch(this.cartas::containsKey)) {
+            throw new IllegalArgumentException("drop.pesos sem nenhum tier repetível com cartas: " + pesos);
+        }
+        tiers = validos.keySet().stream().mapToInt(Integer::intValue).toArray();
+        todos = alias(validos, t -> true);
+        repetiveis = filtrar(validos, this.cartas::containsKey);
+        substitutos = alias(validos, this.cartas::containsKey);
+        garantidos = filtrar(validos, t -> t >= garantia);
+        this.garantia = garantia >= 0 && garantidos.length > 0 && garantidos.length < tiers.length
+                ? alias(validos, t -> t >= garantia) : null;
+        this.minimoGarantido = garantia;
+        boolean pityValido = tierPity >= 0 && pacotesPity > 0 && validos.keySet().stream().anyMatch(t -> t >= tierPity);
+        this.tierPity = pityValido ? tierPity : -1;
+        this.pacotesPity = pacotesPity;
+    }
+
+    /** Lê drop.pesos (ou pesosPadrao), drop.garantia e drop.pity. */
+    static <T> TabelaDrop<T> configurada(String pesosPadrao, Map<Integer, int[]> cartas, IntFunction<T> carta, Set<Integer> unicos) {
+        Map<Integer, Double> pesos = new HashMap<>();
+        for (String par : System.getProperty("drop.pesos", pesosPadrao).split(",")) {
+            String[] kv = par.split("=");
+            if (kv.length != 2) throw new IllegalArgumentException("drop.pesos: esperado tier=peso, veio '" + par + "'");
+            pesos.put(tier(kv[0]), Double.parseDouble(kv[1].trim()));
+        }
+        String g = System.getProperty("drop.garantia");
+        int garantia = g == null || g.isBlank() ? -1 : tier(g);
+        int tierPity = -1, pacotesPity = 0;
+        String p = System.getProperty("drop.pity");
+        if (p != null && !p.isBlank()) {
+            String[] partes = p.split("/");
+            tierPity = tier(partes[0]);
+            pacotesPity = partes.length > 1 ? Integer.parseInt(partes[1].trim()) : 10;
+        }
+        return new TabelaDrop<>(pesos, cartas, carta, unicos, garantia, tierPity, pacotesPity);
+    }
+
+    static int tier(String nome) {
+        String n = nome.trim().toLowerCase();
+        for (int i = 0; i < NOMES.length; i++) if (NOMES[i].equals(n)) return i;
+        return Integer.parseInt(n);
+    }
+
+    static String nome(int tier) {
+        return tier < NOMES.length ? NOMES[tier] : String.valueOf(tier);
+    }
+
+    boolean unico(int tier) { return unicos.contains(tier); }
+
+    /**
+     * Tier de cada slot de "pacotes" pacotes (CARTAS_POR_PACOTE cada), com a
+     * garantia por pacote e o pity do jogador (null = sem pity). O pity só é
+     * lido aqui; quem entrega chama registrarEntrega com os tiers finais.
+     */
+    int[] sortearTiers(int pacotes, Pity pity) {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        int[] saida = new int[pacotes * CARTAS_POR_PACOTE];
+        // seca prevista dentro deste pedido, supondo que o sorteado será entregue
+        int seca = pity == null ? 0 : pity.semTier.get();
+        for (int p = 0; p < pacotes; p++) {
+            int ini = p * CARTAS_POR_PACOTE, ultimo = ini + CARTAS_POR_PACOTE - 1;
+            int maior = -1;
+            for (int s = ini; s <= ultimo; s++) {
+                saida[s] = tiers[todos.amostra(r)];
+                maior = Math.max(maior, saida[s]);
+            }
+            if (garantia != null && maior < minimoGarantido) {
+                saida[ultimo] = garantidos[garantia.amostra(r)];
+                maior = saida[ultimo];
+            }
+            if (pity != null && tierPity >= 0) {
+                if (maior >= tierPity) {
+                    seca = 0;
+                } else if (++seca >= pacotesPity) {
+                    saida[ultimo] = tierPity;
+                    seca = 0;
+                }
+            }
+        }
+        return saida;
+    }
+
+    /**
+     * Atualiza o pity com os tiers entregues (saída de sortearTiers com os
+     * substitutos já aplicados): zera num pacote que trouxe tier >= o do pity,
+     * soma um nos outros. Se a rara do pity não pôde ser entregue, o contador
+     * segue acima do limite e o próximo pacote tenta de novo.
+     */
+    void registrarEntrega(Pity pity, int[] entregues) {
+        if (pity == null || tierPity < 0) return;
+        for (int ini = 0; ini + CARTAS_POR_PACOTE <= entregues.length; ini += CARTAS_POR_PACOTE) {
+            int maior = -1;
+            for (int s = ini; s < ini + CARTAS_POR_PACOTE; s++) maior = Math.max(maior, entregues[s]);
+            if (maior >= tierPity) pity.semTier.set(0);
+            else pity.semTier.incrementAndGet();
+        }
+    }
+
+    /** Carta uniforme de um tier repetível. */
+    T carta(int tier) {
+        int[] indices = cartas.get(tier);
+        return carta.apply(indices[ThreadLocalRandom.current().nextInt(indices.length)]);
+    }
+
+    /** Tier repetível para o slot cujo tier único não pôde ser reservado. */
+    int substituto() {
+        return repetiveis[substitutos.amostra(ThreadLocalRandom.current())];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("tiers=");
+        for (int t : tiers) sb.append(nome(t)).append(unico(t) ? "(única) " : "(" + cartas.get(t).length + ") ");
+        if (garantia != null) sb.append("garantia>=").append(nome(minimoGarantido)).append(' ');
+        if (tierPity >= 0) sb.append("pity=").append(nome(tierPity)).append('/').append(pacotesPity);
+        return sb.toString().trim();
+    }
+
+    private static int[] filtrar(TreeMap<Integer, Double> pesos, java.util.function.IntPredicate filtro) {
+        return pesos.keySet().stream().mapToInt(Integer::intValue).filter(filtro).toArray();
+    }
+
+    private static Alias alias(TreeMap<Integer, Double> pesos, java.util.function.IntPredicate filtro) {
+        return new Alias(pesos.entrySet().stream().filter(e -> filtro.test(e.getKey())).mapToDouble(Map.Entry::getValue).toArray());
+    }
+
+    // ---------- teste: frequências observadas x pesos ----------
+    //   javac TabelaDrop.java && java -Ddrop.pesos=comum=70,incomum=25,rara=5 -Ddrop.garantia=incomum TabelaDrop [pacotes]
+    public static void main(String[] args) {
+        int pacotes = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Map<Integer, int[]> cartas = new HashMap<>();
+        for (int t = 0; t < 2; t++) cartas.put(t, new int[] { t * 100, t * 100 + 1 });
+        TabelaDrop<Integer> drop = configurada("comum=70,incomum=25,rara=5", cartas, i -> i, Set.of(2));
+        System.out.println("[DROP] " + drop);
+        long[] contagem = new long[8];
+        Pity pity = new Pity();
+        long t0 = System.nanoTime();
+        int maiorSeca = 0;
+        for (int i = 0; i < pacotes; i++) {
+            int[] tiers = drop.sortearTiers(1, pity);
+            drop.registrarEntrega(pity, tiers);
+            for (int t : tiers) contagem[t]++;
+            maiorSeca = Math.max(maiorSeca, pity.pacotesSem());
+        }
+        long ns = System.nanoTime() - t0;
+        long total = (long) pacotes * CARTAS_POR_PACOTE;
+        for (int t = 0; t < contagem.length; t++) {
+            if (contagem[t] > 0) System.out.printf("  %-8s %6.2f%%%n", nome(t), 100.0 * contagem[t] / total);
+        }
+        System.out.printf("[DROP] %d pacotes, %.1f ns/pacote, maior seca do pity=%d%n", pacotes, (double) ns / pacotes, maiorSeca);
+    }
+}
@@ -0,0 +1,78 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Criação de threads usada pelos três servidores (opção --virtual).
+ *
+ * Com --virtual e uma JVM 21+, handlers de cliente, workers de duelo e
+ * subscribers rodam em threads virtuais: passam quase todo o tempo parados em
+ * leitura de socket, Jedis ou etcd, e assim dezenas de milhares de sessões
+ * ociosas cabem num nó. O projeto continua compilando com Java 17, por isso a
+ * API é acessada por reflexão; sem suporte cai para threads de plataforma.
+ *
+ * Obs.: dentro dessas threads evite synchronized em volta de I/O bloqueante
+ * (prende a carrier thread); os servidores usam ReentrantLock nesses pontos.
+ */
+final class ThreadsVirtuais {
+    private static volatile boolean habilitado = false;
+
+    private ThreadsVirtuais() {}
+
+    /** Liga o modo virtual; retorna false (e avisa) se a JVM não suporta. */
+    static boolean habilitar() {
+        if (fabricaVirtual("teste-") == null) {
+            Log.aviso(Log.SERVIDOR, "[THREADS] JVM {} sem threads virtuais (precisa Java 21+); usando threads de plataforma",
+                    System.getProperty("java.version"));
+            return false;
+        }
+        habilitado = true;
+        Log.info(Log.SERVIDOR, "[THREADS] threads virtuais habilitadas");
+        return true;
+    }
+
+    static boolean habilitado() { return habilitado; }
+
+    /** Inicia uma thread de longa duração (virtual se habilitado, senão daemon de plataforma). */
+    static Thread iniciar(String nome, Runnable r) {
+        Thread t = fabrica(nome).newThread(r);
+        if (!habilitado) t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /** Executor com uma thread por tarefa (virtual) ou cached pool (plataforma). */
+    static ExecutorService novoExecutor(String prefixo) {
+        ThreadFactory f = fabrica(prefixo);
+        if (habilitado) {
+            try {
+                Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) m.invoke(null, f);
+            } catch (ReflectiveOperationException e) {
+                // não deveria acontecer se fabricaVirtual funcionou
+            }
+        }
+        return Executors.newCachedThreadPool(f);
+    }
+
+    static ThreadFactory fabrica(String prefixo) {
+        if (habilitado) {
+            ThreadFactory f = fabricaVirtual(prefixo);
+            if (f != null) return f;
+        }
+        AtomicLong seq = new AtomicLong();
+        return r -> new Thread(r, prefixo + seq.getAndIncrement());
+    }
+
+    // Thread.ofVirtual().name(prefixo, 0).factory() via reflexão
+    private static ThreadFactory fabricaVirtual(String prefixo) {
+        try {
+            Class<?> builderCls = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderCls.getMethod("name", String.class, long.class).invoke(builder, prefixo, 0L);
+            return (ThreadFactory) builderCls.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import com.google.gson.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks JMH dos caminhos quentes dos servidores (perfil "bench" do pom).
+ *
+ *   mvn -B -Pbench package
+ *   java -jar target/benchmarks.jar                  -> jmh-result.json
+ *   java -jar target/benchmarks.jar sortear -t 8     (filtro e opções do JMH)
+ *   java -jar target/benchmarks.jar comparar antes.json depois.json
+ *
+ * O resultado sai em JSON por padrão (-rf/-rff trocam). "comparar" lista a
+ * diferença de cada benchmark entre duas execuções e termina com código 1
+ * se algum piorou mais que -Dbench.limite (padrão 0.10 = 10%).
+ *
+ * Os benchmarks usam o estado estático dos servidores (initCards) e
+ * jogadores com socket em memória; nada de rede, Redis ou etcd.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchServidor {
+
+    // ---------- estado ----------
+    @State(Scope.Benchmark)
+    public static class Catalogo {
+        Servidor.Player lobby; // só manda "listar"
+
+        @Setup(Level.Trial)
+        public void iniciar() throws IOException {
+            Servidor.initCards();
+            ServidorRaftRedis.initCards();
+            lobby = new Servidor.Player(new SocketMemoria());
+        }
+
+        // raras voltam a cada iteração; senão só a primeira vê raras livres
+        @Setup(Level.Iteration)
+        public void devolverRaras() {
+            Servidor.rarasLivres = new PoolRaras(Servidor.raras.length);
+            Servidor.atualizarListagem();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Maos {
+        @Param({"10", "1000", "100000"})
+        public int cartas;
+
+        Servidor.Player p1, p2;
+        List<Servidor.Card> mao;
+        Servidor.Mao.Pares maoPares; // cópia da mão como o Servidor responde (id, quantidade)
+        Servidor.Card[] maoArray;
+        String maoJson;
+        String maoTexto;
+        Map<String, String> maoRedis; // hash player:hand:<id> (id -> quantidade)
+        final Gson gson = new Gson();
+
+        @Setup(Level.Trial)
+        public void montar(Catalogo catalogo) throws IOException {
+            Random r = new Random(42);
+            mao = new ArrayList<>(cartas);
+            int[] comuns = CatalogoCartas.padrao().indicesPorTier().get(CatalogoCartas.COMUM);
+            for (int i = 0; i < cartas; i++) {
+                mao.add(Servidor.cartas.em(comuns[r.nextInt(comuns.length)]));
+            }
+            maoArray = mao.toArray(new Servidor.Card[0]);
+            maoJson = gson.toJson(maoArray);
+
+            p1 = new Servidor.Player(new SocketMemoria());
+            p2 = new Servidor.Player(new SocketMemoria());
+            p1.adicionarCartas(mao);
+            p2.adicionarCartas(mao.subList(0, cartas / 2 + 1));
+            maoPares = p1.mao.pares();
+            maoTexto = Servidor.textoMao(maoPares);
+
+            maoRedis = new HashMap<>();
+            for (Servidor.Card c : mao) maoRedis.merge(String.valueOf(c.id), "1", (a, b) -> String.valueOf(Integer.parseInt(a) + 1));
+        }
+    }
+
+    // ---------- sortearPacote ----------
+    @Benchmark
+    @Threads(1)
+    public List<Servidor.Card> sortearPacote_1thread(Catalogo c) {
+        return Servidor.sortearPacote();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<Servidor.Card> sortearPacote_4threads(Catalogo c) {
+        return Servidor.sortearPacote();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public List<Servidor.Card> sortearPacote_maxThreads(Catalogo c) {
+        return Servidor.sortearPacote();
+    }
+
+    // ---------- listar (resposta pronta, ver Listagem) ----------
+    @Benchmark
+    @Threads(4)
+    public boolean listarTexto(Catalogo c) {
+        return Servidor.executarComando(c.lobby, "listar");
+    }
+
+    // ---------- duelo ----------
+    // placar com os totais mantidos a cada "pegar" (respostas vão para a memória)
+    @Benchmark
+    public void duelar(Maos m) {
+        Servidor.duelar(m.p1, m.p2);
+    }
+
+    // o que o placar custaria somando a mão inteira a cada duelo
+    @Benchmark
+    public Servidor.ForcaMao forcaRecalculada(Maos m) {
+        return Servidor.ForcaMao.VAZIA.somar(m.mao);
+    }
+
+    // "mao" no ServidorRaftRedis: hash de quantidades -> cartas do catálogo
+    @Benchmark
+    public List<ServidorRaftRedis.Card> raftExpandirMao(Maos m) {
+        return ServidorRaftRedis.expandirMao(m.maoRedis);
+    }
+
+    // ---------- Gson ----------
+    @Benchmark
+    public String gsonParaJson(Maos m) {
+        return m.gson.toJson(m.maoArray);
+    }
+
+    @Benchmark
+    public Servidor.Card[] gsonIdaEVolta(Maos m) {
+        return m.gson.fromJson(m.gson.toJson(m.maoArray), Servidor.Card[].class);
+    }
+
+    // ---------- respostas ----------
+    @Benchmark
+    public String textoMao(Maos m) {
+        return Servidor.textoMao(m.maoPares);
+    }
+
+    @Benchmark
+    public void sendTexto(Maos m) {
+        m.p1.binario = false;
+        m.p1.send(m.maoTexto);
+    }
+
+    @Benchmark
+    public void sendCartasBinario(Maos m) {
+        m.p1.binario = true;
+        m.p1.sendCartas(m.mao);
+    }
+
+    @Benchmark
+    public void sendMaoBinario(Maos m) {
+        m.p1.binario = true;
+        m.p1.sendMao(m.maoPares);
+    }
+
+    // Socket sem rede: entrada vazia, saída descartada (só conta bytes)
+    static final class SocketMemoria extends Socket {
+        private final InputStream entrada = new ByteArrayInputStream(new byte[0]);
+        private final Descarte saida = new Descarte();
+
+        @Override public InputStream getInputStream() { return entrada; }
+        @Override public OutputStream getOutputStream() { return saida; }
+    }
+
+    static final class Descarte extends OutputStream {
+        long bytes;
+
+        @Override public void write(int b) { bytes++; }
+        @Override public void write(byte[] b, int off, int len) { bytes += len; }
+    }
+
+    // ============================
+    // main: JSON por padrão e comparação entre execuções
+    // ============================
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("comparar")) {
+            if (args.length < 3) {
+                System.err.println("Uso: comparar <antes.json> <depois.json>");
+                System.exit(2);
+            }
+            System.exit(comparar(Paths.get(args[1]), Paths.get(args[2]), Double.parseDouble(System.getProperty("bench.limite", "0.10"))));
+        }
+        CommandLineOptions cli = new CommandLineOptions(args);
+        ChainedOptionsBuilder opts = new OptionsBuilder().parent(cli);
+        if (cli.getIncludes().isEmpty()) opts.include(BenchServidor.class.getSimpleName());
+        if (!cli.getResultFormat().hasValue()) opts.resultFormat(ResultFormatType.JSON);
+        if (!cli.getResult().hasValue()) opts.result("jmh-result.json");
+        new Runner(opts.build()).run();
+    }
+
+    // 0 se nada piorou além do limite, 1 caso contrário
+    static int comparar(Path antes, Path depois, double limite) throws IOException {
+        Map<String, JsonObject> base = resultados(antes);
+        int piores = 0;
+        for (Map.Entry<String, JsonObject> e : resultados(depois).entrySet()) {
+            JsonObject anterior = base.get(e.getKey());
+            if (anterior == null) continue;
+            double a = score(anterior), d = score(e.getValue());
+            // throughput: maior é melhor; tempos: menor é melhor
+            boolean maiorMelhor = e.getValue().get("mode").getAsString().equals("thrpt");
+            double variacao = a == 0 ? 0 : (d - a) / a;
+            boolean piorou = maiorMelhor ? variacao < -limite : variacao > limite;
+            if (piorou) piores++;
+            System.out.printf("%s %-70s %12.3f -> %12.3f %s (%+.1f%%)%n", piorou ? "PIOROU" : "ok    ",
+                    e.getKey(), a, d, e.getValue().getAsJsonObject("primaryMetric").get("scoreUnit").getAsString(), variacao * 100);
+        }
+        System.out.println(piores == 0 ? "[BENCH] nenhuma regressão acima de " + (limite * 100) + "%" : "[BENCH] " + piores + " regressões");
+        return piores == 0 ? 0 : 1;
+    }
+
+    // benchmark + parâmetros -> resultado
+    static Map<String, JsonObject> resultados(Path arquivo) throws IOException {
+        Map<String, JsonObject> r = new TreeMap<>();
+        for (JsonElement el : JsonParser.parseString(Files.readString(arquivo)).getAsJsonArray()) {
+            JsonObject o = el.getAsJsonObject();
+            String chave = o.get("benchmark").getAsString();
+            chave = chave.substring(chave.lastIndexOf('.') + 1);
+            if (o.has("params")) chave += o.getAsJsonObject("params").toString();
+            r.put(chave, o);
+        }
+        return r;
+    }
+
+    static double score(JsonObject resultado) {
+        return resultado.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+    }
+}